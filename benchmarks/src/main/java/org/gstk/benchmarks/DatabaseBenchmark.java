@@ -0,0 +1,84 @@
+package org.gstk.benchmarks;
+
+import org.gstk.Constants;
+import org.gstk.Region;
+import org.gstk.db.TileDB;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Tile write throughput into a fresh database on a temp file, every iteration starts with a new database
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DatabaseBenchmark {
+    private static final int ZOOM = 20;
+
+    @Param({"mbtiles", "gpkg", "archive"})
+    public String backend;
+
+    private byte[] png;
+    private File file;
+    private TileDB db;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        png = Payloads.png();
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws Exception {
+        file = Files.createTempFile("gstk-bench-", "." + backend).toFile();
+        if (!file.delete()) {
+            throw new IllegalStateException("Failed to delete temp file " + file);
+        }
+
+        String id = switch (backend) {
+            case "gpkg" -> "gpkg:tiles@" + file.getPath();
+            default -> backend + ":" + file.getPath();
+        };
+        db = TileDB.open(id, null);
+        db.init();
+        if (db.needsAdvancedInit()) {
+            db.advancedInit(0, ZOOM, Region.fromWkt(EnumerationBenchmark.wkt("rectangle")));
+        }
+        next = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws Exception {
+        db.close();
+        Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(new File(file.getPath() + "-staging").toPath());
+    }
+
+    @Benchmark
+    public void storeTile() throws Exception {
+        db.storeTile(nextTile());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Constants.WRITE_BATCH_SIZE)
+    public void storeTiles() throws Exception {
+        List<TileData> batch = new ArrayList<>(Constants.WRITE_BATCH_SIZE);
+        for (int i = 0; i < Constants.WRITE_BATCH_SIZE; i++) {
+            batch.add(nextTile());
+        }
+        db.storeTiles(batch);
+    }
+
+    private TileData nextTile() {
+        int index = next++;
+        return new TileData(new TilePosition(index % (1 << ZOOM), index / (1 << ZOOM), ZOOM), png);
+    }
+}
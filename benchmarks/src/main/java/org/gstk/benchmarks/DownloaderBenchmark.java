@@ -0,0 +1,78 @@
+package org.gstk.benchmarks;
+
+import org.gstk.Downloader;
+import org.gstk.Region;
+import org.gstk.db.TileDB;
+import org.gstk.mock.MockTileServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Full downloads (enumeration, HTTP, database writes) from a local mock tile server into a fresh MBTiles file
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloaderBenchmark {
+    private static final int ZOOM = 16;
+    private static final String REGION =
+        "POLYGON ((-118.3 34.0, -118.2 34.0, -118.2 34.1, -118.3 34.1, -118.3 34.0))";
+
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    @Param({"0", "20"})
+    public int latencyMs;
+
+    private MockTileServer server;
+    private Region region;
+    private File file;
+    private TileDB db;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        server = MockTileServer.builder()
+            .latency(MockTileServer.Latency.fixed(latencyMs))
+            .threads(32)
+            .build()
+            .start();
+        region = Region.fromWkt(REGION);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        server.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws Exception {
+        file = Files.createTempFile("gstk-bench-", ".mbtiles").toFile();
+        if (!file.delete()) {
+            throw new IllegalStateException("Failed to delete temp file " + file);
+        }
+        db = TileDB.open("mbtiles:" + file.getPath(), null);
+        db.init();
+        db.advancedInit(ZOOM, ZOOM, region);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() throws Exception {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Benchmark
+    public int download() {
+        Downloader downloader = Downloader.builder(db)
+            .region(region)
+            .tileUrl(server.getTileUrl())
+            .threads(threads)
+            .build();
+        downloader.start(ZOOM, ZOOM, true);
+        db.close();
+        return downloader.downloadedTileCount.get();
+    }
+}
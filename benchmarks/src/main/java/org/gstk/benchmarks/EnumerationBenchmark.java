@@ -0,0 +1,81 @@
+package org.gstk.benchmarks;
+
+import org.gstk.Region;
+import org.gstk.utils.TileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnumerationBenchmark {
+    @Param({"rectangle", "star", "multipolygon"})
+    public String shape;
+
+    @Param({"10", "14", "16"})
+    public int zoom;
+
+    private Region region;
+
+    @Setup
+    public void setup() throws Exception {
+        region = Region.fromWkt(wkt(shape));
+    }
+
+    @Benchmark
+    public int findTilesInRegion() {
+        return TileUtils.findTilesInRegion(region, zoom).size();
+    }
+
+    // Regions of about one square degree around Los Angeles with increasing vertex counts
+    static String wkt(String shape) {
+        double lon = -118.25;
+        double lat = 34.05;
+        switch (shape) {
+            case "rectangle" -> {
+                return polygon(lon - 0.5, lat - 0.5, lon + 0.5, lat + 0.5);
+            }
+            case "star" -> {
+                StringBuilder sb = new StringBuilder("POLYGON ((");
+                int points = 200;
+                for (int i = 0; i <= points; i++) {
+                    double angle = 2 * Math.PI * (i % points) / points;
+                    double radius = i % 2 == 0 ? 0.6 : 0.3;
+                    if (i > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(lon + radius * Math.cos(angle)).append(' ').append(lat + radius * Math.sin(angle));
+                }
+                return sb.append("))").toString();
+            }
+            case "multipolygon" -> {
+                StringBuilder sb = new StringBuilder("MULTIPOLYGON (");
+                for (int row = 0; row < 5; row++) {
+                    for (int column = 0; column < 5; column++) {
+                        double minLon = lon - 0.5 + column * 0.2;
+                        double minLat = lat - 0.5 + row * 0.2;
+                        if (row > 0 || column > 0) {
+                            sb.append(", ");
+                        }
+                        sb.append(polygon(minLon, minLat, minLon + 0.15, minLat + 0.15).substring("POLYGON ".length()));
+                    }
+                }
+                return sb.append(")").toString();
+            }
+            default -> throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    private static String polygon(double minLon, double minLat, double maxLon, double maxLat) {
+        return "POLYGON ((" +
+            minLon + " " + minLat + ", " +
+            maxLon + " " + minLat + ", " +
+            maxLon + " " + maxLat + ", " +
+            minLon + " " + maxLat + ", " +
+            minLon + " " + minLat + "))";
+    }
+}
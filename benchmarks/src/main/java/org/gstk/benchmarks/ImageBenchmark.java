@@ -0,0 +1,43 @@
+package org.gstk.benchmarks;
+
+import org.gstk.utils.ImageUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+    private byte[] png;
+    private byte[] jpeg;
+
+    @Setup
+    public void setup() {
+        png = Payloads.png();
+        jpeg = Payloads.jpeg();
+    }
+
+    @Benchmark
+    public boolean isPngOnPng() {
+        return ImageUtils.isPng(png);
+    }
+
+    @Benchmark
+    public boolean isPngOnJpeg() {
+        return ImageUtils.isPng(jpeg);
+    }
+
+    @Benchmark
+    public byte[] convertJpegToPng() {
+        return ImageUtils.convertBytesToPng(jpeg);
+    }
+
+    @Benchmark
+    public byte[] convertPngToPng() {
+        return ImageUtils.convertBytesToPng(png);
+    }
+}
@@ -0,0 +1,44 @@
+package org.gstk.benchmarks;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+// Deterministic 256x256 tile images, flat areas with some noise so they compress roughly like map tiles
+public final class Payloads {
+    private Payloads() {}
+
+    public static byte[] png() {
+        return encode("png");
+    }
+
+    public static byte[] jpeg() {
+        return encode("jpg");
+    }
+
+    private static byte[] encode(String format) {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        int[] palette = {0xF2EFE9, 0xAAD3DF, 0xC8FACC, 0xFFFFFF, 0xE0DFDF};
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                int color = palette[((x / 32) * 7 + (y / 32) * 3) % palette.length];
+                if (random.nextInt(16) == 0) {
+                    color ^= random.nextInt(0x40);
+                }
+                image.setRGB(x, y, color);
+            }
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, format, out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
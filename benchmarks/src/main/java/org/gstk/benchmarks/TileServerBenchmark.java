@@ -0,0 +1,82 @@
+package org.gstk.benchmarks;
+
+import org.gstk.TileServer;
+import org.gstk.db.TileDB;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Requests per second of --serve for random tiles of one zoom level, 8 concurrent clients
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+public class TileServerBenchmark {
+    private static final int ZOOM = 6;
+
+    private File file;
+    private TileServer server;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = Files.createTempFile("gstk-bench-", ".mbtiles").toFile();
+        if (!file.delete()) {
+            throw new IllegalStateException("Failed to delete temp file " + file);
+        }
+
+        TileDB db = TileDB.open("mbtiles:" + file.getPath(), null);
+        db.init();
+        byte[] png = Payloads.png();
+        List<TileData> tiles = new ArrayList<>();
+        for (int x = 0; x < (1 << ZOOM); x++) {
+            for (int y = 0; y < (1 << ZOOM); y++) {
+                tiles.add(new TileData(new TilePosition(x, y, ZOOM), png));
+            }
+        }
+        db.storeTiles(tiles);
+        db.close();
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new TileServer("mbtiles:" + file.getPath(), new InetSocketAddress("127.0.0.1", port), 8);
+        server.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Benchmark
+    public int getTile(Client client) throws Exception {
+        int x = client.random.nextInt(1 << ZOOM);
+        int y = client.random.nextInt(1 << ZOOM);
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/" + ZOOM + "/" + x + "/" + y + ".png")).build();
+        return client.http.send(request, HttpResponse.BodyHandlers.ofByteArray()).body().length;
+    }
+}
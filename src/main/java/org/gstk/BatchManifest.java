@@ -0,0 +1,97 @@
+package org.gstk;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.annotation.XmlAccessType;
+import jakarta.xml.bind.annotation.XmlAccessorType;
+import jakarta.xml.bind.annotation.XmlAttribute;
+import jakarta.xml.bind.annotation.XmlElement;
+import jakarta.xml.bind.annotation.XmlRootElement;
+import org.gstk.utils.ValidationUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Download jobs of a --batch run:
+// <batch>
+//   <job name="roads">
+//     <region>wkt:POLYGON (...)</region>
+//     <url>https://tiles.example.com/{z}/{x}/{y}.png</url>
+//     <db>mbtiles:roads.mbtiles</db>
+//     <startZoom>10</startZoom>
+//     <endZoom>14</endZoom>
+//   </job>
+// </batch>
+@XmlRootElement(name="batch")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class BatchManifest {
+    @XmlElement(name="job")
+    public List<Job> jobs = new ArrayList<>();
+
+    public static BatchManifest read(File file) throws JAXBException, InvalidManifestException {
+        BatchManifest manifest = (BatchManifest) JAXBContext.newInstance(BatchManifest.class).createUnmarshaller().unmarshal(file);
+        manifest.validate();
+        return manifest;
+    }
+
+    // Fills in job names and checks every job like the --download options are checked
+    void validate() throws InvalidManifestException {
+        if (jobs == null || jobs.isEmpty()) {
+            throw new InvalidManifestException("No jobs in manifest");
+        }
+
+        Set<String> names = new HashSet<>();
+        Set<String> dbs = new HashSet<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            if (job.name == null || job.name.isBlank()) {
+                job.name = "job" + (i + 1);
+            }
+            if (!names.add(job.name)) {
+                throw new InvalidManifestException("Duplicate job name " + job.name);
+            }
+            if (job.region == null || job.db == null || job.startZoom == null || job.endZoom == null) {
+                throw new InvalidManifestException("Job " + job.name + " needs region, url, db, startZoom and endZoom");
+            }
+            if (!ValidationUtils.isValidTileUrl(job.url)) {
+                throw new InvalidManifestException("Invalid tile URL in job " + job.name);
+            }
+            try {
+                ValidationUtils.checkValidZoomLevels(String.valueOf(job.startZoom), String.valueOf(job.endZoom));
+            } catch (ValidationUtils.InvalidZoomException e) {
+                throw new InvalidManifestException("Invalid zoom levels in job " + job.name + ": " + e.getMessage());
+            }
+            // Jobs run at the same time, two writers on one database would fight over its lock
+            if (!dbs.add(job.db)) {
+                throw new InvalidManifestException("Database " + job.db + " is used by more than one job");
+            }
+        }
+    }
+
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Job {
+        @XmlAttribute
+        public String name;
+        public String region;
+        public String url;
+        public String db;
+        public Integer startZoom;
+        public Integer endZoom;
+        public boolean override;
+        // Default: gstk_failed_tiles_<name>.log
+        public String failsFile;
+
+        public File getFailsFile() {
+            return new File(failsFile != null ? failsFile : "gstk_failed_tiles_" + name + ".log");
+        }
+    }
+
+    public static class InvalidManifestException extends RuntimeException {
+        public InvalidManifestException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.gstk;
+
+import org.gstk.cache.HttpTileCache;
+import org.gstk.db.TileDB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+// Runs the jobs of a batch manifest in one process. Downloads of all jobs share one thread pool in which every
+// running job gets an equal share, jobs on the same host share a fair limit of concurrent requests,
+// and regions used by several jobs are parsed and enumerated once.
+public class BatchRunner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchRunner.class);
+
+    private final List<BatchManifest.Job> jobs;
+    private final int threadCount;
+    private final int hostConnections;
+    private final TileTransformer transformer;
+    private final int transformThreads;
+    private final HttpTileCache cache;
+    private final EnumerationCache enumerationCache;
+    private final CancellationToken cancellation;
+
+    // transformer, cache and enumerationCache may be null
+    public BatchRunner(
+        List<BatchManifest.Job> jobs,
+        int threadCount,
+        int hostConnections,
+        TileTransformer transformer,
+        int transformThreads,
+        HttpTileCache cache,
+        EnumerationCache enumerationCache,
+        CancellationToken cancellation)
+    {
+        this.jobs = jobs;
+        this.threadCount = threadCount;
+        this.hostConnections = hostConnections;
+        this.transformer = transformer;
+        this.transformThreads = transformThreads;
+        this.cache = cache;
+        this.enumerationCache = enumerationCache;
+        this.cancellation = cancellation;
+    }
+
+    // One report per job in manifest order
+    public List<JobReport> run() {
+        Map<String, Region> regions = new HashMap<>();
+        Map<String, String> regionErrors = new HashMap<>();
+        Map<String, Integer> regionUsers = new HashMap<>();
+        Map<String, Semaphore> hostPermits = new HashMap<>();
+        for (BatchManifest.Job job : jobs) {
+            regionUsers.merge(job.region, 1, Integer::sum);
+            if (!regions.containsKey(job.region) && !regionErrors.containsKey(job.region)) {
+                try {
+                    regions.put(job.region, Region.fromString(job.region));
+                } catch (Exception e) {
+                    regionErrors.put(job.region, "Invalid region: " + e.getMessage());
+                }
+            }
+            hostPermits.computeIfAbsent(getHost(job.url), host -> new Semaphore(hostConnections, true));
+        }
+        // A stored enumeration cache is worth using for every job, a memory one only for shared regions
+        EnumerationCache jobEnumerationCache = enumerationCache != null ? enumerationCache : new EnumerationCache();
+
+        int parallelJobs = Math.min(jobs.size(), threadCount);
+        int jobThreads = Math.max(1, threadCount / parallelJobs);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        ExecutorService transformExecutor = transformer != null ? Executors.newFixedThreadPool(transformThreads) : null;
+        ExecutorService jobExecutor = Executors.newFixedThreadPool(parallelJobs);
+
+        List<Future<JobReport>> futures = new ArrayList<>();
+        for (BatchManifest.Job job : jobs) {
+            futures.add(jobExecutor.submit(() -> {
+                long start = System.nanoTime();
+                if (regionErrors.containsKey(job.region)) {
+                    return JobReport.failed(job, regionErrors.get(job.region), start);
+                }
+
+                Region region = regions.get(job.region);
+                return runJob(job, region, start, db -> Downloader.builder(db)
+                    .region(region)
+                    .tileUrl(job.url)
+                    .threads(jobThreads)
+                    .failsFile(job.getFailsFile())
+                    .transformer(transformer, transformThreads)
+                    .cache(cache)
+                    .cancellation(cancellation)
+                    .executor(executor)
+                    .transformExecutor(transformExecutor)
+                    .requestPermits(hostPermits.get(getHost(job.url)))
+                    .enumerationCache(enumerationCache != null || regionUsers.get(job.region) > 1 ? jobEnumerationCache : null)
+                    .listener(new DownloadListener() {
+                        @Override
+                        public void taskStarted(String taskName, int tiles) {
+                            LOGGER.info("{}: {}, {} tiles", job.name, taskName, tiles);
+                        }
+                    })
+                    .build());
+            }));
+        }
+
+        List<JobReport> reports = new ArrayList<>();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    reports.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    LOGGER.error("Job {} failed", jobs.get(i).name, e.getCause());
+                    reports.add(new JobReport(jobs.get(i).name, jobs.get(i).db, "failed: " + e.getCause().getMessage(), 0, 0, 0, 0));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            jobExecutor.shutdown();
+            executor.shutdown();
+            if (transformExecutor != null) {
+                transformExecutor.shutdown();
+            }
+        }
+        return reports;
+    }
+
+    private JobReport runJob(BatchManifest.Job job, Region region, long start, Function<TileDB, Downloader> downloaderFactory) {
+        if (cancellation.isCancelled()) {
+            return new JobReport(job.name, job.db, "cancelled", 0, 0, 0, 0);
+        }
+
+        TileDB db;
+        try {
+            db = TileDB.open(job.db);
+            db.init();
+            if (db.needsAdvancedInit()) {
+                db.advancedInit(job.startZoom, job.endZoom, region);
+            }
+        } catch (Exception e) {
+            LOGGER.error("{}: Failed to open database {}", job.name, job.db, e);
+            return JobReport.failed(job, "Failed to open database: " + e.getMessage(), start);
+        }
+        if (!db.isConnected()) {
+            db.close();
+            return JobReport.failed(job, "Failed to connect to database", start);
+        }
+
+        Downloader downloader = downloaderFactory.apply(db);
+        try {
+            LOGGER.info("{}: Downloading zoom {} to {} into {}", job.name, job.startZoom, job.endZoom, job.db);
+            downloader.start(job.startZoom, job.endZoom, job.override);
+        } finally {
+            downloader.closeFails();
+            db.close();
+        }
+
+        return new JobReport(
+            job.name,
+            job.db,
+            cancellation.isCancelled() ? "cancelled" : "finished",
+            downloader.downloadedTileCount.get(),
+            downloader.notModifiedTileCount.get(),
+            downloader.failedTileCount.get(),
+            (System.nanoTime() - start) / 1e9
+        );
+    }
+
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    public record JobReport(
+        String name,
+        String db,
+        String status,
+        int downloadedTiles,
+        int notModifiedTiles,
+        int failedTiles,
+        double seconds)
+    {
+        static JobReport failed(BatchManifest.Job job, String reason, long startNanos) {
+            return new JobReport(job.name, job.db, "failed: " + reason, 0, 0, 0, (System.nanoTime() - startNanos) / 1e9);
+        }
+    }
+}
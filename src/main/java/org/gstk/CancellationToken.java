@@ -0,0 +1,17 @@
+package org.gstk;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Stops a running job: no new tiles are started, tiles already in flight are still written.
+// One token can be shared by several jobs to cancel them together.
+public final class CancellationToken {
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+}
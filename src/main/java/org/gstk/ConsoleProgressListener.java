@@ -0,0 +1,48 @@
+package org.gstk;
+
+import me.tongfei.progressbar.ProgressBar;
+import me.tongfei.progressbar.ProgressBarBuilder;
+import me.tongfei.progressbar.ProgressBarStyle;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+
+// Console progress bar per download, merge, conversion or overview task, for the command line
+class ConsoleProgressListener implements DownloadListener, ProgressListener {
+    private volatile ProgressBar pb = null;
+
+    @Override
+    public void taskStarted(String taskName, int tiles) {
+        taskStarted(taskName, (long) tiles);
+    }
+
+    @Override
+    public void taskStarted(String taskName, long tiles) {
+        pb = new ProgressBarBuilder()
+            .setTaskName(taskName)
+            .setInitialMax(tiles)
+            .setStyle(ProgressBarStyle.ASCII)
+            .setMaxRenderedLength(120)
+            .build();
+    }
+
+    @Override
+    public void tileStored(TileData tile) {
+        pb.step();
+    }
+
+    @Override
+    public void tileNotModified(TilePosition pos) {
+        pb.step();
+    }
+
+    @Override
+    public void tilesProcessed(long tiles) {
+        pb.stepBy(tiles);
+    }
+
+    @Override
+    public void taskFinished(String taskName) {
+        pb.close();
+        pb = null;
+    }
+}
@@ -5,4 +5,13 @@ public class Constants {
 
     public static final int TILE_DOWNLOAD_ATTEMPTS = 15;
     public static final int DOWNLOAD_RETRY_DELAY_MS = 2000;
+
+    public static final int WRITE_BATCH_SIZE = 512;
+
+    public static final long TILE_CACHE_SIZE_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_CACHE_SIZE_MB = 1024;
+
+    public static final int DEFAULT_REFRESH_MAX_AGE_DAYS = 30;
+
+    public static final long SHUTDOWN_TIMEOUT_MS = 60_000;
 }
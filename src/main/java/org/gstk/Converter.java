@@ -0,0 +1,203 @@
+package org.gstk;
+
+import org.gstk.db.TileDB;
+import org.gstk.utils.ImageUtils;
+import org.gstk.utils.TileUtils;
+import org.gstk.utils.TileUtils.TileData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Converter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Converter.class);
+
+    private static final Batch END_OF_ZOOM = new Batch(0, CompletableFuture.completedFuture(null));
+
+    private final TileDB source;
+    private final TileDB target;
+    private final int threadCount;
+    private final boolean reencode;
+    private final CancellationToken cancellation;
+    private final ProgressListener listener;
+
+    public final AtomicLong convertedTileCount = new AtomicLong(0);
+    public final AtomicLong failedTileCount = new AtomicLong(0);
+
+    // listener may be null
+    public Converter(
+        TileDB source,
+        TileDB target,
+        int threadCount,
+        boolean reencode,
+        CancellationToken cancellation,
+        ProgressListener listener)
+    {
+        this.source = source;
+        this.target = target;
+        this.threadCount = threadCount;
+        this.reencode = reencode;
+        this.cancellation = cancellation;
+        this.listener = listener != null ? listener : new ProgressListener() {};
+    }
+
+    public void start() throws Exception {
+        List<Integer> zooms = source.getZoomLevels();
+        if (zooms.isEmpty()) {
+            LOGGER.info("Source database has no tiles");
+            return;
+        }
+
+        int minZoom = zooms.get(0);
+        int maxZoom = zooms.get(zooms.size() - 1);
+
+        // Tile matrices and bounds of the target are derived from what the source actually contains
+        target.init();
+        if (target.needsAdvancedInit()) {
+            TileDB.TileRange range = source.getTileRange(maxZoom);
+            Region region = Region.fromEnvelope(TileUtils.tileRangeToEnvelope(
+                maxZoom,
+                range.minColumn(),
+                range.minRow(),
+                range.maxColumn(),
+                range.maxRow()
+            ));
+            target.advancedInit(minZoom, maxZoom, region);
+        }
+
+        ExecutorService executor = reencode && threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+        try {
+            for (int zoom : zooms) {
+                if (cancellation.isCancelled()) return;
+                convertZoom(zoom, executor);
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private void convertZoom(int zoom, ExecutorService executor) throws Exception {
+        TileDB.TileRange range = source.getTileRange(zoom);
+        if (range == null) {
+            return;
+        }
+
+        // Batches are queued in key order, re-encoding may run ahead in parallel but writes keep the order
+        BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(Math.max(2, threadCount * 2));
+
+        String taskName = "Zoom " + zoom;
+        listener.taskStarted(taskName, range.count());
+        try {
+            Thread writer = new Thread(() -> {
+                try {
+                    while (true) {
+                        Batch queued = batches.take();
+                        if (queued == END_OF_ZOOM) {
+                            return;
+                        }
+
+                        List<TileData> batch;
+                        try {
+                            batch = queued.tiles().get();
+                        } catch (ExecutionException e) {
+                            LOGGER.error("Failed to re-encode tile batch", e.getCause());
+                            failedTileCount.addAndGet(queued.size());
+                            listener.tilesProcessed(queued.size());
+                            continue;
+                        }
+                        writeBatch(batch);
+                        listener.tilesProcessed(batch.size());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "Tile-Writer");
+            writer.start();
+
+            List<List<TileData>> pending = new ArrayList<>(1);
+            pending.add(new ArrayList<>(Constants.WRITE_BATCH_SIZE));
+            try {
+                source.scanTiles(zoom, tile -> {
+                    if (cancellation.isCancelled()) {
+                        throw new CancellationException();
+                    }
+
+                    List<TileData> batch = pending.get(0);
+                    batch.add(tile);
+                    if (batch.size() >= Constants.WRITE_BATCH_SIZE) {
+                        batches.put(submit(batch, executor));
+                        pending.set(0, new ArrayList<>(Constants.WRITE_BATCH_SIZE));
+                    }
+                });
+                if (!pending.get(0).isEmpty()) {
+                    batches.put(submit(pending.get(0), executor));
+                }
+            } catch (CancellationException ignored) {
+                batches.clear();
+            } finally {
+                batches.put(END_OF_ZOOM);
+                writer.join();
+            }
+        } finally {
+            listener.taskFinished(taskName);
+        }
+    }
+
+    private Batch submit(List<TileData> batch, ExecutorService executor) {
+        if (!reencode) {
+            return new Batch(batch.size(), CompletableFuture.completedFuture(batch));
+        }
+        if (executor == null) {
+            FutureTask<List<TileData>> task = new FutureTask<>(() -> reencodeBatch(batch));
+            task.run();
+            return new Batch(batch.size(), task);
+        }
+        return new Batch(batch.size(), executor.submit(() -> reencodeBatch(batch)));
+    }
+
+    private List<TileData> reencodeBatch(List<TileData> batch) {
+        List<TileData> result = new ArrayList<>(batch.size());
+        for (TileData tile : batch) {
+            if (ImageUtils.isPng(tile.data())) {
+                result.add(tile);
+                continue;
+            }
+
+            byte[] png = ImageUtils.convertBytesToPng(tile.data());
+            if (png != null) {
+                result.add(new TileData(tile.pos(), png));
+            } else {
+                LOGGER.warn("Unable to convert non-png tile at {} to png", tile.pos());
+                result.add(tile);
+            }
+        }
+        return result;
+    }
+
+    private void writeBatch(List<TileData> batch) {
+        try {
+            target.storeTiles(batch);
+            convertedTileCount.addAndGet(batch.size());
+            return;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to write tile batch, retrying tiles one by one", e);
+        }
+
+        for (TileData tile : batch) {
+            try {
+                target.storeTile(tile);
+                convertedTileCount.incrementAndGet();
+            } catch (Exception e) {
+                LOGGER.error("Failed to write tile {}", tile.pos(), e);
+                failedTileCount.incrementAndGet();
+            }
+        }
+    }
+
+    private record Batch(int size, Future<List<TileData>> tiles) {}
+}
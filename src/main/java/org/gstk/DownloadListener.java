@@ -0,0 +1,19 @@
+package org.gstk;
+
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+
+// Progress callbacks of a Downloader. A task is one zoom level (or one tile URL of a repair);
+// tile callbacks come from the writer and download threads, so implementations must be thread safe.
+public interface DownloadListener {
+    default void taskStarted(String taskName, int tiles) {}
+
+    default void tileStored(TileData tile) {}
+
+    // The server answered a --refresh request with 304, the stored tile was kept
+    default void tileNotModified(TilePosition pos) {}
+
+    default void tileFailed(TilePosition pos, FailedTiles.FailType type, Exception e) {}
+
+    default void taskFinished(String taskName) {}
+}
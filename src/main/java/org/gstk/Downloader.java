@@ -1,49 +1,77 @@
 package org.gstk;
 
 import jakarta.xml.bind.JAXBException;
-import me.tongfei.progressbar.ProgressBar;
-import me.tongfei.progressbar.ProgressBarBuilder;
-import me.tongfei.progressbar.ProgressBarStyle;
+import org.gstk.cache.HttpTileCache;
 import org.gstk.db.TileDB;
+import org.gstk.jfr.EnumerationEvent;
+import org.gstk.metrics.Metrics;
+import org.gstk.utils.TileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
 
 import static org.gstk.utils.TileUtils.*;
 
+// Embeddable download job: the caller owns the database (opened and closed outside) and optionally the executors,
+// so several jobs can run in one process. Build with Downloader.builder(db).
 public class Downloader {
     private static final Logger LOGGER = LoggerFactory.getLogger(Downloader.class);
 
-    public static final AtomicBoolean killFlag = new AtomicBoolean(false);
-
     private final TileDB db;
     private final Region region;
     private final String tileUrl;
     private final int threadCount;
+    private final TileTransformer transformer;
+    private final int transformThreads;
+    private final HttpTileCache cache;
+    private final long refreshMaxAgeMillis;
+    private final CancellationToken cancellation;
+    private final DownloadListener listener;
+    private final ExecutorService sharedExecutor;
+    private final ExecutorService sharedTransformExecutor;
+    private final EnumerationCache enumerationCache;
+    private final Semaphore requestPermits;
+    private final int partitionIndex;
+    private final int partitionCount;
     public FailedTiles fails;
 
     public final AtomicInteger downloadedTileCount = new AtomicInteger(0);
     public final AtomicInteger failedTileCount = new AtomicInteger(0);
+    public final AtomicInteger notModifiedTileCount = new AtomicInteger(0);
 
-    public Downloader(TileDB db, Region region, String tileUrl, int threadCount, File failedDownloadsFile) {
-        this.db = db;
-        this.region = region;
-        this.tileUrl = tileUrl;
-        this.threadCount = threadCount;
+    private Downloader(Builder builder) {
+        this.db = builder.db;
+        this.region = builder.region;
+        this.tileUrl = builder.tileUrl;
+        this.threadCount = builder.threadCount;
+        this.transformer = builder.transformer;
+        this.transformThreads = builder.transformThreads;
+        this.cache = builder.cache;
+        this.refreshMaxAgeMillis = builder.refreshMaxAgeMillis;
+        this.cancellation = builder.cancellation;
+        this.listener = builder.listener;
+        this.sharedExecutor = builder.executor;
+        this.sharedTransformExecutor = builder.transformExecutor;
+        this.enumerationCache = builder.enumerationCache;
+        this.requestPermits = builder.requestPermits;
+        this.partitionIndex = builder.partitionIndex;
+        this.partitionCount = builder.partitionCount;
 
+        File failedDownloadsFile = builder.failsFile;
         fails = null;
         if (failedDownloadsFile != null) {
             try {
                 fails = new FailedTiles(failedDownloadsFile);
-            } catch (JAXBException e) {
+            } catch (IOException | JAXBException e) {
                 LOGGER.error(
                     "Failed to read {} for failed tile downloads",
                     failedDownloadsFile.getName(),
@@ -53,16 +81,51 @@ public class Downloader {
         }
     }
 
+    public static Builder builder(TileDB db) {
+        return new Builder(db);
+    }
+
     public void start(int startZoom, int endZoom, boolean override) {
+        if (region == null || tileUrl == null) {
+            throw new IllegalStateException("Downloading needs a region and a tile URL");
+        }
+        boolean refresh = refreshMaxAgeMillis >= 0;
+        String job = db.supportsProgress() ? jobId(override, refresh) : null;
+
         for (int zoom = startZoom; zoom <= endZoom; zoom++) {
-            List<TilePosition> tiles = new ArrayList<>(findTilesInRegion(region, zoom));
-            if (!override) {
+            if (cancellation.isCancelled()) return;
+
+            // Sliced before anything depends on the database, so every machine computes the same slices
+            List<TilePosition> tiles = partition(enumerate(zoom), partitionIndex, partitionCount);
+
+            List<TileDB.ProgressRange> progress = List.of();
+            if (job != null) {
+                try {
+                    progress = db.getProgress(job, zoom);
+                } catch (Exception e) {
+                    LOGGER.error("Failed to read download progress of zoom level {}", zoom, e);
+                }
+            }
+
+            Map<Long, TileDB.Freshness> validators = new HashMap<>();
+            if (refresh) {
+                tiles = staleTiles(zoom, tiles, validators);
+            }
+
+            if (!progress.isEmpty()) {
+                List<TileDB.ProgressRange> ranges = progress;
+                tiles.removeIf(tile -> isFinished(ranges, hilbertTileId(tile)));
+                LOGGER.info("Resuming zoom level {}, {} tiles left", zoom, tiles.size());
+            } else if (!override && !refresh) {
                 tiles.removeIf(tile -> {
+                    long checkStart = System.nanoTime();
                     try {
                         return db.doesTileExist(tile);
                     } catch (Exception e) {
                         LOGGER.error("Failed to check if tile {} exists, assuming it does not exist", tile, e);
                         return false;
+                    } finally {
+                        Metrics.record(Metrics.Stage.EXISTENCE_CHECK, checkStart);
                     }
                 });
             }
@@ -70,145 +133,439 @@ public class Downloader {
                 LOGGER.info("Skipping zoom level {}, no tiles need to be downloaded", zoom);
                 continue;
             }
-            List<List<TilePosition>> tileChunks = tilesToChunks(tiles);
 
-            BlockingQueue<TileData> tilesToWrite = new LinkedBlockingQueue<>(tiles.size());
-            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            download("Zoom " + zoom, tiles, tileUrl, job, false, validators);
+        }
+
+        if (job != null && !cancellation.isCancelled()) {
+            // Progress is only needed to resume an interrupted run, a finished run starts over like before
+            try {
+                db.clearProgress(job);
+            } catch (Exception e) {
+                LOGGER.warn("Failed to clear download progress", e);
+            }
+        }
+    }
+
+    // Tiles fetched more than the max age ago or without freshness (stored before it was recorded),
+    // the validators of the stale tiles that have them are added to validators.
+    // Both the tiles and the stored freshness are in Hilbert order, so they are matched in one pass.
+    private List<TilePosition> staleTiles(int zoom, List<TilePosition> tiles, Map<Long, TileDB.Freshness> validators) {
+        long fetchedAfter = System.currentTimeMillis() - refreshMaxAgeMillis;
+        BitSet fresh = new BitSet(tiles.size());
+        int[] next = {0};
+        try {
+            db.scanFreshness(zoom, entry -> {
+                while (next[0] < tiles.size() && hilbertTileId(tiles.get(next[0])) < entry.id()) {
+                    next[0]++;
+                }
+                if (next[0] == tiles.size() || hilbertTileId(tiles.get(next[0])) != entry.id()) {
+                    return;
+                }
+                if (entry.fetchedMillis() > fetchedAfter) {
+                    fresh.set(next[0]);
+                } else if (entry.etag() != null || entry.lastModified() != null) {
+                    validators.put(entry.id(), entry);
+                }
+            });
+        } catch (Exception e) {
+            LOGGER.error("Failed to read tile freshness of zoom level {}, refreshing all tiles", zoom, e);
+            validators.clear();
+            return tiles;
+        }
+
+        List<TilePosition> stale = new ArrayList<>(tiles.size() - fresh.cardinality());
+        for (int i = fresh.nextClearBit(0); i < tiles.size(); i = fresh.nextClearBit(i + 1)) {
+            stale.add(tiles.get(i));
+        }
+        return stale;
+    }
+
+    public void repair() {
+        if (fails == null) {
+            LOGGER.info("No fails file specified, canceling repair");
+            return;
+        }
+
+        // The journal holds one entry per (url, z, x, y), entries are grouped by tile URL for the download pipeline
+        Map<String, List<TilePosition>> tilesByUrl = new LinkedHashMap<>();
+        for (FailedTiles.Fail fail : fails.getFails()) {
+            tilesByUrl.computeIfAbsent(fail.url, url -> new ArrayList<>()).add(new TilePosition(fail.x, fail.y, fail.zoom));
+        }
+
+        int failedTiles = fails.size();
+        if (failedTiles == 0) {
+            LOGGER.info("No failed tile downloads to fix");
+            return;
+        }
+
+        int group = 1;
+        for (Map.Entry<String, List<TilePosition>> entry : tilesByUrl.entrySet()) {
+            if (cancellation.isCancelled()) return;
+
+            String taskName = tilesByUrl.size() > 1
+                ? "Re-downloading tiles (" + group++ + "/" + tilesByUrl.size() + ")"
+                : "Re-downloading tiles";
+            download(taskName, entry.getValue(), entry.getKey(), null, true, Map.of());
+        }
+        if (cancellation.isCancelled()) return;
+
+        int fixedTiles = downloadedTileCount.get();
+        if (fixedTiles < failedTiles) {
+            LOGGER.warn("{} tiles failed to re-download", failedTiles - fixedTiles);
+        }
+        LOGGER.info("Finished re-downloading {}/{} failed tile entries", fixedTiles, failedTiles);
+        if (fails.isEmpty()) {
+            LOGGER.info("All failed tile entries were fixed and removed from {}", fails.file.getName());
+        }
+    }
+
+    // Downloads tiles with threadCount threads while a single thread writes them to the database in batches.
+    // With a progress job, each batch also commits how far every chunk got, failed tiles count as finished
+    // since they are in the fails file. Termination stops new downloads and drains the tiles already downloaded.
+    // Tiles with an entry in validators are requested conditionally.
+    private void download(
+        String taskName,
+        List<TilePosition> tiles,
+        String url,
+        String job,
+        boolean repair,
+        Map<Long, TileDB.Freshness> validators)
+    {
+        List<List<TilePosition>> tileChunks = tilesToChunks(tiles);
+        int zoom = tiles.get(0).zoom();
+
+        List<ChunkProgress> chunkProgress = new ArrayList<>(tileChunks.size());
+        for (List<TilePosition> chunk : tileChunks) {
+            chunkProgress.add(new ChunkProgress(chunk));
+        }
+        if (job != null) {
+            try {
+                db.setProgress(new TileDB.Progress(job, zoom, chunkProgress.stream().map(ChunkProgress::range).filter(r -> r.end() >= r.start()).toList()));
+            } catch (Exception e) {
+                LOGGER.error("Failed to store download progress of zoom level {}, continuing without it", zoom, e);
+                job = null;
+            }
+        }
+        String progressJob = job;
+        boolean recordFreshness = db.supportsFreshness();
+        // A refresh must not be answered with cached tiles older than its max age
+        long cachedAfterMillis = refreshMaxAgeMillis >= 0 ? System.currentTimeMillis() - refreshMaxAgeMillis : 0;
+
+        BlockingQueue<QueuedTile> tilesToWrite = new LinkedBlockingQueue<>(tiles.size());
+        ExecutorService executor = sharedExecutor != null ? sharedExecutor : Executors.newFixedThreadPool(threadCount);
+        // CPU bound png work gets its own threads so it doesn't hold up downloads
+        ExecutorService transformExecutor = transformer == null ? null
+            : sharedTransformExecutor != null ? sharedTransformExecutor : Executors.newFixedThreadPool(transformThreads);
+        IntSupplier queueDepth = tilesToWrite::size;
+        Metrics.addWriterQueue(queueDepth);
+
+        // Chunk and transform tasks that can still queue tiles, shared executors can't be awaited by termination.
+        // Tasks put their tiles before they count down, so the writer sees them once the count is 0.
+        AtomicInteger pending = new AtomicInteger(tileChunks.size());
+
+        listener.taskStarted(taskName, tiles.size());
+        Thread consumer = new Thread(() -> {
+            try {
+                List<QueuedTile> batch = new ArrayList<>(Constants.WRITE_BATCH_SIZE);
+                while (pending.get() > 0 || !tilesToWrite.isEmpty()) {
+                    QueuedTile queued = tilesToWrite.poll(100, TimeUnit.MILLISECONDS);
+                    if (queued == null) {
+                        continue;
+                    }
 
-            final int currentZoom = zoom;
-            Thread consumer = new Thread(() -> {
+                    batch.add(queued);
+                    tilesToWrite.drainTo(batch, Constants.WRITE_BATCH_SIZE - 1);
+                    writeBatch(batch, chunkProgress, progressJob, zoom, url, repair);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "Tile-Writer");
+        consumer.start();
+
+        for (int i = 0; i < tileChunks.size(); i++) {
+            final int chunkIndex = i;
+            final List<TilePosition> chunk = new ArrayList<>(tileChunks.get(i));
+            submit(executor, pending, () -> {
                 try {
-                    int totalTiles = tiles.size();
-                    try (ProgressBar pb = new ProgressBarBuilder()
-                        .setTaskName("Zoom " + currentZoom)
-                        .setInitialMax(totalTiles)
-                        .setStyle(ProgressBarStyle.ASCII)
-                        .setMaxRenderedLength(120)
-                        .build())
-                    {
-                        while (!executor.isTerminated() || !tilesToWrite.isEmpty()) {
-                            if (killFlag.get()) return;
-                            TileData tile = tilesToWrite.poll(100, TimeUnit.MILLISECONDS);
-                            if (tile != null) {
-                                try {
-                                    db.storeTile(tile);
-                                    pb.step();
-                                    downloadedTileCount.incrementAndGet();
-                                } catch (Exception e) {
-                                    logFailedTile(tile.pos(), FailedTiles.FailType.WRITE, e);
-                                }
+                    for (int t = 0; t < chunk.size(); t++) {
+                        if (cancellation.isCancelled()) return;
+                        int index = t;
+                        TilePosition pos = chunk.get(index);
+                        long id = hilbertTileId(pos);
+                        TileDB.Freshness validator = validators.get(id);
+                        try {
+                            TileResponse response = fetchTileWithRetries(
+                                pos,
+                                url,
+                                validator != null ? validator.etag() : null,
+                                validator != null ? validator.lastModified() : null,
+                                Constants.TILE_DOWNLOAD_ATTEMPTS,
+                                Constants.DOWNLOAD_RETRY_DELAY_MS,
+                                cache,
+                                cachedAfterMillis,
+                                requestPermits
+                            );
+                            TileDB.Freshness freshness = recordFreshness
+                                ? new TileDB.Freshness(id, response.fetchedMillis(), response.etag(), response.lastModified())
+                                : null;
+                            if (response.notModified()) {
+                                tilesToWrite.put(new QueuedTile(chunkIndex, index, id, null, freshness, true, System.nanoTime()));
+                            } else if (transformExecutor != null) {
+                                pending.incrementAndGet();
+                                submit(transformExecutor, pending, () -> {
+                                    TileData transformed;
+                                    try {
+                                        transformed = transformer.transform(response.tile());
+                                    } catch (RuntimeException e) {
+                                        // Every downloaded tile must reach the writer, or its chunk's progress stops at it
+                                        LOGGER.warn("Failed to transform tile at {}, storing it unchanged", pos, e);
+                                        transformed = response.tile();
+                                    }
+                                    tilesToWrite.add(new QueuedTile(chunkIndex, index, id, transformed, freshness, false, System.nanoTime()));
+                                });
+                            } else {
+                                tilesToWrite.put(new QueuedTile(chunkIndex, index, id, response.tile(), freshness, false, System.nanoTime()));
                             }
+                        } catch (IOException e) {
+                            logFailedTile(pos, url, FailedTiles.FailType.DOWNLOAD, e);
+                            tilesToWrite.put(new QueuedTile(chunkIndex, index, id, null, null, false, System.nanoTime()));
                         }
                     }
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                 }
-            }, "Tile-Writer");
-            consumer.start();
+            });
+        }
 
-            for (List<TilePosition> c : tileChunks) {
-                final List<TilePosition> chunk = new ArrayList<>(c);
-                executor.submit(() -> {
-                    try {
-                        for (TilePosition pos : chunk) {
-                            if (killFlag.get()) return;
-                            try {
-                                TileData tile = downloadTileWithRetries(
-                                    pos,
-                                    tileUrl,
-                                    Constants.TILE_DOWNLOAD_ATTEMPTS,
-                                    Constants.DOWNLOAD_RETRY_DELAY_MS
-                                );
-                                tilesToWrite.put(tile);
-                            } catch (IOException e) {
-                                logFailedTile(pos, FailedTiles.FailType.DOWNLOAD, e);
-                            }
-                        }
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                });
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Metrics.removeWriterQueue(queueDepth);
+            if (executor != sharedExecutor) {
+                executor.shutdown();
             }
+            if (transformExecutor != null && transformExecutor != sharedTransformExecutor) {
+                transformExecutor.shutdown();
+            }
+            listener.taskFinished(taskName);
+        }
+    }
 
-            try {
-                executor.shutdown();
-                if (!executor.awaitTermination(31, TimeUnit.DAYS)) {
-                    throw new IllegalStateException("Downloader threads did not terminate within 31 days");
-                }
-                consumer.join();
-                if (killFlag.get()) {
-                    db.close();
-                    System.exit(0);
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+    // Hilbert order keeps every chunk spatially close and lets progress be stored as one watermark per chunk
+    private List<TilePosition> enumerate(int zoom) {
+        EnumerationEvent enumerationEvent = new EnumerationEvent();
+        enumerationEvent.begin();
+        long enumerateStart = System.nanoTime();
+        List<TilePosition> tiles;
+        if (enumerationCache != null) {
+            EnumerationCache.TileIds ids = enumerationCache.get(region, zoom);
+            tiles = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                tiles.add(hilbertTileIdToPosition(ids.get(i)));
             }
+        } else {
+            tiles = new ArrayList<>(findTilesInRegion(region, zoom));
+            tiles.sort(Comparator.comparingLong(TileUtils::hilbertTileId));
+        }
+        Metrics.record(Metrics.Stage.ENUMERATE, enumerateStart);
+        if (enumerationEvent.shouldCommit()) {
+            enumerationEvent.zoom = zoom;
+            enumerationEvent.tiles = tiles.size();
+            enumerationEvent.commit();
         }
+        return tiles;
     }
 
-    public void repair() {
-        if (fails == null) {
-            LOGGER.info("No fails file specified, canceling repair");
-            return;
+    // Contiguous slice index (0 based) of count slices with equal tile counts, ordered tiles give spatially compact slices
+    static <T> List<T> partition(List<T> tiles, int index, int count) {
+        if (count == 1) {
+            return tiles;
+        }
+        int start = (int) ((long) tiles.size() * index / count);
+        int end = (int) ((long) tiles.size() * (index + 1) / count);
+        return new ArrayList<>(tiles.subList(start, end));
+    }
+
+    // Counts the task down when it ends, or right away if the executor was shut down by its owner
+    private static void submit(ExecutorService executor, AtomicInteger pending, Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    pending.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Download task was rejected by its executor", e);
+            pending.decrementAndGet();
         }
+    }
 
-        int failedTiles = fails.fails.fails.size();
-        int fixedTiles = 0;
+    private void writeBatch(
+        List<QueuedTile> batch,
+        List<ChunkProgress> chunkProgress,
+        String job,
+        int zoom,
+        String url,
+        boolean repair)
+    {
+        List<TileData> tiles = new ArrayList<>(batch.size());
+        List<TileDB.Freshness> freshness = new ArrayList<>(batch.size());
+        List<TileDB.Freshness> notModified = new ArrayList<>();
+        SortedSet<Integer> advanced = new TreeSet<>();
+        boolean hasFailures = false;
+        for (QueuedTile queued : batch) {
+            Metrics.record(Metrics.Stage.QUEUE_WAIT, queued.queuedNanos());
+            if (queued.tile() != null) {
+                tiles.add(queued.tile());
+            } else if (queued.notModified()) {
+                // Only the fetch time changes, the stored tile is left alone
+                notModifiedTileCount.incrementAndGet();
+                listener.tileNotModified(hilbertTileIdToPosition(queued.id()));
+            } else {
+                hasFailures = true;
+            }
+            if (queued.freshness() != null) {
+                (queued.notModified() ? notModified : freshness).add(queued.freshness());
+            }
+            if (chunkProgress.get(queued.chunk()).finish(queued.index())) {
+                advanced.add(queued.chunk());
+            }
+        }
+
+        TileDB.Progress progress = null;
+        if (job != null) {
+            List<TileDB.ProgressRange> updated = new ArrayList<>(advanced.size());
+            for (int chunk : advanced) {
+                updated.add(chunkProgress.get(chunk).range());
+            }
+            progress = new TileDB.Progress(job, zoom, updated);
 
-        try (ProgressBar pb = new ProgressBarBuilder()
-            .setTaskName("Re-downloading tiles")
-            .setInitialMax(failedTiles)
-            .setStyle(ProgressBarStyle.ASCII)
-            .setMaxRenderedLength(120)
-            .build())
-        {
-            for (FailedTiles.Fail fail : fails.fails.fails) {
-                if (killFlag.get()) return;
-                TilePosition pos = new TilePosition(fail.x, fail.y, fail.zoom);
+            // Failed tiles are only skipped on resume once their fails file entries are written
+            if (hasFailures && fails != null) {
                 try {
-                    TileData tile = downloadTileWithRetries(
-                        pos,
-                        fail.url,
-                        Constants.TILE_DOWNLOAD_ATTEMPTS,
-                        Constants.DOWNLOAD_RETRY_DELAY_MS
-                    );
-                    db.storeTile(tile);
-                    pb.step();
-                    fixedTiles++;
+                    fails.flush();
                 } catch (IOException e) {
-                    LOGGER.error("Failed to re-download tile {}", pos, e);
-                } catch (SQLException e) {
-                    LOGGER.error("Failed to write tile {} to database", pos, e);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                } catch (Exception e) {
-                    LOGGER.error("Unknown tile error", e);
+                    LOGGER.error("Failed to write to {} for failed tile downloads", fails.file.getName(), e);
                 }
             }
         }
 
-        if (killFlag.get()) {
-            db.close();
-            System.exit(0);
+        try {
+            long writeStart = System.nanoTime();
+            List<TileDB.Freshness> batchFreshness = new ArrayList<>(freshness);
+            batchFreshness.addAll(notModified);
+            db.storeTiles(tiles, progress, batchFreshness);
+            Metrics.record(Metrics.Stage.DB_WRITE, writeStart);
+            Metrics.tilesWritten(tiles.size());
+            for (TileData tile : tiles) {
+                tileStored(tile, url, repair);
+            }
+            return;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to write tile batch, retrying tiles one by one", e);
         }
 
-        if (fixedTiles < failedTiles) {
-            LOGGER.warn("{} tiles failed to re-download", failedTiles - fixedTiles);
+        for (int i = 0; i < tiles.size(); i++) {
+            TileData tile = tiles.get(i);
+            try {
+                long writeStart = System.nanoTime();
+                // Freshness entries line up with the tiles when recorded, else the list is empty
+                db.storeTiles(List.of(tile), null, freshness.isEmpty() ? null : List.of(freshness.get(i)));
+                Metrics.record(Metrics.Stage.DB_WRITE, writeStart);
+                Metrics.tilesWritten(1);
+                tileStored(tile, url, repair);
+            } catch (Exception e) {
+                logFailedTile(tile.pos(), url, FailedTiles.FailType.WRITE, e);
+            }
+        }
+        if (progress != null || !notModified.isEmpty()) {
+            try {
+                if (fails != null) {
+                    fails.flush();
+                }
+                db.storeTiles(List.of(), progress, notModified);
+            } catch (Exception e) {
+                LOGGER.error("Failed to store download progress of zoom level {}", zoom, e);
+            }
+        }
+    }
+
+    private void tileStored(TileData tile, String url, boolean repair) {
+        downloadedTileCount.incrementAndGet();
+        listener.tileStored(tile);
+        if (repair) {
+            try {
+                fails.removeFailedTile(tile.pos().zoom(), tile.pos().x(), tile.pos().y(), url);
+            } catch (IOException e) {
+                LOGGER.error("Failed to remove fixed tile {} from {}", tile.pos(), fails.file.getName(), e);
+            }
+        }
+    }
+
+    // Tiles outside the job's ranges were finished (or already existed) before the ranges were stored
+    private static boolean isFinished(List<TileDB.ProgressRange> ranges, long id) {
+        int low = 0;
+        int high = ranges.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            TileDB.ProgressRange range = ranges.get(mid);
+            if (id < range.start()) {
+                high = mid - 1;
+            } else if (id > range.end()) {
+                low = mid + 1;
+            } else {
+                return id <= range.done();
+            }
+        }
+        return true;
+    }
+
+    // Identifies a download by what it downloads, so progress is only resumed by the same region and tile URL
+    private String jobId(boolean override, boolean refresh) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(region.polygons().toText().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            digest.update(tileUrl.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) (override ? 1 : 0));
+            if (refresh) {
+                digest.update((byte) 'r');
+            }
+            if (partitionCount > 1) {
+                digest.update((partitionIndex + "/" + partitionCount).getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest(), 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void closeFails() {
+        if (fails != null) {
+            try {
+                fails.close();
+            } catch (IOException e) {
+                LOGGER.error("Failed to write to {} for failed tile downloads", fails.file.getName(), e);
+            }
         }
-        LOGGER.info("Finished re-downloading {}/{} failed tile entries", fixedTiles, failedTiles);
-        LOGGER.info("You can remove the failed tile entries by deleting {}", fails.file.getName());
     }
 
-    private synchronized void logFailedTile(TilePosition pos, FailedTiles.FailType type, Exception e) {
+    private void logFailedTile(TilePosition pos, String url, FailedTiles.FailType type, Exception e) {
         LOGGER.error("Failed to {} tile {}", type.name, pos, e);
         failedTileCount.incrementAndGet();
+        listener.tileFailed(pos, type, e);
 
-        if (fails != null && !killFlag.get()) {
-            fails.addFailedTile(pos.zoom(), pos.x(), pos.y(), type, tileUrl);
+        if (fails != null) {
             try {
-                fails.write();
-            } catch (JAXBException ex) {
+                fails.addFailedTile(pos.zoom(), pos.x(), pos.y(), type, url);
+            } catch (IOException ex) {
                 LOGGER.error("Failed to write to {} for failed tile downloads", fails.file.getName(), ex);
             }
         }
@@ -236,4 +593,152 @@ public class Downloader {
         }
         return tileChunks;
     }
+
+    public static class Builder {
+        private final TileDB db;
+        private Region region = null;
+        private String tileUrl = null;
+        private int threadCount = 4;
+        private File failsFile = null;
+        private TileTransformer transformer = null;
+        private int transformThreads = 1;
+        private HttpTileCache cache = null;
+        private long refreshMaxAgeMillis = -1;
+        private CancellationToken cancellation = new CancellationToken();
+        private DownloadListener listener = new DownloadListener() {};
+        private ExecutorService executor = null;
+        private ExecutorService transformExecutor = null;
+        private EnumerationCache enumerationCache = null;
+        private Semaphore requestPermits = null;
+        private int partitionIndex = 0;
+        private int partitionCount = 1;
+
+        private Builder(TileDB db) {
+            this.db = db;
+        }
+
+        // Region and tile URL are needed by start(), repair() takes the URLs from the fails file
+        public Builder region(Region region) {
+            this.region = region;
+            return this;
+        }
+
+        public Builder tileUrl(String tileUrl) {
+            this.tileUrl = tileUrl;
+            return this;
+        }
+
+        // Parallel downloads, also the number of chunks a zoom level is split into
+        public Builder threads(int threadCount) {
+            this.threadCount = threadCount;
+            return this;
+        }
+
+        public Builder failsFile(File failsFile) {
+            this.failsFile = failsFile;
+            return this;
+        }
+
+        // Runs downloaded tiles through the transformer on its own threads before they are written,
+        // without a transformer tiles are stored as downloaded
+        public Builder transformer(TileTransformer transformer, int threads) {
+            this.transformer = transformer;
+            this.transformThreads = threads;
+            return this;
+        }
+
+        public Builder cache(HttpTileCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        // Re-requests stored tiles fetched more than maxAgeMillis ago instead of skipping existing tiles,
+        // with their ETag/Last-Modified so unchanged tiles come back as 304 and aren't rewritten
+        public Builder refresh(long maxAgeMillis) {
+            this.refreshMaxAgeMillis = maxAgeMillis;
+            return this;
+        }
+
+        public Builder cancellation(CancellationToken cancellation) {
+            this.cancellation = cancellation;
+            return this;
+        }
+
+        public Builder listener(DownloadListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        // Executors shared between jobs, they are not shut down by the downloader.
+        // Without them every zoom level gets its own thread pools.
+        public Builder executor(ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder transformExecutor(ExecutorService transformExecutor) {
+            this.transformExecutor = transformExecutor;
+            return this;
+        }
+
+        // Reuses the tiles of regions that other jobs already enumerated
+        public Builder enumerationCache(EnumerationCache enumerationCache) {
+            this.enumerationCache = enumerationCache;
+            return this;
+        }
+
+        // Held for every tile request attempt (not between retries), a fair semaphore shared by the jobs of one host
+        // splits its connections evenly
+        public Builder requestPermits(Semaphore requestPermits) {
+            this.requestPermits = requestPermits;
+            return this;
+        }
+
+        // Downloads only slice index (0 based) of count slices of every zoom level, for splitting a download across machines
+        public Builder partition(int index, int count) {
+            if (count < 1 || index < 0 || index >= count) {
+                throw new IllegalArgumentException("Invalid partition " + index + " of " + count);
+            }
+            this.partitionIndex = index;
+            this.partitionCount = count;
+            return this;
+        }
+
+        public Downloader build() {
+            return new Downloader(this);
+        }
+    }
+
+    // A downloaded tile, a tile answered with 304, or a failed download when tile is null and notModified is false.
+    // freshness is null if the database doesn't record it
+    // index is the tile's position in its chunk
+    private record QueuedTile(int chunk, int index, long id, TileData tile, TileDB.Freshness freshness, boolean notModified, long queuedNanos) {}
+
+    // Tiles of a chunk are downloaded in order but transforms can finish out of order,
+    // so the watermark only covers the prefix of the chunk whose tiles were all written or failed
+    private static class ChunkProgress {
+        private final List<TilePosition> tiles;
+        private final BitSet finished = new BitSet();
+        private final long start;
+        private final long end;
+        private int prefix = 0;
+
+        ChunkProgress(List<TilePosition> tiles) {
+            this.tiles = tiles;
+            this.start = tiles.isEmpty() ? 0 : hilbertTileId(tiles.get(0));
+            this.end = tiles.isEmpty() ? -1 : hilbertTileId(tiles.get(tiles.size() - 1));
+        }
+
+        // true if the watermark moved
+        boolean finish(int index) {
+            finished.set(index);
+            int previous = prefix;
+            prefix = finished.nextClearBit(prefix);
+            return prefix != previous;
+        }
+
+        TileDB.ProgressRange range() {
+            return new TileDB.ProgressRange(start, end, prefix == 0 ? start - 1 : hilbertTileId(tiles.get(prefix - 1)));
+        }
+    }
 }
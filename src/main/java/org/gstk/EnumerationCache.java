@@ -0,0 +1,200 @@
+package org.gstk;
+
+import org.gstk.utils.TileUtils;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+// Tiles of a region per zoom level as sorted Hilbert tile ids, shared by download jobs over the same region.
+// Each region and zoom level is enumerated once, concurrent requests wait for the first one.
+// With a directory, enumerations are also stored on disk keyed by the region's SHA-256 and the zoom level,
+// so later runs over the same region read them instead of enumerating again.
+public class EnumerationCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnumerationCache.class);
+
+    private static final int MAGIC = 0x47454E31; // GEN1
+    // Increase when findTilesInRegion or the Hilbert tile ids change, files of other versions are enumerated again
+    private static final int ENUMERATION_VERSION = 1;
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+    // Ids relative to the zoom level's first id fit 32 bits up to zoom 16
+    private static final int MAX_INT_KEY_ZOOM = 16;
+
+    private final Path dir;
+    private final Map<Key, FutureTask<TileIds>> enumerations = new ConcurrentHashMap<>();
+
+    public EnumerationCache() {
+        this.dir = null;
+    }
+
+    public EnumerationCache(File dir) throws IOException {
+        this.dir = dir.toPath();
+        Files.createDirectories(this.dir);
+    }
+
+    public TileIds get(Region region, int zoom) {
+        Key key = new Key(region, zoom);
+        FutureTask<TileIds> task = new FutureTask<>(() -> load(region, zoom));
+        FutureTask<TileIds> existing = enumerations.putIfAbsent(key, task);
+        if (existing == null) {
+            task.run();
+            existing = task;
+        }
+
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for tile enumeration", e);
+        } catch (ExecutionException e) {
+            enumerations.remove(key, existing);
+            throw e.getCause() instanceof RuntimeException runtime ? runtime : new IllegalStateException(e.getCause());
+        } finally {
+            // Stored enumerations are read from disk again instead of being kept in memory
+            if (dir != null && existing.isDone()) {
+                enumerations.remove(key, existing);
+            }
+        }
+    }
+
+    private TileIds load(Region region, int zoom) {
+        if (dir == null) {
+            return new TileIds(enumerate(region, zoom));
+        }
+
+        Path file = dir.resolve(regionHash(region) + "-" + zoom + ".tiles");
+        TileIds stored = read(file, zoom);
+        if (stored != null) {
+            LOGGER.debug("Read {} tiles of zoom level {} from {}", stored.size(), zoom, file);
+            return stored;
+        }
+
+        long[] ids = enumerate(region, zoom);
+        try {
+            write(file, zoom, ids);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to store tile enumeration {}", file, e);
+        }
+        return new TileIds(ids);
+    }
+
+    static long[] enumerate(Region region, int zoom) {
+        Set<TilePosition> tiles = TileUtils.findTilesInRegion(region, zoom);
+        long[] ids = new long[tiles.size()];
+        int i = 0;
+        for (TilePosition tile : tiles) {
+            ids[i++] = TileUtils.hilbertTileId(tile);
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    // Ids are read from the mapped file, which stays mapped while they are used.
+    // null if the file is missing, of another enumeration version or not a complete enumeration of the zoom level
+    static TileIds read(Path file, int zoom) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != ENUMERATION_VERSION || buffer.getInt() != zoom) {
+                return null;
+            }
+            int count = buffer.getInt();
+            if (count < 0 || buffer.remaining() != (long) count * keyBytes(zoom)) {
+                return null;
+            }
+
+            long start = TileUtils.zoomTileIdStart(zoom);
+            return keyBytes(zoom) == Integer.BYTES
+                ? new TileIds(start, buffer.asIntBuffer(), null)
+                : new TileIds(start, null, buffer.asLongBuffer());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.debug("Failed to read tile enumeration {}", file, e);
+            return null;
+        }
+    }
+
+    // ids must be sorted, the file is written next to its final name and moved into place
+    static void write(Path file, int zoom, long[] ids) throws IOException {
+        long start = TileUtils.zoomTileIdStart(zoom);
+        Path temp = Files.createTempFile(file.getParent(), "enumeration-", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(ENUMERATION_VERSION);
+                out.writeInt(zoom);
+                out.writeInt(ids.length);
+                for (long id : ids) {
+                    if (keyBytes(zoom) == Integer.BYTES) {
+                        out.writeInt((int) (id - start));
+                    } else {
+                        out.writeLong(id - start);
+                    }
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static int keyBytes(int zoom) {
+        return zoom <= MAX_INT_KEY_ZOOM ? Integer.BYTES : Long.BYTES;
+    }
+
+    private static String regionHash(Region region) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(region.polygons().toText().getBytes(StandardCharsets.UTF_8)), 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record Key(Region region, int zoom) {}
+
+    // Sorted Hilbert tile ids of a region at one zoom level, either in memory or as keys of a mapped file
+    public static final class TileIds {
+        private final long start;
+        private final IntBuffer intKeys;
+        private final LongBuffer longKeys;
+
+        TileIds(long[] ids) {
+            this(0, null, LongBuffer.wrap(ids));
+        }
+
+        private TileIds(long start, IntBuffer intKeys, LongBuffer longKeys) {
+            this.start = start;
+            this.intKeys = intKeys;
+            this.longKeys = longKeys;
+        }
+
+        public int size() {
+            return intKeys != null ? intKeys.limit() : longKeys.limit();
+        }
+
+        // Absolute reads, so jobs sharing an enumeration can read it at the same time
+        public long get(int index) {
+            return start + (intKeys != null ? Integer.toUnsignedLong(intKeys.get(index)) : longKeys.get(index));
+        }
+    }
+}
@@ -2,31 +2,79 @@ package org.gstk;
 
 import jakarta.xml.bind.JAXBContext;
 import jakarta.xml.bind.JAXBException;
-import jakarta.xml.bind.Marshaller;
 import jakarta.xml.bind.Unmarshaller;
 import jakarta.xml.bind.annotation.XmlAccessType;
 import jakarta.xml.bind.annotation.XmlAccessorType;
 import jakarta.xml.bind.annotation.XmlElement;
 import jakarta.xml.bind.annotation.XmlRootElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.File;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Failed tile downloads are kept in an append-only journal: one line per added or removed entry.
+// The journal is compacted into a snapshot of the live entries once it grows well past them.
+public class FailedTiles implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FailedTiles.class);
+
+    private static final String HEADER = "# gstk failed tiles v1";
+    private static final int MIN_COMPACT_RECORDS = 1024;
+    private static final long FLUSH_INTERVAL_MS = 1000;
 
-public class FailedTiles {
     public final File file;
-    public Fails fails;
 
-    public FailedTiles(File file) throws JAXBException {
-        this.file = file;
+    private final Map<Key, Fail> fails = new LinkedHashMap<>();
+    private Writer journal = null;
+    private long journalRecords = 0;
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Fails-Flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FailedTiles(File file) throws IOException, JAXBException {
+        this.file = journalFile(file);
 
-        fails = new Fails();
-        fails.fails = new ArrayList<>();
-        read();
+        if (!this.file.equals(file) && !this.file.exists()) {
+            LOGGER.info("Converting XML fails file {} to journal {}, the XML file is left unchanged", file.getName(), this.file.getName());
+            for (Fail fail : readXml(file)) {
+                fails.put(Key.of(fail), fail);
+            }
+            compact();
+        } else if (this.file.exists() && !read()) {
+            compact();
+        }
+
+        flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
-    public void addFailedTile(int zoom, int x, int y, FailType type, String url) {
+    // XML fails files of older versions stay readable by them, their entries go to a journal next to them
+    public static File journalFile(File file) throws IOException {
+        if (!file.exists() || !isXml(file)) {
+            return file;
+        }
+
+        String name = file.getName();
+        if (name.toLowerCase(Locale.ROOT).endsWith(".xml")) {
+            name = name.substring(0, name.length() - ".xml".length());
+        }
+        return new File(file.getAbsoluteFile().getParentFile(), name + ".log");
+    }
+
+    public synchronized void addFailedTile(int zoom, int x, int y, FailType type, String url) throws IOException {
         Fail fail = new Fail();
         fail.timestamp = LocalDateTime.now().toString();
         fail.zoom = zoom;
@@ -35,24 +83,161 @@ public class FailedTiles {
         fail.type = type.name;
         fail.url = url;
 
-        fails.fails.add(fail);
+        fails.remove(Key.of(fail));
+        fails.put(Key.of(fail), fail);
+        append(String.join("\t", "+", fail.timestamp, String.valueOf(zoom), String.valueOf(x), String.valueOf(y), fail.type, url));
+    }
+
+    public synchronized void removeFailedTile(int zoom, int x, int y, String url) throws IOException {
+        if (fails.remove(new Key(url, zoom, x, y)) != null) {
+            append(String.join("\t", "-", String.valueOf(zoom), String.valueOf(x), String.valueOf(y), url));
+        }
+    }
+
+    public void removeFailedTile(Fail fail) throws IOException {
+        removeFailedTile(fail.zoom, fail.x, fail.y, fail.url);
+    }
+
+    public synchronized List<Fail> getFails() {
+        return new ArrayList<>(fails.values());
+    }
+
+    public synchronized int size() {
+        return fails.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return fails.isEmpty();
+    }
+
+    public synchronized void flush() throws IOException {
+        if (journal != null) {
+            journal.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flusher.shutdownNow();
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        if (journalRecords > fails.size()) {
+            compact();
+        }
+    }
+
+    private void append(String record) throws IOException {
+        if (journal == null) {
+            boolean created = !file.exists() || file.length() == 0;
+            journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            if (created) {
+                journal.write(HEADER + "\n");
+            }
+        }
+
+        journal.write(record);
+        journal.write('\n');
+        journalRecords++;
+
+        if (journalRecords >= MIN_COMPACT_RECORDS && journalRecords > 2L * fails.size()) {
+            journal.close();
+            journal = null;
+            compact();
+        }
+    }
+
+    private synchronized void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            LOGGER.error("Failed to write to {} for failed tile downloads", file.getName(), e);
+        }
+    }
+
+    // Replays the journal, returns false if it ended in a partially written record (e.g. after a crash)
+    private boolean read() throws IOException {
+        String content = Files.readString(file.toPath(), StandardCharsets.UTF_8);
+        boolean complete = content.isEmpty() || content.endsWith("\n");
+        if (!complete) {
+            LOGGER.warn("Dropping partially written last entry of {}", file.getName());
+            content = content.substring(0, content.lastIndexOf('\n') + 1);
+        }
+
+        for (String line : content.split("\n")) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            journalRecords++;
+
+            String[] parts = line.split("\t", -1);
+            try {
+                if (parts[0].equals("+") && parts.length == 7) {
+                    Fail fail = new Fail();
+                    fail.timestamp = parts[1];
+                    fail.zoom = Integer.parseInt(parts[2]);
+                    fail.x = Integer.parseInt(parts[3]);
+                    fail.y = Integer.parseInt(parts[4]);
+                    fail.type = parts[5];
+                    fail.url = parts[6];
+                    fails.remove(Key.of(fail));
+                    fails.put(Key.of(fail), fail);
+                } else if (parts[0].equals("-") && parts.length == 5) {
+                    fails.remove(new Key(parts[4], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3])));
+                } else {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Skipping invalid entry in {}: {}", file.getName(), line);
+            }
+        }
+        return complete;
+    }
+
+    // Writes the live entries to a new file and atomically replaces the journal with it
+    private void compact() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)))
+        {
+            writer.write(HEADER + "\n");
+            for (Fail fail : fails.values()) {
+                writer.write(String.join("\t", "+", fail.timestamp, String.valueOf(fail.zoom), String.valueOf(fail.x), String.valueOf(fail.y), fail.type, fail.url));
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journalRecords = fails.size();
+    }
+
+    private static boolean isXml(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            int c;
+            do {
+                c = reader.read();
+            } while (c != -1 && (Character.isWhitespace(c) || c == '\uFEFF'));
+            return c == '<';
+        }
     }
 
-    public void write() throws JAXBException {
+    private static List<Fail> readXml(File file) throws JAXBException {
         JAXBContext context = JAXBContext.newInstance(Fails.class);
-        Marshaller marshaller = context.createMarshaller();
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-        marshaller.marshal(fails, file);
+        Unmarshaller unmarshaller = context.createUnmarshaller();
+        Fails xml = (Fails) unmarshaller.unmarshal(file);
+        return xml.fails != null ? xml.fails : List.of();
     }
 
-    private void read() throws JAXBException {
-        if (file.exists()) {
-            JAXBContext context = JAXBContext.newInstance(Fails.class);
-            Unmarshaller unmarshaller = context.createUnmarshaller();
-            this.fails = (Fails) unmarshaller.unmarshal(file);
+    private record Key(String url, int zoom, int x, int y) {
+        static Key of(Fail fail) {
+            return new Key(fail.url, fail.zoom, fail.x, fail.y);
         }
     }
 
+    // Format of fails files before the journal, only read to import them
     @XmlRootElement(name="fails")
     @XmlAccessorType(XmlAccessType.FIELD)
     public static class Fails {
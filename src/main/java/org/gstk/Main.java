@@ -4,35 +4,55 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
+import org.gstk.cache.HttpTileCache;
+import org.gstk.db.ShardedTileDB;
 import org.gstk.db.TileDB;
+import org.gstk.jfr.JfrRecording;
+import org.gstk.metrics.Metrics;
+import org.gstk.metrics.MetricsServer;
+import org.gstk.utils.ImageUtils;
+import org.gstk.utils.TileFormat;
 import org.gstk.utils.TileUtils;
+import org.gstk.utils.TileUtils.TilePosition;
 import org.gstk.utils.ValidationUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Main {
     private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
 
     public static final AtomicBoolean normalExit = new AtomicBoolean(false);
+    // Cancelled by the shutdown hook, shared by every job the command line runs
+    private static final CancellationToken cancellation = new CancellationToken();
+    private static final CountDownLatch finished = new CountDownLatch(1);
 
     public static void main(String[] args) {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             if (!normalExit.get()) {
-                if (!Downloader.killFlag.get()) {
+                if (!cancellation.isCancelled()) {
                     System.out.println("Terminating program early...");
 
                     // Don't print anything while cleaning up
                     System.setOut(new PrintStream(OutputStream.nullOutputStream()));
                     System.setErr(new PrintStream(OutputStream.nullOutputStream()));
 
-                    Downloader.killFlag.set(true);
+                    // Running jobs stop taking new work and write out what is in flight before main returns
+                    cancellation.cancel();
                     try {
-                        Thread.sleep(4000);
+                        finished.await(Constants.SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                     }
@@ -67,20 +87,33 @@ public class Main {
                 }
             }
 
+            if (cmd.hasOption("jfr")) {
+                startJfr(cmd.getOptionValue("jfr"));
+            }
+
             if (cmd.hasOption("d")) {
                 processDownload(cmd);
             } else if (cmd.hasOption("f")) {
                 processFix(cmd);
             } else if (cmd.hasOption("tile-count")) {
                 processTileCount(cmd);
+            } else if (cmd.hasOption("serve")) {
+                processServe(cmd);
+            } else if (cmd.hasOption("convert")) {
+                processConvert(cmd);
+            } else if (cmd.hasOption("merge")) {
+                processMerge(cmd);
+            } else if (cmd.hasOption("batch")) {
+                processBatch(cmd);
             } else {
-                logErrorAndExit("No option specified ( (-d, --download), (-f, --fix), (--tile-count) )", true);
+                logErrorAndExit("No option specified ( (-d, --download), (-f, --fix), (--tile-count), (--serve), (--convert), (--merge), (--batch) )", true);
             }
         } catch (Exception e) {
             logErrorAndExit("{}", false, e.getMessage());
         }
 
-        normalExit.set(!Downloader.killFlag.get());
+        normalExit.set(!cancellation.isCancelled());
+        finished.countDown();
     }
 
     private static void printHelp(Options options) {
@@ -91,19 +124,41 @@ public class Main {
             Options:
               -h, --help          %s
               -V, --version       %s
+              --jfr               %s
 
             Mutually exclusive:
               -d, --download      %s
               -f, --fix           %s
               --tile-count        %s
+              --serve             %s
+              --convert           %s
+              --merge             %s
+              --batch             %s
 
             Download (-d, --download) options:
               -D  --db            %s
               -r, --region        %s
+              --previous-region   %s
+              --delete-removed    %s
               -u, --url           %s
               -F, --fails-file    %s
               -o, --override      %s
+              --refresh           %s
+              --max-age           %s
               -t, --threads       %s
+              --host-connections  %s
+              --shards            %s
+              --shard             %s
+              --overviews         %s
+              --format            %s
+              --png-optimize      %s
+              --png-colors        %s
+              --png-deflate       %s
+              --transform-threads %s
+              --cache-dir         %s
+              --cache-size        %s
+              --enumeration-cache %s
+              --metrics-port      %s
 
               -s, --start-zoom    %s
               -e, --end-zoom      %s
@@ -111,31 +166,125 @@ public class Main {
             Fix (-f, --fix) options:
               -F, --fails-file    %s
               -D, --db            %s
+              -t, --threads       %s
+              --format            %s
+              --png-optimize      %s
+              --png-colors        %s
+              --png-deflate       %s
+              --transform-threads %s
+              --cache-dir         %s
+              --cache-size        %s
+              --metrics-port      %s
 
             Tile count (--tile-count) options:
               -r, --region        %s
+              --enumeration-cache %s
 
               -s, --start-zoom    %s
               -e, --end-zoom      %s
+
+            Serve (--serve) options:
+              -D, --db            %s
+              -t, --threads       %s
+              --bind              %s
+              --port              %s
+
+            Convert (--convert) options:
+              --source            %s
+              -D, --db            %s
+              -t, --threads       %s
+              --reencode          %s
+
+            Merge (--merge) options:
+              --source            %s
+              -D, --db            %s
+              --conflict          %s
+
+            Batch (--batch) options:
+              -t, --threads       %s
+              --host-connections  %s
+              --format            %s
+              --png-optimize      %s
+              --png-colors        %s
+              --png-deflate       %s
+              --transform-threads %s
+              --cache-dir         %s
+              --cache-size        %s
+              --enumeration-cache %s
+              --metrics-port      %s
             """,
             options.getOption("h").getDescription(),
             options.getOption("V").getDescription(),
+            options.getOption("jfr").getDescription(),
             options.getOption("d").getDescription(),
             options.getOption("f").getDescription(),
             options.getOption("tile-count").getDescription(),
+            options.getOption("serve").getDescription(),
+            options.getOption("convert").getDescription(),
+            options.getOption("merge").getDescription(),
+            options.getOption("batch").getDescription(),
             options.getOption("D").getDescription(),
             options.getOption("r").getDescription(),
+            options.getOption("previous-region").getDescription(),
+            options.getOption("delete-removed").getDescription(),
             options.getOption("u").getDescription(),
             options.getOption("F").getDescription(),
             options.getOption("o").getDescription(),
+            options.getOption("refresh").getDescription(),
+            options.getOption("max-age").getDescription(),
             options.getOption("t").getDescription(),
+            options.getOption("host-connections").getDescription(),
+            options.getOption("shards").getDescription(),
+            options.getOption("shard").getDescription(),
+            options.getOption("overviews").getDescription(),
+            options.getOption("format").getDescription(),
+            options.getOption("png-optimize").getDescription(),
+            options.getOption("png-colors").getDescription(),
+            options.getOption("png-deflate").getDescription(),
+            options.getOption("transform-threads").getDescription(),
+            options.getOption("cache-dir").getDescription(),
+            options.getOption("cache-size").getDescription(),
+            options.getOption("enumeration-cache").getDescription(),
+            options.getOption("metrics-port").getDescription(),
             options.getOption("s").getDescription(),
             options.getOption("e").getDescription(),
             options.getOption("F").getDescription(),
             options.getOption("D").getDescription(),
+            options.getOption("t").getDescription(),
+            options.getOption("format").getDescription(),
+            options.getOption("png-optimize").getDescription(),
+            options.getOption("png-colors").getDescription(),
+            options.getOption("png-deflate").getDescription(),
+            options.getOption("transform-threads").getDescription(),
+            options.getOption("cache-dir").getDescription(),
+            options.getOption("cache-size").getDescription(),
+            options.getOption("metrics-port").getDescription(),
             options.getOption("r").getDescription(),
+            options.getOption("enumeration-cache").getDescription(),
             options.getOption("s").getDescription(),
-            options.getOption("e").getDescription()
+            options.getOption("e").getDescription(),
+            "Existing database to serve tiles from, opened read-only (format: gpkg:<layer>@<file>, mbtiles:<file>, archive:<file>)",
+            "Thread count for handling requests (default: 4)",
+            options.getOption("bind").getDescription(),
+            options.getOption("port").getDescription(),
+            options.getOption("source").getDescription(),
+            options.getOption("D").getDescription(),
+            options.getOption("t").getDescription(),
+            options.getOption("reencode").getDescription(),
+            options.getOption("source").getDescription(),
+            options.getOption("D").getDescription(),
+            options.getOption("conflict").getDescription(),
+            options.getOption("t").getDescription(),
+            options.getOption("host-connections").getDescription(),
+            options.getOption("format").getDescription(),
+            options.getOption("png-optimize").getDescription(),
+            options.getOption("png-colors").getDescription(),
+            options.getOption("png-deflate").getDescription(),
+            options.getOption("transform-threads").getDescription(),
+            options.getOption("cache-dir").getDescription(),
+            options.getOption("cache-size").getDescription(),
+            options.getOption("enumeration-cache").getDescription(),
+            options.getOption("metrics-port").getDescription()
         );
     }
 
@@ -155,9 +304,15 @@ public class Main {
             logErrorAndExit("Missing required zoom level options (-s, --start-zoom and -e, --end-zoom)", true);
         }
 
+        if (cmd.getOptionValues("u").length > 1 || cmd.getOptionValues("D").length > 1) {
+            processLayerDownload(cmd);
+            return;
+        }
+
         String dbId = cmd.getOptionValue("D");
         String url;
         boolean override = cmd.hasOption("o");
+        boolean refresh = cmd.hasOption("refresh");
         int threads = 4;
         int startZoom = Integer.parseInt(cmd.getOptionValue("s"));
         int endZoom = Integer.parseInt(cmd.getOptionValue("e"));
@@ -172,23 +327,43 @@ public class Main {
             return;
         }
 
+        // With a previous region only the grown area is downloaded, null if the region didn't grow
+        Region previousRegion = null;
+        Region downloadRegion = region;
+        if (cmd.hasOption("previous-region")) {
+            try {
+                previousRegion = Region.fromString(cmd.getOptionValue("previous-region"));
+            } catch (Exception e) {
+                logErrorAndExit("Invalid previous region: {}", false, e.getMessage());
+                return;
+            }
+            if (refresh) {
+                logErrorAndExit("--previous-region can't be used with --refresh", true);
+            }
+            downloadRegion = region.difference(previousRegion);
+        } else if (cmd.hasOption("delete-removed")) {
+            logErrorAndExit("--delete-removed needs --previous-region", true);
+        }
+
         if (!ValidationUtils.isValidTileUrl(url = cmd.getOptionValue("u"))) {
             logErrorAndExit("Invalid tile URL", true);
         }
 
         if (cmd.hasOption("t")) {
-            try {
-                threads = Integer.parseInt(cmd.getOptionValue("t"));
-                if (threads < 1) {
-                    throw new NumberFormatException();
-                }
-                if (threads > Runtime.getRuntime().availableProcessors()) {
-                    LOGGER.warn("Thread count is greater than the number of available processors, lowering -t, --threads equal to or below {} is recommended",
-                        Runtime.getRuntime().availableProcessors());
-                }
-            } catch (NumberFormatException e) {
-                logErrorAndExit("Invalid thread count", true);
-            }
+            threads = getThreadCount(cmd);
+        }
+
+        if (refresh && override) {
+            logErrorAndExit("--refresh can't be used with -o, --override", true);
+        }
+        int maxAgeDays = cmd.hasOption("max-age")
+            ? getIntOption(cmd, "max-age", 0, Integer.MAX_VALUE)
+            : Constants.DEFAULT_REFRESH_MAX_AGE_DAYS;
+
+        int[] partition = getPartition(cmd);
+        if (partition[1] > 1 && cmd.hasOption("overviews")) {
+            // Overview tiles on slice borders need child tiles from other machines
+            logErrorAndExit("--shard can't be used with --overviews, build overviews after merging the slices", true);
         }
 
         LOGGER.info("Opening database {}", dbId);
@@ -211,26 +386,203 @@ public class Main {
             logErrorAndExit("Failed to connect to database", false);
         }
 
+        if (cmd.hasOption("shards")) {
+            int shards = 0;
+            try {
+                shards = Integer.parseInt(cmd.getOptionValue("shards"));
+                if (shards < 1) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                logErrorAndExit("Invalid shard count", true);
+            }
+
+            try {
+                db = new ShardedTileDB(db, shards);
+            } catch (TileDB.InitException e) {
+                logErrorAndExit("Failed to create database shards", false, e);
+            }
+        }
+
+        if (refresh && !db.supportsFreshness()) {
+            logErrorAndExit("--refresh needs a gpkg or mbtiles database without --shards", true);
+        }
+        if (cmd.hasOption("delete-removed") && !db.supportsDelete()) {
+            logErrorAndExit("--delete-removed needs a gpkg or mbtiles database without --shards", true);
+        }
+
         File failsFile = getFailsFile(cmd, false);
-        Downloader downloader = new Downloader(db, region, url, threads, failsFile);
+        TileTransformer transformer = getTransformer(cmd);
+        Downloader downloader = Downloader.builder(db)
+            .region(downloadRegion)
+            .tileUrl(url)
+            .threads(threads)
+            .failsFile(failsFile)
+            .transformer(transformer, getTransformThreads(cmd))
+            .cache(getCache(cmd))
+            .enumerationCache(getEnumerationCache(cmd))
+            .refresh(refresh ? maxAgeDays * 86_400_000L : -1)
+            .partition(partition[0], partition[1])
+            .cancellation(cancellation)
+            .listener(new ConsoleProgressListener())
+            .build();
+        boolean overviews = cmd.hasOption("overviews");
 
-        LOGGER.info("Beginning download...");
-        downloader.start(startZoom, endZoom, override);
-        db.close();
+        MetricsServer metricsServer = startMetrics(cmd);
+
+        if (partition[1] > 1) {
+            LOGGER.info("Downloading slice {}/{} of every zoom level", partition[0] + 1, partition[1]);
+        }
+        if (downloadRegion != null) {
+            LOGGER.info("Beginning download...");
+            downloader.start(overviews ? endZoom : startZoom, endZoom, override);
+        } else {
+            LOGGER.info("Region has no area outside the previous region, no new tiles to download");
+        }
+        downloader.closeFails();
+
+        OverviewBuilder overviewBuilder = null;
+        if (overviews && downloadRegion != null && startZoom < endZoom && !cancellation.isCancelled()) {
+            if (db instanceof ShardedTileDB) {
+                // Sharded tiles are only readable once they are merged
+                closeDatabase(db);
+                try {
+                    db = TileDB.open(dbId);
+                    db.init();
+                } catch (Exception e) {
+                    logErrorAndExit("Failed to reopen database", false, e);
+                }
+            }
+
+            // Parents on the old region's border already exist but gained children, so the grown area is rebuilt
+            LOGGER.info("Building overviews...");
+            overviewBuilder = new OverviewBuilder(
+                db,
+                downloadRegion,
+                getTransformThreads(cmd),
+                override || previousRegion != null,
+                transformer,
+                cancellation,
+                new ConsoleProgressListener()
+            );
+            overviewBuilder.build(startZoom, endZoom);
+        }
+        if (cmd.hasOption("delete-removed") && !cancellation.isCancelled()) {
+            deleteRemovedTiles(db, previousRegion, region, startZoom, endZoom);
+        }
+        closeDatabase(db);
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
 
         LOGGER.info("Finished downloading {} tiles", downloader.downloadedTileCount.get());
         LOGGER.info("New failed tile downloads: {}", downloader.failedTileCount.get());
+        if (refresh) {
+            LOGGER.info("Unchanged tiles: {}", downloader.notModifiedTileCount.get());
+        }
+        if (overviewBuilder != null) {
+            LOGGER.info("Built {} overview tiles, {} failed", overviewBuilder.builtTileCount.get(), overviewBuilder.failedTileCount.get());
+        }
         if (downloader.fails != null) {
-            LOGGER.info("Total failed tile downloads: {}", downloader.fails.fails.fails.size());
+            LOGGER.info("Total failed tile downloads: {}", downloader.fails.size());
         }
-        if ((downloader.fails != null && !downloader.fails.fails.fails.isEmpty()) ||
+        if ((downloader.fails != null && !downloader.fails.isEmpty()) ||
             downloader.failedTileCount.get() > 0)
         {
             LOGGER.info("To repair failed tile downloads, run java -jar ... --fix --db {}", dbId);
-            LOGGER.info("Failed tile download data is stored in {}", failsFile.getName());
+            LOGGER.info("Failed tile download data is stored in {}", downloader.fails != null ? downloader.fails.file.getName() : failsFile.getName());
         }
     }
 
+    private static void closeDatabase(TileDB db) {
+        try {
+            db.close();
+        } catch (ShardedTileDB.MergeException e) {
+            logErrorAndExit("Failed to merge database shards: {}", false, e.getMessage());
+        }
+    }
+
+    private static void deleteRemovedTiles(TileDB db, Region previousRegion, Region region, int startZoom, int endZoom) {
+        Region removed = previousRegion.difference(region);
+        if (removed == null) {
+            LOGGER.info("Previous region has no area outside the region, no tiles to delete");
+            return;
+        }
+
+        LOGGER.info("Deleting tiles outside the region...");
+        long deleted = 0;
+        try {
+            for (int zoom = startZoom; zoom <= endZoom && !cancellation.isCancelled(); zoom++) {
+                List<TilePosition> tiles = new ArrayList<>(TileUtils.findTilesOutsideRegion(removed, region, zoom));
+                for (int i = 0; i < tiles.size(); i += Constants.WRITE_BATCH_SIZE) {
+                    deleted += db.deleteTiles(tiles.subList(i, Math.min(i + Constants.WRITE_BATCH_SIZE, tiles.size())));
+                }
+            }
+        } catch (Exception e) {
+            logErrorAndExit("Failed to delete tiles outside the region", false, e);
+        }
+        LOGGER.info("Deleted {} tiles outside the region", deleted);
+    }
+
+    // Several -u, --url and -D, --db pairs over one region, run like a batch so the layers share the
+    // enumeration and download threads while every layer keeps its own writer and fails file
+    private static void processLayerDownload(CommandLine cmd) {
+        String[] urls = cmd.getOptionValues("u");
+        String[] dbIds = cmd.getOptionValues("D");
+        String[] failsFiles = cmd.getOptionValues("F");
+        if (urls.length != dbIds.length) {
+            logErrorAndExit("Every -u, --url needs its own -D, --db", true);
+        }
+        if (failsFiles != null && failsFiles.length != urls.length) {
+            logErrorAndExit("-F, --fails-file must be given once per layer or not at all", true);
+        }
+        if (cmd.hasOption("shards") || cmd.hasOption("shard") || cmd.hasOption("overviews") || cmd.hasOption("refresh") ||
+            cmd.hasOption("previous-region"))
+        {
+            logErrorAndExit("--shards, --shard, --overviews, --refresh and --previous-region can only be used with a single layer", true);
+        }
+
+        BatchManifest manifest = new BatchManifest();
+        for (int i = 0; i < urls.length; i++) {
+            BatchManifest.Job job = new BatchManifest.Job();
+            job.name = "layer" + (i + 1);
+            job.region = cmd.getOptionValue("r");
+            job.url = urls[i];
+            job.db = dbIds[i];
+            job.startZoom = Integer.parseInt(cmd.getOptionValue("s"));
+            job.endZoom = Integer.parseInt(cmd.getOptionValue("e"));
+            job.override = cmd.hasOption("o");
+            job.failsFile = failsFiles != null ? failsFiles[i] : null;
+            manifest.jobs.add(job);
+        }
+        try {
+            manifest.validate();
+        } catch (BatchManifest.InvalidManifestException e) {
+            logErrorAndExit("Invalid layers: {}", true, e.getMessage());
+        }
+
+        int threads = cmd.hasOption("t") ? getThreadCount(cmd) : 4;
+        BatchRunner runner = new BatchRunner(
+            manifest.jobs,
+            threads,
+            cmd.hasOption("host-connections") ? getIntOption(cmd, "host-connections", 1, Integer.MAX_VALUE) : threads,
+            getTransformer(cmd),
+            getTransformThreads(cmd),
+            getCache(cmd),
+            getEnumerationCache(cmd),
+            cancellation
+        );
+
+        MetricsServer metricsServer = startMetrics(cmd);
+
+        LOGGER.info("Downloading {} layers...", manifest.jobs.size());
+        List<BatchRunner.JobReport> reports = runner.run();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        logJobReports(reports);
+    }
+
     private static void processFix(CommandLine cmd) {
         if (!cmd.hasOption("D")) {
             logErrorAndExit("Missing required database argument -D, --db", true);
@@ -238,16 +590,43 @@ public class Main {
 
         File failsFile = getFailsFile(cmd, true);
         String dbId = cmd.getOptionValue("D");
+        int threads = cmd.hasOption("t") ? getThreadCount(cmd) : 4;
 
+        TileDB db = null;
         try {
-            TileDB db = TileDB.open(dbId);
-            Downloader downloader = new Downloader(db, null, null, 1, failsFile);
-
-            LOGGER.info("Starting repair...");
-            downloader.repair();
+            db = openRepairTarget(dbId);
         } catch (TileDB.InitException e) {
             logErrorAndExit("Failed to open database {}", false, dbId, e);
+        } catch (Exception e) {
+            logErrorAndExit("Failed to initialize database {}", false, dbId, e);
         }
+        assert db != null;
+
+        Downloader downloader = Downloader.builder(db)
+            .threads(threads)
+            .failsFile(failsFile)
+            .transformer(getTransformer(cmd), getTransformThreads(cmd))
+            .cache(getCache(cmd))
+            .cancellation(cancellation)
+            .listener(new ConsoleProgressListener())
+            .build();
+
+        MetricsServer metricsServer = startMetrics(cmd);
+
+        LOGGER.info("Starting repair...");
+        downloader.repair();
+        downloader.closeFails();
+        db.close();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+    }
+
+    // Databases written before the progress and freshness tables existed get them here, repairs record freshness
+    static TileDB openRepairTarget(String dbId) throws Exception {
+        TileDB db = TileDB.open(dbId);
+        db.init();
+        return db;
     }
 
     private static void processTileCount(CommandLine cmd) {
@@ -275,44 +654,454 @@ public class Main {
 
         LOGGER.info("Calculating tile count, this may take some time...");
 
-        int tileCount = 0;
+        EnumerationCache enumerationCache = getEnumerationCache(cmd);
+        long tileCount = 0;
         for (int zoom = startZoom; zoom <= endZoom; zoom++) {
-            tileCount += TileUtils.findTilesInRegion(region, zoom).size();
+            tileCount += enumerationCache != null
+                ? enumerationCache.get(region, zoom).size()
+                : TileUtils.findTilesInRegion(region, zoom).size();
         }
 
         LOGGER.info("Tiles in region (zoom {}-{}): {}", startZoom, endZoom, tileCount);
     }
 
+    private static void processServe(CommandLine cmd) {
+        if (!cmd.hasOption("D")) {
+            logErrorAndExit("Missing required database argument -D, --db", true);
+        }
+
+        String dbId = cmd.getOptionValue("D");
+        String bind = cmd.getOptionValue("bind", "127.0.0.1");
+        int threads = cmd.hasOption("t") ? getThreadCount(cmd) : 4;
+        int port = 8080;
+
+        if (cmd.hasOption("port")) {
+            try {
+                port = Integer.parseInt(cmd.getOptionValue("port"));
+                if (port < 0 || port > 65535) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                logErrorAndExit("Invalid port", true);
+            }
+        }
+
+        TileServer server = new TileServer(dbId, new InetSocketAddress(bind, port), threads);
+        try {
+            server.start();
+        } catch (TileDB.InitException e) {
+            logErrorAndExit("Failed to open database {}", false, dbId, e);
+        } catch (IOException e) {
+            logErrorAndExit("Failed to start tile server on {}:{}", false, bind, port, e);
+        }
+
+        // Serving only ends through termination, which is not an error
+        normalExit.set(true);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+
+        LOGGER.info("Serving {} at http://{}:{}/{z}/{x}/{y}", dbId, bind, port);
+        try {
+            new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void processConvert(CommandLine cmd) {
+        if (!cmd.hasOption("source") || !cmd.hasOption("D")) {
+            logErrorAndExit("Missing required convert options (--source and -D, --db)", true);
+        }
+
+        String sourceId = cmd.getOptionValue("source");
+        String targetId = cmd.getOptionValue("D");
+        int threads = cmd.hasOption("t") ? getThreadCount(cmd) : 4;
+
+        TileDB source;
+        try {
+            source = TileDB.openReadOnly(sourceId, null);
+            source.init();
+        } catch (Exception e) {
+            logErrorAndExit("Failed to open source database {}", false, sourceId, e);
+            return;
+        }
+
+        TileDB target;
+        try {
+            target = TileDB.open(targetId, null);
+        } catch (TileDB.InitException e) {
+            source.close();
+            logErrorAndExit("Failed to open database {}", false, targetId, e);
+            return;
+        }
+
+        if (source.getIdentifier().equals(target.getIdentifier())) {
+            source.close();
+            target.close();
+            logErrorAndExit("Source and target database must be different", false);
+            return;
+        }
+
+        Converter converter = new Converter(source, target, threads, cmd.hasOption("reencode"), cancellation, new ConsoleProgressListener());
+
+        LOGGER.info("Converting {} to {}...", sourceId, targetId);
+        try {
+            converter.start();
+        } catch (Exception e) {
+            logErrorAndExit("Failed to convert database", false, e);
+        } finally {
+            source.close();
+            target.close();
+        }
+
+        LOGGER.info("Finished converting {} tiles", converter.convertedTileCount.get());
+        if (converter.failedTileCount.get() > 0) {
+            LOGGER.warn("{} tiles failed to convert", converter.failedTileCount.get());
+        }
+    }
+
+    private static void processMerge(CommandLine cmd) {
+        if (!cmd.hasOption("source") || !cmd.hasOption("D")) {
+            logErrorAndExit("Missing required merge options (--source and -D, --db)", true);
+        }
+
+        String[] sourceIds = cmd.getOptionValues("source");
+        String targetId = cmd.getOptionValue("D");
+
+        Merger.ConflictPolicy policy = Merger.ConflictPolicy.NEWEST;
+        int preferredSource = 0;
+        String conflict = cmd.getOptionValue("conflict", "newest");
+        if (conflict.equals("keep")) {
+            policy = Merger.ConflictPolicy.KEEP_EXISTING;
+        } else if (conflict.startsWith("prefer:")) {
+            policy = Merger.ConflictPolicy.PREFER_SOURCE;
+            try {
+                preferredSource = Integer.parseInt(conflict.substring("prefer:".length())) - 1;
+                if (preferredSource < 0 || preferredSource >= sourceIds.length) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                logErrorAndExit("Invalid preferred source, must be between 1 and {}", true, sourceIds.length);
+            }
+        } else if (!conflict.equals("newest")) {
+            logErrorAndExit("Invalid conflict policy", true);
+        }
+
+        List<TileDB> sources = new ArrayList<>();
+        for (String sourceId : sourceIds) {
+            try {
+                TileDB source = TileDB.openReadOnly(sourceId, null);
+                sources.add(source);
+                source.init();
+            } catch (Exception e) {
+                sources.forEach(TileDB::close);
+                logErrorAndExit("Failed to open source database {}", false, sourceId, e);
+                return;
+            }
+        }
+
+        TileDB target;
+        try {
+            target = TileDB.open(targetId, null);
+        } catch (TileDB.InitException e) {
+            sources.forEach(TileDB::close);
+            logErrorAndExit("Failed to open database {}", false, targetId, e);
+            return;
+        }
+
+        for (TileDB source : sources) {
+            if (source.getIdentifier().equals(target.getIdentifier())) {
+                sources.forEach(TileDB::close);
+                target.close();
+                logErrorAndExit("Target database {} cannot also be a source", false, targetId);
+                return;
+            }
+        }
+
+        Merger merger = new Merger(sources, target, policy, preferredSource, cancellation, new ConsoleProgressListener());
+
+        LOGGER.info("Merging {} databases into {}...", sources.size(), targetId);
+        try {
+            merger.start();
+        } catch (Exception e) {
+            logErrorAndExit("Failed to merge databases", false, e);
+        } finally {
+            for (TileDB source : sources) {
+                source.close();
+            }
+            target.close();
+        }
+
+        LOGGER.info("Finished merging {} tiles ({} conflicting tiles skipped)",
+            merger.mergedTileCount.get(), merger.skippedTileCount.get());
+        if (merger.failedTileCount.get() > 0) {
+            LOGGER.warn("{} tiles failed to merge", merger.failedTileCount.get());
+        }
+    }
+
+    private static void processBatch(CommandLine cmd) {
+        File manifestFile = new File(cmd.getOptionValue("batch"));
+        BatchManifest manifest = null;
+        try {
+            manifest = BatchManifest.read(manifestFile);
+        } catch (BatchManifest.InvalidManifestException e) {
+            logErrorAndExit("Invalid manifest {}: {}", false, manifestFile.getName(), e.getMessage());
+        } catch (Exception e) {
+            logErrorAndExit("Failed to read manifest {}", false, manifestFile.getName(), e);
+        }
+        assert manifest != null;
+
+        int threads = cmd.hasOption("t") ? getThreadCount(cmd) : 4;
+        int hostConnections = cmd.hasOption("host-connections")
+            ? getIntOption(cmd, "host-connections", 1, Integer.MAX_VALUE)
+            : threads;
+
+        BatchRunner runner = new BatchRunner(
+            manifest.jobs,
+            threads,
+            hostConnections,
+            getTransformer(cmd),
+            getTransformThreads(cmd),
+            getCache(cmd),
+            getEnumerationCache(cmd),
+            cancellation
+        );
+
+        MetricsServer metricsServer = startMetrics(cmd);
+
+        LOGGER.info("Running {} jobs from {}...", manifest.jobs.size(), manifestFile.getName());
+        List<BatchRunner.JobReport> reports = runner.run();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+
+        logJobReports(reports);
+    }
+
+    private static void logJobReports(List<BatchRunner.JobReport> reports) {
+        for (BatchRunner.JobReport report : reports) {
+            LOGGER.info("{} ({}): {}, {} tiles downloaded, {} unchanged, {} failed in {}s",
+                report.name(), report.db(), report.status(), report.downloadedTiles(), report.notModifiedTiles(),
+                report.failedTiles(), String.format("%.1f", report.seconds()));
+        }
+        if (reports.stream().anyMatch(report -> report.failedTiles() > 0)) {
+            LOGGER.info("To repair failed tile downloads, run java -jar ... --fix --db <db> --fails-file <fails file of the db>");
+        }
+    }
+
     private static Options createOptions() {
         Options options = new Options();
 
         options.addOption("h", "help", false, "Print this message");
         options.addOption("V", "version", false, "Print the program version");
+        options.addOption(null, "jfr", true, "Record a Java Flight Recorder file with tile download events (default: off)");
 
         // Mutually exclusive base options
         options.addOption("d", "download", false, "Download tiles to database");
         options.addOption("f", "fix", false, "Re-download failed tile downloads");
         options.addOption(null, "tile-count", false, "Calculate tile count in region");
+        options.addOption(null, "serve", false, "Serve database tiles over a local XYZ HTTP endpoint");
+        options.addOption(null, "convert", false, "Copy all tiles from one database to another");
+        options.addOption(null, "merge", false, "Merge tiles from multiple databases into one");
+        options.addOption(null, "batch", true, "Run the download jobs of a manifest file in one process with shared threads");
 
         // Download options
-        options.addOption("D", "db", true, "Database to store tiles to (format: gpkg:<layer>@<file>, mbtiles:<file>)");
-        options.addOption("u", "url", true, "Tile URL for tiles (must include {x}, {y}, and {z} as placeholders)");
+        options.addOption("D", "db", true, "Database to store tiles to (format: gpkg:<layer>@<file>, mbtiles:<file>, archive:<file>)");
+        options.addOption("u", "url", true, "Tile URL for tiles (must include {x}, {y}, and {z} as placeholders), repeat with a -D, --db each to download several layers");
         options.addOption("o", "override", false, "Override existing tiles while downloading (default: false)");
+        options.addOption(null, "refresh", false, "Re-request stored tiles older than --max-age, unchanged tiles (HTTP 304) are not rewritten (default: false)");
+        options.addOption(null, "max-age", true, "Age in days after which --refresh re-requests a tile (default: 30)");
         options.addOption("t", "threads", true, "Thread count for multi-threaded downloading (default: 4)");
+        options.addOption(null, "shards", true, "Write tiles through N parallel temporary databases, merged when finished (default: off)");
+        options.addOption(null, "shard", true, "Download only slice i of N of every zoom level, for splitting a download across machines (format: i/N, default: off)");
+        options.addOption(null, "format", true, "Transcode downloaded tiles to this format (format: png, default: off, tiles are stored as downloaded)");
+        options.addOption(null, "overviews", false, "Download only --end-zoom and build lower zoom levels from its tiles (default: off)");
+        options.addOption(null, "png-optimize", false, "Recompress png tiles losslessly, keeping the smaller version (default: off)");
+        options.addOption(null, "png-colors", true, "Quantize png tiles to a palette of at most N colors (2-256), lossy for tiles with more colors (default: off)");
+        options.addOption(null, "png-deflate", true, "Deflate level for png tiles written by --format, --png-optimize and --png-colors (0-9, default: 4)");
+        options.addOption(null, "transform-threads", true, "Thread count for png conversion and optimization (default: available processors)");
+        options.addOption(null, "cache-dir", true, "Directory of a tile cache shared between runs, cached tiles are not downloaded again (default: off)");
+        options.addOption(null, "cache-size", true, "Maximum tile cache size in MB, least recently used tiles are evicted (default: 1024)");
+        options.addOption(null, "enumeration-cache", true, "Directory of region tile enumerations shared between runs, stored regions are not enumerated again (default: off)");
+        options.addOption(null, "metrics-port", true, "Serve pipeline metrics in Prometheus format on 127.0.0.1:<port>/metrics (default: off)");
+
+        // Serve options
+        options.addOption(null, "bind", true, "Address to serve tiles on (default: 127.0.0.1)");
+        options.addOption(null, "port", true, "Port to serve tiles on (default: 8080)");
+
+        // Convert options
+        options.addOption(null, "source", true, "Database to read tiles from, repeatable for --merge (format: gpkg:<layer>@<file>, mbtiles:<file>, archive:<file>)");
+        options.addOption(null, "reencode", false, "Re-encode non-png tiles to png while converting (default: false)");
+
+        // Merge options
+        options.addOption(null, "conflict", true, "Tile to keep when databases overlap (format: newest, keep, prefer:<source number>, default: newest), newest compares the recorded fetch times of the tiles, else the modification times of the source files");
+
+        // Batch options
+        options.addOption(null, "host-connections", true, "Concurrent requests per tile server host, shared fairly by its jobs (default: --threads)");
 
         // Common options
         options.addOption("r", "region", true, "Region polygon(s) (format: wkt:<string>, shp:<file>, gpkg:<layer>@<file>)");
+        options.addOption(null, "previous-region", true, "Region of an earlier download into the database, only tiles new in -r, --region are downloaded (format: like -r, --region, default: off)");
+        options.addOption(null, "delete-removed", false, "Delete tiles of --previous-region that are outside -r, --region after downloading (default: false)");
         options.addOption("s", "start-zoom", true, "Start zoom level (0-30 inclusive)");
         options.addOption("e", "end-zoom", true, "End zoom level (0-30 inclusive)");
-        options.addOption("F", "fails-file", true, "File to store failed tile downloads to (default: gstk_failed_tiles.xml)");
+        options.addOption("F", "fails-file", true, "File to store failed tile downloads to (default: gstk_failed_tiles.log)");
 
         return options;
     }
 
+    // null if no png transform option is set
+    private static TileTransformer getTransformer(CommandLine cmd) {
+        boolean toPng = false;
+        if (cmd.hasOption("format")) {
+            if (TileFormat.fromName(cmd.getOptionValue("format")) != TileFormat.PNG) {
+                logErrorAndExit("Invalid format, only png is supported for --format", true);
+            }
+            toPng = true;
+        }
+        boolean optimize = cmd.hasOption("png-optimize");
+        int colors = cmd.hasOption("png-colors") ? getIntOption(cmd, "png-colors", 2, 256) : 0;
+        int deflateLevel = cmd.hasOption("png-deflate")
+            ? getIntOption(cmd, "png-deflate", 0, 9)
+            : ImageUtils.DEFAULT_DEFLATE_LEVEL;
+
+        if (!toPng && !optimize && colors == 0) {
+            return null;
+        }
+        return new TileTransformer(toPng, optimize, colors, deflateLevel);
+    }
+
+    // null without --cache-dir
+    private static HttpTileCache getCache(CommandLine cmd) {
+        if (!cmd.hasOption("cache-dir")) {
+            return null;
+        }
+
+        long sizeMb = cmd.hasOption("cache-size")
+            ? getIntOption(cmd, "cache-size", 1, Integer.MAX_VALUE)
+            : Constants.DEFAULT_CACHE_SIZE_MB;
+        try {
+            return new HttpTileCache(new File(cmd.getOptionValue("cache-dir")), sizeMb * 1024 * 1024);
+        } catch (IOException e) {
+            logErrorAndExit("Failed to open tile cache {}", false, cmd.getOptionValue("cache-dir"), e);
+            return null;
+        }
+    }
+
+    private static EnumerationCache getEnumerationCache(CommandLine cmd) {
+        if (!cmd.hasOption("enumeration-cache")) {
+            return null;
+        }
+
+        try {
+            return new EnumerationCache(new File(cmd.getOptionValue("enumeration-cache")));
+        } catch (IOException e) {
+            logErrorAndExit("Failed to open enumeration cache {}", false, cmd.getOptionValue("enumeration-cache"), e);
+            return null;
+        }
+    }
+
+    private static int getTransformThreads(CommandLine cmd) {
+        return cmd.hasOption("transform-threads")
+            ? getIntOption(cmd, "transform-threads", 1, Integer.MAX_VALUE)
+            : Runtime.getRuntime().availableProcessors();
+    }
+
+    // {0 based slice index, slice count}, {0, 1} without --shard
+    private static int[] getPartition(CommandLine cmd) {
+        if (!cmd.hasOption("shard")) {
+            return new int[]{0, 1};
+        }
+
+        String[] parts = cmd.getOptionValue("shard").split("/");
+        try {
+            if (parts.length != 2) {
+                throw new NumberFormatException();
+            }
+            int index = Integer.parseInt(parts[0].trim());
+            int count = Integer.parseInt(parts[1].trim());
+            if (count < 1 || index < 1 || index > count) {
+                throw new NumberFormatException();
+            }
+            return new int[]{index - 1, count};
+        } catch (NumberFormatException e) {
+            logErrorAndExit("Invalid --shard value, must be i/N with 1 <= i <= N", true);
+            return null;
+        }
+    }
+
+    private static int getIntOption(CommandLine cmd, String option, int min, int max) {
+        int value = 0;
+        try {
+            value = Integer.parseInt(cmd.getOptionValue(option));
+            if (value < min || value > max) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            logErrorAndExit("Invalid --{} value", true, option);
+        }
+        return value;
+    }
+
+    private static int getThreadCount(CommandLine cmd) {
+        int threads = 0;
+        try {
+            threads = Integer.parseInt(cmd.getOptionValue("t"));
+            if (threads < 1) {
+                throw new NumberFormatException();
+            }
+            if (threads > Runtime.getRuntime().availableProcessors()) {
+                LOGGER.warn("Thread count is greater than the number of available processors, lowering -t, --threads equal to or below {} is recommended",
+                    Runtime.getRuntime().availableProcessors());
+            }
+        } catch (NumberFormatException e) {
+            logErrorAndExit("Invalid thread count", true);
+        }
+        return threads;
+    }
+
+    private static void startJfr(String filename) {
+        try {
+            JfrRecording.start(Path.of(filename));
+        } catch (IOException | ParseException e) {
+            logErrorAndExit("Failed to start flight recording", false, e);
+        }
+        LOGGER.info("Recording flight data to {}", filename);
+    }
+
+    // Metrics are always available over JMX, the Prometheus endpoint only with --metrics-port
+    private static MetricsServer startMetrics(CommandLine cmd) {
+        Metrics.registerMBean();
+        if (!cmd.hasOption("metrics-port")) {
+            return null;
+        }
+
+        int port = 0;
+        try {
+            port = Integer.parseInt(cmd.getOptionValue("metrics-port"));
+            if (port < 0 || port > 65535) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            logErrorAndExit("Invalid metrics port", true);
+        }
+
+        MetricsServer server = new MetricsServer(new InetSocketAddress("127.0.0.1", port));
+        try {
+            server.start();
+        } catch (IOException e) {
+            logErrorAndExit("Failed to start metrics server on port {}", false, port, e);
+        }
+        LOGGER.info("Serving metrics at http://127.0.0.1:{}/metrics", port);
+        return server;
+    }
+
     private static File getFailsFile(CommandLine cmd, boolean cancelOnNotExists) {
-        String failsFilename = "gstk_failed_tiles.xml";
+        String failsFilename = "gstk_failed_tiles.log";
         if (cmd.hasOption("F")) {
             failsFilename = cmd.getOptionValue("F");
+        } else if (!new File(failsFilename).exists() && new File("gstk_failed_tiles.xml").exists()) {
+            // Fails files from older versions are converted to a journal next to them when opened
+            failsFilename = "gstk_failed_tiles.xml";
         }
         File failsFile = new File(failsFilename);
         if (cancelOnNotExists && !failsFile.exists()) {
@@ -0,0 +1,318 @@
+package org.gstk;
+
+import org.gstk.db.TileDB;
+import org.gstk.utils.TileUtils;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.locationtech.jts.geom.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class Merger {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Merger.class);
+
+    private static final int SOURCE_QUEUE_SIZE = 256;
+    private static final TileData END_OF_SOURCE = new TileData(null, null);
+
+    private final List<TileDB> sources;
+    private final TileDB target;
+    private final ConflictPolicy policy;
+    private final CancellationToken cancellation;
+    private final ProgressListener listener;
+
+    public final AtomicLong mergedTileCount = new AtomicLong(0);
+    public final AtomicLong skippedTileCount = new AtomicLong(0);
+    public final AtomicLong failedTileCount = new AtomicLong(0);
+
+    // preferredSource is the index of the winning source for ConflictPolicy.PREFER_SOURCE, listener may be null
+    public Merger(
+        List<TileDB> sources,
+        TileDB target,
+        ConflictPolicy policy,
+        int preferredSource,
+        CancellationToken cancellation,
+        ProgressListener listener)
+    {
+        this.sources = rankSources(sources, policy, preferredSource);
+        this.target = target;
+        this.policy = policy;
+        this.cancellation = cancellation;
+        this.listener = listener != null ? listener : new ProgressListener() {};
+    }
+
+    public void start() throws Exception {
+        target.init();
+
+        SortedSet<Integer> zooms = new TreeSet<>();
+        for (TileDB source : sources) {
+            zooms.addAll(source.getZoomLevels());
+        }
+        if (zooms.isEmpty()) {
+            LOGGER.info("Source databases have no tiles");
+            return;
+        }
+
+        if (target.needsAdvancedInit()) {
+            updateMetadata(zooms);
+        }
+
+        for (int zoom : zooms) {
+            if (cancellation.isCancelled()) return;
+            mergeZoom(zoom);
+        }
+    }
+
+    private void mergeZoom(int zoom) throws Exception {
+        long total = 0;
+        for (TileDB source : sources) {
+            TileDB.TileRange range = source.getTileRange(zoom);
+            if (range != null) {
+                total += range.count();
+            }
+        }
+
+        FetchTimes[] fetchTimes = policy == ConflictPolicy.NEWEST ? fetchTimes(zoom) : null;
+
+        // Every source is scanned in key order by its own thread, the merge picks the highest ranked copy of each key
+        AtomicReference<Exception> readError = new AtomicReference<>();
+        List<BlockingQueue<TileData>> queues = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        for (TileDB source : sources) {
+            BlockingQueue<TileData> queue = new ArrayBlockingQueue<>(SOURCE_QUEUE_SIZE);
+            Thread reader = new Thread(() -> {
+                try {
+                    try {
+                        source.scanTiles(zoom, tile -> {
+                            if (cancellation.isCancelled()) {
+                                throw new CancellationException();
+                            }
+                            queue.put(tile);
+                        });
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (CancellationException ignored) {
+                        // Ends the source early, the merge loop stops on its own
+                    } catch (Exception e) {
+                        readError.compareAndSet(null, new IOException("Failed to read zoom level " + zoom + " from " + source.getIdentifier(), e));
+                    }
+                    queue.put(END_OF_SOURCE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "Tile-Reader");
+            queues.add(queue);
+            readers.add(reader);
+            reader.start();
+        }
+
+        String taskName = "Zoom " + zoom;
+        listener.taskStarted(taskName, total);
+        try {
+            TileData[] heads = new TileData[queues.size()];
+            for (int i = 0; i < heads.length; i++) {
+                heads[i] = next(queues.get(i));
+            }
+
+            List<TileData> batch = new ArrayList<>(Constants.WRITE_BATCH_SIZE);
+            // Without the rest of a failed source, later keys could be taken from a lower ranked source
+            while (!cancellation.isCancelled() && readError.get() == null) {
+                int winner = -1;
+                for (int i = 0; i < heads.length; i++) {
+                    // Sources are ranked, so on equal keys the earlier source wins
+                    if (heads[i] != null && (winner < 0 || compare(heads[i].pos(), heads[winner].pos()) < 0)) {
+                        winner = i;
+                    }
+                }
+                if (winner < 0) {
+                    break;
+                }
+                if (fetchTimes != null) {
+                    winner = newest(heads, winner, fetchTimes);
+                }
+
+                TileData tile = heads[winner];
+                for (int i = 0; i < heads.length; i++) {
+                    if (heads[i] != null && compare(heads[i].pos(), tile.pos()) == 0) {
+                        if (i != winner) {
+                            skippedTileCount.incrementAndGet();
+                        }
+                        heads[i] = next(queues.get(i));
+                        listener.tilesProcessed(1);
+                    }
+                }
+
+                if (policy == ConflictPolicy.KEEP_EXISTING && target.doesTileExist(tile.pos())) {
+                    skippedTileCount.incrementAndGet();
+                    continue;
+                }
+
+                batch.add(tile);
+                if (batch.size() >= Constants.WRITE_BATCH_SIZE) {
+                    writeBatch(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+            }
+        } finally {
+            // Readers may still be blocked on a full queue if the merge stopped early
+            for (Thread reader : readers) {
+                reader.interrupt();
+                reader.join();
+            }
+            listener.taskFinished(taskName);
+        }
+
+        if (readError.get() != null) {
+            throw readError.get();
+        }
+    }
+
+    private void writeBatch(List<TileData> batch) {
+        try {
+            target.storeTiles(batch);
+            mergedTileCount.addAndGet(batch.size());
+            return;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to write tile batch, retrying tiles one by one", e);
+        }
+
+        for (TileData tile : batch) {
+            try {
+                target.storeTile(tile);
+                mergedTileCount.incrementAndGet();
+            } catch (Exception e) {
+                LOGGER.error("Failed to write tile {}", tile.pos(), e);
+                failedTileCount.incrementAndGet();
+            }
+        }
+    }
+
+    // Zoom range and bounds cover the sources and whatever the target already contained
+    private void updateMetadata(SortedSet<Integer> zooms) throws Exception {
+        List<TileDB> databases = new ArrayList<>(sources);
+        databases.add(target);
+
+        int minZoom = zooms.first();
+        int maxZoom = zooms.last();
+        for (int zoom : target.getZoomLevels()) {
+            minZoom = Math.min(minZoom, zoom);
+            maxZoom = Math.max(maxZoom, zoom);
+        }
+
+        Envelope bounds = new Envelope();
+        for (TileDB db : databases) {
+            List<Integer> dbZooms = db.getZoomLevels();
+            if (dbZooms.isEmpty()) {
+                continue;
+            }
+
+            int zoom = dbZooms.get(dbZooms.size() - 1);
+            TileDB.TileRange range = db.getTileRange(zoom);
+            bounds.expandToInclude(TileUtils.tileRangeToEnvelope(
+                zoom,
+                range.minColumn(),
+                range.minRow(),
+                range.maxColumn(),
+                range.maxRow()
+            ));
+        }
+
+        target.advancedInit(minZoom, maxZoom, Region.fromEnvelope(bounds));
+    }
+
+    // Fetch times of the sources with freshness entries at the zoom level, null unless two sources can be compared
+    private FetchTimes[] fetchTimes(int zoom) throws Exception {
+        FetchTimes[] fetchTimes = new FetchTimes[sources.size()];
+        int recorded = 0;
+        for (int i = 0; i < sources.size(); i++) {
+            if (!sources.get(i).supportsFreshness()) {
+                continue;
+            }
+            FetchTimes times = new FetchTimes();
+            sources.get(i).scanFreshness(zoom, entry -> times.add(entry.id(), entry.fetchedMillis()));
+            if (times.size > 0) {
+                fetchTimes[i] = times;
+                recorded++;
+            }
+        }
+        return recorded > 1 ? fetchTimes : null;
+    }
+
+    // Sources are ranked by file modification time, a copy fetched later replaces it if both copies have a fetch time
+    private static int newest(TileData[] heads, int winner, FetchTimes[] fetchTimes) {
+        long id = TileUtils.hilbertTileId(heads[winner].pos());
+        long winnerFetched = fetchTimes[winner] != null ? fetchTimes[winner].get(id) : -1;
+        for (int i = winner + 1; i < heads.length; i++) {
+            if (heads[i] == null || compare(heads[i].pos(), heads[winner].pos()) != 0 || fetchTimes[i] == null || winnerFetched < 0) {
+                continue;
+            }
+            long fetched = fetchTimes[i].get(id);
+            if (fetched > winnerFetched) {
+                winner = i;
+                winnerFetched = fetched;
+            }
+        }
+        return winner;
+    }
+
+    private static TileData next(BlockingQueue<TileData> queue) throws InterruptedException {
+        TileData tile = queue.take();
+        return tile == END_OF_SOURCE ? null : tile;
+    }
+
+    private static int compare(TilePosition a, TilePosition b) {
+        int result = Integer.compare(a.x(), b.x());
+        return result != 0 ? result : Integer.compare(a.y(), b.y());
+    }
+
+    private static List<TileDB> rankSources(List<TileDB> sources, ConflictPolicy policy, int preferredSource) {
+        List<TileDB> ranked = new ArrayList<>(sources);
+        switch (policy) {
+            case NEWEST -> ranked.sort(Comparator.comparingLong((TileDB db) -> db.getFile().lastModified()).reversed());
+            case PREFER_SOURCE -> ranked.add(0, ranked.remove(preferredSource));
+            default -> {}
+        }
+        return ranked;
+    }
+
+    // Fetch times of one zoom level, read in tile id order, so the ids are sorted
+    private static final class FetchTimes {
+        private long[] ids = new long[1024];
+        private long[] millis = new long[1024];
+        private int size = 0;
+
+        void add(long id, long fetchedMillis) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                millis = Arrays.copyOf(millis, size * 2);
+            }
+            ids[size] = id;
+            millis[size++] = fetchedMillis;
+        }
+
+        // -1 without an entry
+        long get(long id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            return index >= 0 ? millis[index] : -1;
+        }
+    }
+
+    public enum ConflictPolicy {
+        // The copy fetched last if the sources record fetch times, else tiles from the most recently modified source file
+        NEWEST,
+        // Tiles already in the target are kept, otherwise the first listed source wins
+        KEEP_EXISTING,
+        // Tiles from one chosen source replace everything else
+        PREFER_SOURCE,
+    }
+}
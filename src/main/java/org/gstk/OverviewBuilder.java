@@ -0,0 +1,243 @@
+package org.gstk;
+
+import org.gstk.db.TileDB;
+import org.gstk.metrics.Metrics;
+import org.gstk.utils.ImageUtils;
+import org.gstk.utils.TileFormat;
+import org.gstk.utils.TileUtils;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+// Builds lower zoom levels from the tiles of the zoom level above, each parent tile is its 4 children
+// downsampled into one, so only the highest zoom level has to be downloaded
+public class OverviewBuilder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OverviewBuilder.class);
+
+    private static final int CHUNK_SIZE = 64;
+
+    private final TileDB db;
+    private final Region region;
+    private final int threadCount;
+    private final boolean override;
+    private final TileTransformer transformer;
+    private final CancellationToken cancellation;
+    private final ProgressListener listener;
+
+    public final AtomicLong builtTileCount = new AtomicLong(0);
+    public final AtomicLong failedTileCount = new AtomicLong(0);
+
+    // transformer may be null, it is applied to the built tiles like to downloaded ones; listener may be null
+    public OverviewBuilder(
+        TileDB db,
+        Region region,
+        int threadCount,
+        boolean override,
+        TileTransformer transformer,
+        CancellationToken cancellation,
+        ProgressListener listener)
+    {
+        this.db = db;
+        this.region = region;
+        this.threadCount = threadCount;
+        this.override = override;
+        this.transformer = transformer;
+        this.cancellation = cancellation;
+        this.listener = listener != null ? listener : new ProgressListener() {};
+    }
+
+    // Builds zoom levels maxZoom - 1 down to startZoom, maxZoom must already be in the database
+    public void build(int startZoom, int maxZoom) {
+        for (int zoom = maxZoom - 1; zoom >= startZoom; zoom--) {
+            if (cancellation.isCancelled()) return;
+
+            List<TilePosition> parents = new ArrayList<>(TileUtils.findTilesInRegion(region, zoom));
+            parents.sort(Comparator.comparingLong(TileUtils::hilbertTileId));
+            // Lower zoom levels are built from png or jpeg parents, only the downloaded tiles need a decoder
+            if (zoom == maxZoom - 1 && !canDecodeChildren(parents)) {
+                return;
+            }
+            buildZoom(zoom, parents);
+        }
+    }
+
+    // Tiles are stored as downloaded, ImageIO has no webp decoder unless a plugin provides one
+    private boolean canDecodeChildren(List<TilePosition> parents) {
+        TileFormat format = db.getTileFormat();
+        try {
+            for (int i = 0; format == null && i < parents.size(); i++) {
+                TilePosition parent = parents.get(i);
+                for (int child = 0; format == null && child < 4; child++) {
+                    format = TileFormat.detect(db.getTile(parent.x() * 2 + (child & 1), parent.y() * 2 + (child >> 1), parent.zoom() + 1));
+                }
+            }
+        } catch (Exception e) {
+            // Reading the children fails again while building, where it is reported per tile
+            return true;
+        }
+
+        if (format != null && !ImageIO.getImageReadersByMIMEType(format.contentType).hasNext()) {
+            LOGGER.error("Can't build overviews from {} tiles, no image decoder for {} is available, download png or jpeg tiles instead",
+                format.name, format.contentType);
+            return false;
+        }
+        return true;
+    }
+
+    private void buildZoom(int zoom, List<TilePosition> parents) {
+        BlockingQueue<TileData> tilesToWrite = new LinkedBlockingQueue<>(Constants.WRITE_BATCH_SIZE * 4);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+        IntSupplier queueDepth = tilesToWrite::size;
+        Metrics.addWriterQueue(queueDepth);
+        String taskName = "Overview " + zoom;
+        listener.taskStarted(taskName, parents.size());
+        try {
+            Thread writer = new Thread(() -> {
+                List<TileData> batch = new ArrayList<>(Constants.WRITE_BATCH_SIZE);
+                try {
+                    while (!executor.isTerminated() || !tilesToWrite.isEmpty()) {
+                        TileData tile = tilesToWrite.poll(100, TimeUnit.MILLISECONDS);
+                        if (tile == null) {
+                            continue;
+                        }
+
+                        batch.add(tile);
+                        tilesToWrite.drainTo(batch, Constants.WRITE_BATCH_SIZE - 1);
+                        writeBatch(batch, zoom);
+                        listener.tilesProcessed(batch.size());
+                        batch.clear();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "Tile-Writer");
+            writer.start();
+
+            for (int i = 0; i < parents.size(); i += CHUNK_SIZE) {
+                List<TilePosition> chunk = parents.subList(i, Math.min(i + CHUNK_SIZE, parents.size()));
+                executor.submit(() -> {
+                    try {
+                        for (TilePosition parent : chunk) {
+                            if (cancellation.isCancelled()) return;
+
+                            TileData tile = buildTile(parent);
+                            if (tile != null) {
+                                tilesToWrite.put(tile);
+                            } else {
+                                listener.tilesProcessed(1);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+
+            try {
+                executor.shutdown();
+                if (!executor.awaitTermination(31, TimeUnit.DAYS)) {
+                    throw new IllegalStateException("Overview threads did not terminate within 31 days");
+                }
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            Metrics.removeWriterQueue(queueDepth);
+            listener.taskFinished(taskName);
+        }
+    }
+
+    private void writeBatch(List<TileData> batch, int zoom) {
+        try {
+            db.storeTiles(batch);
+            builtTileCount.addAndGet(batch.size());
+            return;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to write {} overview tiles of zoom level {}, retrying tiles one by one", batch.size(), zoom, e);
+        }
+
+        for (TileData tile : batch) {
+            try {
+                db.storeTile(tile);
+                builtTileCount.incrementAndGet();
+            } catch (Exception e) {
+                LOGGER.error("Failed to write overview tile {}", tile.pos(), e);
+                failedTileCount.incrementAndGet();
+            }
+        }
+    }
+
+    // null if the tile is skipped, has no children or failed
+    private TileData buildTile(TilePosition parent) {
+        try {
+            if (!override && db.doesTileExist(parent)) {
+                return null;
+            }
+
+            byte[][] children = new byte[4][];
+            TileFormat format = null;
+            boolean mixed = false;
+            for (int i = 0; i < 4; i++) {
+                children[i] = db.getTile(parent.x() * 2 + (i & 1), parent.y() * 2 + (i >> 1), parent.zoom() + 1);
+                if (children[i] == null) {
+                    continue;
+                }
+                TileFormat childFormat = TileFormat.detect(children[i]);
+                if (format == null) {
+                    format = childFormat;
+                } else if (childFormat != format) {
+                    mixed = true;
+                }
+            }
+            if (format == null) {
+                return null;
+            }
+
+            // Jpeg children stay jpeg (gaps are black), anything else becomes png (gaps are transparent),
+            // unless the database only holds jpeg tiles
+            TileFormat dbFormat = db.getTileFormat();
+            boolean jpeg = dbFormat == TileFormat.JPEG || (dbFormat == null && format == TileFormat.JPEG && !mixed);
+            BufferedImage[] quadrants = new BufferedImage[4];
+            for (int i = 0; i < 4; i++) {
+                if (children[i] != null) {
+                    quadrants[i] = ImageIO.read(new ByteArrayInputStream(children[i]));
+                    if (quadrants[i] == null) {
+                        throw new IOException("Unable to decode " + TileFormat.detect(children[i]) + " child tile");
+                    }
+                }
+            }
+
+            BufferedImage image = ImageUtils.downsampleQuadrants(quadrants, !jpeg);
+            byte[] data;
+            if (jpeg) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(image, "jpg", out);
+                data = out.toByteArray();
+            } else {
+                data = ImageUtils.encodePng(image, ImageUtils.DEFAULT_DEFLATE_LEVEL);
+            }
+
+            TileData tile = new TileData(parent, data);
+            return transformer != null ? transformer.transform(tile) : tile;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to build overview tile {}", parent, e);
+            failedTileCount.incrementAndGet();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.gstk;
+
+// Progress callbacks of merges, conversions and overview builds. A task is one zoom level;
+// tiles are reported by the writer and worker threads, so implementations must be thread safe.
+public interface ProgressListener {
+    default void taskStarted(String taskName, long tiles) {}
+
+    // Tiles written, skipped or failed
+    default void tilesProcessed(long tiles) {}
+
+    default void taskFinished(String taskName) {}
+}
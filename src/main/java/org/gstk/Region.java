@@ -6,6 +6,7 @@ import org.geotools.api.referencing.FactoryException;
 import org.geotools.api.referencing.crs.CoordinateReferenceSystem;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.referencing.CRS;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.MultiPolygon;
@@ -51,6 +52,12 @@ public record Region(MultiPolygon polygons) {
         return new Region(polygons);
     }
 
+    public static Region fromEnvelope(Envelope envelope) {
+        GeometryFactory gf = new GeometryFactory();
+        Polygon polygon = (Polygon) gf.toGeometry(envelope);
+        return new Region(new MultiPolygon(new Polygon[]{polygon}, gf));
+    }
+
     public static Region fromShapefile(String shapefilePath) throws InvalidRegionException, IOException, FactoryException {
         if (!Files.exists(Paths.get(shapefilePath))) {
             throw new InvalidRegionException("Shapefile does not exist");
@@ -85,6 +92,24 @@ public record Region(MultiPolygon polygons) {
         return new Region(polygons);
     }
 
+    // Area of this region outside other, null if this region lies completely inside other
+    public Region difference(Region other) {
+        Geometry difference = polygons.difference(other.polygons());
+
+        List<Polygon> polygonList = new ArrayList<>();
+        for (int i = 0; i < difference.getNumGeometries(); i++) {
+            if (difference.getGeometryN(i) instanceof Polygon p && !p.isEmpty()) {
+                polygonList.add(p);
+            }
+        }
+        if (polygonList.isEmpty()) {
+            return null;
+        }
+
+        Polygon[] polygonArray = polygonList.toArray(new Polygon[0]);
+        return new Region(new MultiPolygon(polygonArray, new GeometryFactory()));
+    }
+
     public static Region fromString(String regionString) throws InvalidRegionException, IOException, ParseException, FactoryException {
         String[] parts = regionString.split(":");
 
@@ -0,0 +1,197 @@
+package org.gstk;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.gstk.db.TileCache;
+import org.gstk.db.TileDB;
+import org.gstk.utils.TileFormat;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+public class TileServer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileServer.class);
+
+    private static final Pattern TILE_PATH = Pattern.compile("^/(\\d+)/(\\d+)/(\\d+)(\\.\\w+)?$");
+
+    private final String dbId;
+    private final InetSocketAddress address;
+    private final int threadCount;
+
+    private final TileCache cache = new TileCache(Constants.TILE_CACHE_SIZE_BYTES);
+    private final BlockingQueue<TileDB> pool;
+
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+
+    public TileServer(String dbId, InetSocketAddress address, int threadCount) {
+        this.dbId = dbId;
+        this.address = address;
+        this.threadCount = threadCount;
+        this.pool = new ArrayBlockingQueue<>(threadCount);
+    }
+
+    public void start() throws IOException, TileDB.InitException {
+        // Each handler thread borrows its own read connection, the hot tile cache is shared in front of them
+        // Serving never creates or writes the database, so a mistyped path fails here instead of serving an empty file
+        for (int i = 0; i < threadCount; i++) {
+            TileDB db;
+            try {
+                db = TileDB.openReadOnly(dbId, null);
+            } catch (TileDB.InitException e) {
+                stop();
+                throw e;
+            }
+            pool.add(db);
+            if (!db.isConnected()) {
+                stop();
+                throw new TileDB.InitException("Failed to connect to database");
+            }
+            try {
+                db.init();
+            } catch (Exception e) {
+                stop();
+                throw new TileDB.InitException(e);
+            }
+        }
+
+        executor = Executors.newFixedThreadPool(threadCount);
+        server = HttpServer.create(address, 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(1);
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+
+        TileDB db;
+        while ((db = pool.poll()) != null) {
+            db.close();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Matcher matcher = TILE_PATH.matcher(exchange.getRequestURI().getPath());
+            if (!matcher.matches()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            TilePosition pos;
+            try {
+                int zoom = Integer.parseInt(matcher.group(1));
+                pos = new TilePosition(Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)), zoom);
+                if (zoom > 30 || pos.x() >= (1 << zoom) || pos.y() >= (1 << zoom)) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            byte[] data;
+            try {
+                data = readTile(pos);
+            } catch (Exception e) {
+                LOGGER.error("Failed to read tile {}", pos, e);
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+
+            if (data == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            String etag = etag(data);
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (matchesEtag(etag, exchange.getRequestHeaders().get("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", contentType(data));
+            if (method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(data.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            exchange.sendResponseHeaders(200, data.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(data);
+            }
+        }
+    }
+
+    private byte[] readTile(TilePosition pos) throws Exception {
+        byte[] data = cache.get(pos);
+        if (data != null) {
+            return data;
+        }
+
+        TileDB db = pool.take();
+        try {
+            data = db.getTile(pos);
+        } finally {
+            pool.put(db);
+        }
+
+        if (data != null) {
+            cache.put(pos, data);
+        }
+        return data;
+    }
+
+    private static String etag(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(data.length) + "\"";
+    }
+
+    // If-None-Match holds * or comma separated ETags, compared weakly (RFC 9110, 13.1.2), so W/ prefixes are ignored
+    static boolean matchesEtag(String etag, List<String> ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String header : ifNoneMatch) {
+            for (String candidate : header.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String contentType(byte[] data) {
+        TileFormat format = TileFormat.detect(data);
+        return format != null ? format.contentType : "application/octet-stream";
+    }
+}
@@ -0,0 +1,84 @@
+package org.gstk;
+
+import org.gstk.jfr.ImageConversionEvent;
+import org.gstk.metrics.Metrics;
+import org.gstk.utils.ImageUtils;
+import org.gstk.utils.TileUtils.TileData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+// Png conversion and optimization of downloaded tiles, run by the downloader's transform threads
+public class TileTransformer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileTransformer.class);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final boolean toPng;
+    private final boolean optimize;
+    private final int colors;
+    private final int deflateLevel;
+
+    // colors is the palette size for quantization (2-256), 0 for none
+    public TileTransformer(boolean toPng, boolean optimize, int colors, int deflateLevel) {
+        this.toPng = toPng;
+        this.optimize = optimize;
+        this.colors = colors;
+        this.deflateLevel = deflateLevel;
+    }
+
+    public TileData transform(TileData tile) {
+        byte[] data = tile.data();
+        boolean png = ImageUtils.isPng(data);
+        if (png ? !optimize && colors == 0 : !toPng) {
+            return tile;
+        }
+
+        long cpuStart = cpuTime();
+        long start = System.nanoTime();
+        ImageConversionEvent event = new ImageConversionEvent();
+        event.begin();
+        byte[] result = null;
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+            if (image == null) {
+                LOGGER.warn("Unable to decode tile at {}, storing it unchanged", tile.pos());
+                return tile;
+            }
+
+            if (colors > 0) {
+                image = ImageUtils.quantize(image, colors);
+            } else if (optimize) {
+                image = ImageUtils.reduceLossless(image);
+            }
+            result = ImageUtils.encodePng(image, deflateLevel);
+            if (png && result.length >= data.length) {
+                // Already smaller than anything we can make of it
+                result = data;
+            }
+            return new TileData(tile.pos(), result);
+        } catch (IOException | RuntimeException e) {
+            // ImageIO also fails with runtime exceptions on some malformed images
+            LOGGER.warn("Unable to convert tile at {} to png, storing it unchanged", tile.pos(), e);
+            return tile;
+        } finally {
+            Metrics.record(Metrics.Stage.TRANSFORM, start);
+            Metrics.tileTransformed(data.length, result != null ? result.length : data.length, cpuTime() - cpuStart);
+            if (event.shouldCommit()) {
+                event.inputBytes = data.length;
+                event.outputBytes = result != null ? result.length : 0;
+                event.success = result != null;
+                event.commit();
+            }
+        }
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+}
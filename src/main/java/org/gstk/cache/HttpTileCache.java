@@ -0,0 +1,189 @@
+package org.gstk.cache;
+
+import org.gstk.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// On-disk cache of tile responses keyed by the SHA-256 of the resolved tile URL, shared between runs and databases.
+// Entries are written to a temporary file and moved into place, so concurrent readers and writers (threads or
+// processes) only ever see complete entries. The least recently used entries are evicted above the size limit.
+public class HttpTileCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpTileCache.class);
+
+    private static final int MAGIC = 0x47484331; // GHC1
+    // Evicting down to a bit below the limit, so not every write has to walk the cache
+    private static final double EVICT_TO = 0.9;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    public HttpTileCache(File dir, long maxBytes) throws IOException {
+        this.dir = dir.toPath();
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.dir);
+
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            size.set(files.filter(Files::isRegularFile).mapToLong(HttpTileCache::fileSize).sum());
+        }
+    }
+
+    // null on a miss, a hit also counts as a use for eviction
+    public Entry get(String url) {
+        Path file = path(url);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(url)) {
+                Metrics.cacheMiss();
+                return null;
+            }
+
+            long storedMillis = in.readLong();
+            String etag = emptyToNull(in.readUTF());
+            String lastModified = emptyToNull(in.readUTF());
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+
+            touch(file);
+            Metrics.cacheHit();
+            return new Entry(data, etag, lastModified, storedMillis);
+        } catch (NoSuchFileException e) {
+            Metrics.cacheMiss();
+            return null;
+        } catch (IOException e) {
+            LOGGER.debug("Failed to read cache entry {}", file, e);
+            Metrics.cacheMiss();
+            return null;
+        }
+    }
+
+    public void put(String url, byte[] data, String etag, String lastModified) {
+        Path file = path(url);
+        Path temp = null;
+        try {
+            Files.createDirectories(file.getParent());
+            temp = Files.createTempFile(file.getParent(), "entry-", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(url);
+                out.writeLong(System.currentTimeMillis());
+                out.writeUTF(etag != null ? etag : "");
+                out.writeUTF(lastModified != null ? lastModified : "");
+                out.writeInt(data.length);
+                out.write(data);
+            }
+
+            long replaced = fileSize(file);
+            long written = fileSize(temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+
+            if (size.addAndGet(written - replaced) > maxBytes) {
+                evict();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write cache entry for {}", url, e);
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    public long getSizeBytes() {
+        return size.get();
+    }
+
+    private void evict() {
+        // One thread evicts, the others keep going
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<CachedFile> files = new ArrayList<>();
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    files.add(new CachedFile(file, attrs.lastModifiedTime().toMillis(), attrs.size()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            files.sort((a, b) -> Long.compare(a.lastUsed(), b.lastUsed()));
+
+            long total = files.stream().mapToLong(CachedFile::size).sum();
+            long target = (long) (maxBytes * EVICT_TO);
+            for (CachedFile file : files) {
+                if (total <= target) {
+                    break;
+                }
+                if (Files.deleteIfExists(file.path())) {
+                    total -= file.size();
+                }
+            }
+            size.set(total);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to evict tile cache entries in {}", dir, e);
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private Path path(String url) {
+        String hash = sha256(url);
+        return dir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // Only affects the eviction order
+        }
+    }
+
+    private static long fileSize(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public record Entry(byte[] data, String etag, String lastModified, long storedMillis) {}
+
+    private record CachedFile(Path path, long lastUsed, long size) {}
+}
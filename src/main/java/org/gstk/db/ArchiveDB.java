@@ -0,0 +1,796 @@
+package org.gstk.db;
+
+import org.gstk.Region;
+import org.gstk.utils.TileUtils;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.locationtech.jts.geom.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.*;
+
+// Single file tile archive: a fixed header, append-only tile data and a directory sorted by Hilbert tile id.
+// Identical tiles are stored once and read through memory mapped segments.
+// Memory stays bounded: new directory entries and scans spill sorted runs to disk and are merged from there.
+public class ArchiveDB implements TileDB {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchiveDB.class);
+
+    private static final byte[] MAGIC = "GSTKARC\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 128;
+    private static final int ENTRY_SIZE = 20;
+
+    // Segments overlap so that any tile up to SEGMENT_OVERLAP bytes can be sliced from a single mapping
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final long SEGMENT_OVERLAP = 16L * 1024 * 1024;
+
+    private static final int RUN_ENTRIES = 1 << 18;
+    private static final int DIRECTORY_BUFFER_ENTRIES = 4096;
+    private static final int RUN_BUFFER_ENTRIES = 512;
+    // Only recently stored contents are deduplicated, repeated tiles (empty sea, blank land) recur often enough to stay
+    private static final int CONTENT_CACHE_ENTRIES = 1 << 16;
+
+    private final File file;
+    private final File directoryBackup;
+    private final FileChannel channel;
+    private final boolean readOnly;
+
+    // Directory of the last finished session, either still in the archive or moved to the backup while writing
+    private FileChannel baseChannel;
+    private long baseOffset;
+    private long baseEntries;
+
+    private final EntryRuns pending;
+    private final Map<ContentKey, Entry> contents = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ContentKey, Entry> eldest) {
+            return size() > CONTENT_CACHE_ENTRIES;
+        }
+    };
+    private final MessageDigest digest;
+
+    private boolean writing = false;
+    private long dataEnd;
+
+    private int minZoom = -1;
+    private int maxZoom = -1;
+    private Envelope bounds = null;
+
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private long mappedSize = 0;
+
+    public ArchiveDB(String filename) throws InitException {
+        this(filename, false);
+    }
+
+    // Read-only archives must exist and are never created or written to
+    public ArchiveDB(String filename, boolean readOnly) throws InitException {
+        this(filename, readOnly, RUN_ENTRIES);
+    }
+
+    ArchiveDB(String filename, boolean readOnly, int runEntries) throws InitException {
+        this.file = new File(filename);
+        this.directoryBackup = new File(filename + "-dir");
+        this.readOnly = readOnly;
+        Path runsFile = new File(filename + "-runs").toPath();
+        this.pending = new EntryRuns(runsFile, runEntries);
+        if (readOnly && !file.isFile()) {
+            throw new InitException("Archive file " + file.getAbsolutePath() + " doesn't exist");
+        }
+        if (file.exists() && (!file.canRead() || (!readOnly && !file.canWrite()))) {
+            throw new InitException("Insufficient file permissions for " + file.getAbsolutePath());
+        }
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+            if (readOnly) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            } else {
+                channel = FileChannel.open(
+                    file.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE
+                );
+                // Runs of an interrupted session, its tiles are dropped when the header is read
+                Files.deleteIfExists(runsFile);
+            }
+
+            if (channel.size() == 0 && !readOnly) {
+                dataEnd = HEADER_SIZE;
+                baseChannel = channel;
+                baseOffset = HEADER_SIZE;
+                baseEntries = 0;
+                writeHeader(true);
+            } else {
+                readHeader();
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new InitException(e);
+        }
+    }
+
+    @Override
+    public String getIdentifier() {
+        return "archive:" + file.getAbsolutePath();
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void init() {}
+
+    @Override
+    public boolean needsAdvancedInit() {
+        return true;
+    }
+
+    @Override
+    public synchronized void advancedInit(int startZoom, int endZoom, Region region) throws IOException {
+        beginWriting();
+
+        minZoom = minZoom < 0 ? startZoom : Math.min(minZoom, startZoom);
+        maxZoom = Math.max(maxZoom, endZoom);
+
+        Envelope envelope = region.polygons().getEnvelopeInternal();
+        if (bounds == null) {
+            bounds = new Envelope(envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY());
+        } else {
+            bounds.expandToInclude(envelope);
+        }
+    }
+
+    @Override
+    public synchronized void storeTile(TileData tile) throws IOException {
+        beginWriting();
+
+        byte[] data = tile.data();
+        ContentKey key = contentKey(data);
+
+        Entry entry = contents.get(key);
+        if (entry == null) {
+            entry = new Entry(dataEnd, data.length);
+
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = dataEnd;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            dataEnd = position;
+            contents.put(key, entry);
+        }
+
+        pending.put(TileUtils.hilbertTileId(tile.pos()), entry);
+    }
+
+    @Override
+    public synchronized boolean doesTileExist(int column, int row, int zoom) throws IOException {
+        return findEntry(TileUtils.hilbertTileId(zoom, column, row)) != null;
+    }
+
+    @Override
+    public byte[] getTile(int column, int row, int zoom) throws IOException {
+        ByteBuffer buffer = getTileBuffer(column, row, zoom);
+        if (buffer == null) {
+            return null;
+        }
+
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    // Read-only view of the tile bytes, backed by the memory mapped archive when possible
+    public synchronized ByteBuffer getTileBuffer(int column, int row, int zoom) throws IOException {
+        Entry entry = findEntry(TileUtils.hilbertTileId(zoom, column, row));
+        if (entry == null) {
+            return null;
+        }
+        return readData(entry);
+    }
+
+    @Override
+    public synchronized void scanTiles(
+        int zoom,
+        int minColumn,
+        int minRow,
+        int maxColumn,
+        int maxRow,
+        TileConsumer consumer) throws Exception
+    {
+        long startId = TileUtils.zoomTileIdStart(zoom);
+        long endId = TileUtils.zoomTileIdStart(zoom + 1);
+
+        // Re-sorted from Hilbert order by column, then row: key = column << zoom | row
+        try (EntryRuns sorted = new EntryRuns(null, RUN_ENTRIES)) {
+            EntrySource entries = mergedEntries(startId, endId);
+            DirectoryEntry entry;
+            while ((entry = entries.next()) != null && entry.id() < endId) {
+                TilePosition pos = TileUtils.hilbertTileIdToPosition(entry.id());
+                if (pos.x() >= minColumn && pos.x() <= maxColumn && pos.y() >= minRow && pos.y() <= maxRow) {
+                    sorted.put(((long) pos.x() << zoom) | pos.y(), new Entry(entry.offset(), entry.length()));
+                }
+            }
+
+            EntrySource ordered = new MergedSource(sorted.sources(0, Long.MAX_VALUE));
+            long rowMask = (1L << zoom) - 1;
+            while ((entry = ordered.next()) != null) {
+                TilePosition pos = new TilePosition((int) (entry.id() >>> zoom), (int) (entry.id() & rowMask), zoom);
+                ByteBuffer buffer = readData(new Entry(entry.offset(), entry.length()));
+                byte[] data = new byte[buffer.remaining()];
+                buffer.get(data);
+                consumer.accept(new TileData(pos, data));
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<Integer> getZoomLevels() throws IOException {
+        List<Integer> zooms = new ArrayList<>();
+        for (int zoom = 0; zoom <= 30; zoom++) {
+            long startId = TileUtils.zoomTileIdStart(zoom);
+            long endId = TileUtils.zoomTileIdStart(zoom + 1);
+
+            long index = lowerBound(startId);
+            boolean found = index < baseEntries && readBaseEntry(index).id() < endId;
+            if (!found) {
+                found = pending.containsAny(startId, endId);
+            }
+            if (found) {
+                zooms.add(zoom);
+            }
+        }
+        return zooms;
+    }
+
+    @Override
+    public synchronized TileRange getTileRange(int zoom) throws IOException {
+        long startId = TileUtils.zoomTileIdStart(zoom);
+        long endId = TileUtils.zoomTileIdStart(zoom + 1);
+
+        long count = 0;
+        int minColumn = Integer.MAX_VALUE;
+        int minRow = Integer.MAX_VALUE;
+        int maxColumn = Integer.MIN_VALUE;
+        int maxRow = Integer.MIN_VALUE;
+
+        EntrySource entries = mergedEntries(startId, endId);
+        DirectoryEntry entry;
+        while ((entry = entries.next()) != null && entry.id() < endId) {
+            TilePosition pos = TileUtils.hilbertTileIdToPosition(entry.id());
+            minColumn = Math.min(minColumn, pos.x());
+            minRow = Math.min(minRow, pos.y());
+            maxColumn = Math.max(maxColumn, pos.x());
+            maxRow = Math.max(maxRow, pos.y());
+            count++;
+        }
+        return count > 0 ? new TileRange(count, minColumn, minRow, maxColumn, maxRow) : null;
+    }
+
+    @Override
+    public void importTiles(File tilesFile) throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + tilesFile.getPath());
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT zoom_level, tile_column, tile_row, tile_data FROM tiles"))
+        {
+            while (rs.next()) {
+                storeTile(new TileData(new TilePosition(rs.getInt(2), rs.getInt(3), rs.getInt(1)), rs.getBytes(4)));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (writing) {
+                finishWriting();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to write archive directory for {}", file.getName(), e);
+        }
+
+        segments = new MappedByteBuffer[0];
+        try {
+            pending.close();
+        } catch (Exception ignored) {}
+        try {
+            channel.close();
+        } catch (Exception ignored) {}
+    }
+
+    private void beginWriting() throws IOException {
+        if (writing) {
+            return;
+        }
+        if (readOnly) {
+            throw new IOException("Tile archive " + file.getName() + " is opened read-only");
+        }
+
+        // Move the old directory out of the way so new tiles can be appended after the existing data
+        if (baseEntries > 0) {
+            try (FileChannel backup = FileChannel.open(
+                directoryBackup.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE))
+            {
+                long size = baseEntries * ENTRY_SIZE;
+                long copied = 0;
+                while (copied < size) {
+                    copied += channel.transferTo(baseOffset + copied, size - copied, backup);
+                }
+                backup.force(true);
+            }
+            baseChannel = FileChannel.open(directoryBackup.toPath(), StandardOpenOption.READ);
+            baseOffset = 0;
+        }
+
+        writing = true;
+        writeHeader(false);
+        channel.force(true);
+    }
+
+    private void finishWriting() throws IOException {
+        // Merge the sorted old directory with the new entries, new entries replace old ones
+        long directoryOffset = dataEnd;
+        long position = directoryOffset;
+        long entries = 0;
+        ByteBuffer out = ByteBuffer.allocate(ENTRY_SIZE * DIRECTORY_BUFFER_ENTRIES);
+
+        EntrySource merged = mergedEntries(0, Long.MAX_VALUE);
+        DirectoryEntry entry;
+        while ((entry = merged.next()) != null) {
+            out.putLong(entry.id()).putLong(entry.offset()).putInt(entry.length());
+            entries++;
+
+            if (!out.hasRemaining()) {
+                position = flush(out, position);
+            }
+        }
+        position = flush(out, position);
+        channel.truncate(position);
+
+        if (baseChannel != channel) {
+            baseChannel.close();
+        }
+        baseChannel = channel;
+        baseOffset = directoryOffset;
+        baseEntries = entries;
+        pending.close();
+
+        writing = false;
+        writeHeader(true);
+        channel.force(true);
+
+        if (directoryBackup.exists() && !directoryBackup.delete()) {
+            LOGGER.warn("Failed to delete directory backup {}", directoryBackup.getName());
+        }
+    }
+
+    private long flush(ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+        return position;
+    }
+
+    private void readHeader() throws IOException, InitException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new InitException("File is not a GSTK tile archive");
+        }
+        if (header.getInt() != VERSION) {
+            throw new InitException("Unsupported tile archive version");
+        }
+
+        boolean complete = header.getInt() == 1;
+        baseChannel = channel;
+        baseOffset = header.getLong();
+        baseEntries = header.getLong();
+        dataEnd = baseOffset;
+
+        minZoom = header.getInt();
+        maxZoom = header.getInt();
+        double minLon = header.getDouble();
+        double minLat = header.getDouble();
+        double maxLon = header.getDouble();
+        double maxLat = header.getDouble();
+        if (minZoom >= 0) {
+            bounds = new Envelope(minLon, maxLon, minLat, maxLat);
+        }
+
+        if (!complete) {
+            if (readOnly) {
+                throw new InitException("Tile archive " + file.getName() + " was not closed properly, open it for writing to restore it");
+            }
+
+            // Interrupted write session, restore the directory from before the session and drop its tiles
+            LOGGER.warn("Tile archive {} was not closed properly, restoring its previous contents", file.getName());
+            baseEntries = 0;
+            if (directoryBackup.exists()) {
+                try (FileChannel backup = FileChannel.open(directoryBackup.toPath(), StandardOpenOption.READ)) {
+                    long size = backup.size();
+                    long copied = 0;
+                    while (copied < size) {
+                        copied += channel.transferFrom(backup, baseOffset + copied, size - copied);
+                    }
+                    baseEntries = size / ENTRY_SIZE;
+                }
+            }
+            channel.truncate(baseOffset + baseEntries * ENTRY_SIZE);
+            writeHeader(true);
+            channel.force(true);
+            Files.deleteIfExists(directoryBackup.toPath());
+        }
+    }
+
+    private void writeHeader(boolean complete) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(complete ? 1 : 0);
+        // The directory offset doubles as the end of the data from before an unfinished session
+        header.putLong(complete ? baseOffset : dataEnd);
+        header.putLong(complete ? baseEntries : 0);
+        header.putInt(minZoom);
+        header.putInt(maxZoom);
+        header.putDouble(bounds != null ? bounds.getMinX() : 0);
+        header.putDouble(bounds != null ? bounds.getMinY() : 0);
+        header.putDouble(bounds != null ? bounds.getMaxX() : 0);
+        header.putDouble(bounds != null ? bounds.getMaxY() : 0);
+        header.clear();
+
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    private Entry findEntry(long id) throws IOException {
+        Entry entry = pending.get(id);
+        if (entry != null) {
+            return entry;
+        }
+
+        long index = lowerBound(id);
+        if (index < baseEntries) {
+            DirectoryEntry base = readBaseEntry(index);
+            if (base.id() == id) {
+                return new Entry(base.offset(), base.length());
+            }
+        }
+        return null;
+    }
+
+    // Base directory and new entries from startId on, consumers stop at their own end id
+    private EntrySource mergedEntries(long startId, long endId) throws IOException {
+        List<EntrySource> sources = new ArrayList<>();
+        sources.add(new DirectoryIterator(baseChannel, baseOffset, lowerBound(startId), baseEntries, DIRECTORY_BUFFER_ENTRIES));
+        sources.addAll(pending.sources(startId, endId));
+        return new MergedSource(sources);
+    }
+
+    private long lowerBound(long id) throws IOException {
+        return lowerBound(baseChannel, baseOffset, baseEntries, id);
+    }
+
+    private DirectoryEntry readBaseEntry(long index) throws IOException {
+        return readEntry(baseChannel, baseOffset, index);
+    }
+
+    private static long lowerBound(FileChannel channel, long offset, long count, long id) throws IOException {
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (readEntry(channel, offset, mid).id() < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static DirectoryEntry readEntry(FileChannel channel, long offset, long index) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        long position = offset + index * ENTRY_SIZE;
+        while (entry.hasRemaining()) {
+            if (channel.read(entry, position + entry.position()) < 0) {
+                throw new IOException("Unexpected end of tile archive directory");
+            }
+        }
+        entry.flip();
+        return new DirectoryEntry(entry.getLong(), entry.getLong(), entry.getInt());
+    }
+
+    private ByteBuffer readData(Entry entry) throws IOException {
+        if (entry.offset + entry.length > mappedSize) {
+            mapSegments();
+        }
+
+        int segment = (int) (entry.offset / SEGMENT_SIZE);
+        long index = entry.offset - segment * SEGMENT_SIZE;
+        if (segment < segments.length && index + entry.length <= segments[segment].capacity()) {
+            return segments[segment].slice((int) index, entry.length).asReadOnlyBuffer();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of tile archive data");
+            }
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private void mapSegments() throws IOException {
+        long size = dataEnd;
+        int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+
+        MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * SEGMENT_SIZE;
+            long length = Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, size - start);
+            mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        segments = mapped;
+        mappedSize = size;
+    }
+
+    private ContentKey contentKey(byte[] data) {
+        ByteBuffer hash = ByteBuffer.wrap(digest.digest(data));
+        return new ContentKey(hash.getLong(), hash.getLong(), hash.getLong(), hash.getLong());
+    }
+
+    private record Entry(long offset, int length) {}
+
+    private record DirectoryEntry(long id, long offset, int length) {}
+
+    // Full SHA-256 of the tile bytes
+    private record ContentKey(long h0, long h1, long h2, long h3) {}
+
+    // Entries sorted by id, null after the last one
+    private interface EntrySource {
+        DirectoryEntry next() throws IOException;
+    }
+
+    // Sequential buffered reader over a sorted directory or run
+    private static class DirectoryIterator implements EntrySource {
+        private final FileChannel channel;
+        private final long offset;
+        private final long endIndex;
+        private final ByteBuffer buffer;
+        private long nextIndex;
+
+        DirectoryIterator(FileChannel channel, long offset, long startIndex, long endIndex, int bufferEntries) {
+            this.channel = channel;
+            this.offset = offset;
+            this.endIndex = endIndex;
+            this.buffer = ByteBuffer.allocate(ENTRY_SIZE * bufferEntries);
+            nextIndex = startIndex;
+            buffer.limit(0);
+        }
+
+        @Override
+        public DirectoryEntry next() throws IOException {
+            if (!buffer.hasRemaining()) {
+                long count = Math.min(endIndex - nextIndex, buffer.capacity() / ENTRY_SIZE);
+                if (count <= 0) {
+                    return null;
+                }
+
+                buffer.clear();
+                buffer.limit((int) count * ENTRY_SIZE);
+                long position = offset + nextIndex * ENTRY_SIZE;
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of tile archive directory");
+                    }
+                }
+                buffer.flip();
+                nextIndex += count;
+            }
+            return new DirectoryEntry(buffer.getLong(), buffer.getLong(), buffer.getInt());
+        }
+    }
+
+    // Merges sorted sources, on equal ids the entry of the later source wins
+    private static class MergedSource implements EntrySource {
+        private final List<EntrySource> sources;
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(
+            Comparator.comparingLong((Head head) -> head.entry().id()).thenComparing(Head::source, Comparator.reverseOrder())
+        );
+
+        MergedSource(List<EntrySource> sources) throws IOException {
+            this.sources = sources;
+            for (int i = 0; i < sources.size(); i++) {
+                advance(i);
+            }
+        }
+
+        @Override
+        public DirectoryEntry next() throws IOException {
+            Head head = heads.poll();
+            if (head == null) {
+                return null;
+            }
+
+            advance(head.source());
+            while (!heads.isEmpty() && heads.peek().entry().id() == head.entry().id()) {
+                advance(heads.poll().source());
+            }
+            return head.entry();
+        }
+
+        private void advance(int source) throws IOException {
+            DirectoryEntry entry = sources.get(source).next();
+            if (entry != null) {
+                heads.add(new Head(entry, source));
+            }
+        }
+
+        private record Head(DirectoryEntry entry, int source) {}
+    }
+
+    // Entries by id, kept in memory up to runEntries and then written to a file as a sorted run.
+    // Later puts replace earlier ones, also across runs.
+    private static class EntryRuns implements Closeable {
+        private final Path path;
+        private final int runEntries;
+
+        private final TreeMap<Long, Entry> buffer = new TreeMap<>();
+        private final List<Run> runs = new ArrayList<>();
+        private Path runsFile = null;
+        private FileChannel channel = null;
+        private long end = 0;
+
+        // Without a path, runs go to a temporary file
+        EntryRuns(Path path, int runEntries) {
+            this.path = path;
+            this.runEntries = runEntries;
+        }
+
+        void put(long id, Entry entry) throws IOException {
+            buffer.put(id, entry);
+            if (buffer.size() >= runEntries) {
+                spill();
+            }
+        }
+
+        Entry get(long id) throws IOException {
+            Entry entry = buffer.get(id);
+            if (entry != null) {
+                return entry;
+            }
+
+            for (int i = runs.size() - 1; i >= 0; i--) {
+                Run run = runs.get(i);
+                if (id < run.minId() || id > run.maxId()) {
+                    continue;
+                }
+                long index = lowerBound(channel, run.offset(), run.count(), id);
+                if (index < run.count()) {
+                    DirectoryEntry found = readEntry(channel, run.offset(), index);
+                    if (found.id() == id) {
+                        return new Entry(found.offset(), found.length());
+                    }
+                }
+            }
+            return null;
+        }
+
+        // Whether any entry has an id from startId (inclusive) to endId (exclusive)
+        boolean containsAny(long startId, long endId) throws IOException {
+            if (!buffer.subMap(startId, endId).isEmpty()) {
+                return true;
+            }
+            for (Run run : runs) {
+                long index = lowerBound(channel, run.offset(), run.count(), startId);
+                if (index < run.count() && readEntry(channel, run.offset(), index).id() < endId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Oldest first, the in-memory entries end at endId, runs are read from startId on
+        List<EntrySource> sources(long startId, long endId) throws IOException {
+            List<EntrySource> sources = new ArrayList<>();
+            for (Run run : runs) {
+                long index = lowerBound(channel, run.offset(), run.count(), startId);
+                sources.add(new DirectoryIterator(channel, run.offset(), index, run.count(), RUN_BUFFER_ENTRIES));
+            }
+
+            Iterator<Map.Entry<Long, Entry>> iter = buffer.subMap(startId, endId).entrySet().iterator();
+            sources.add(() -> {
+                if (!iter.hasNext()) {
+                    return null;
+                }
+                Map.Entry<Long, Entry> next = iter.next();
+                return new DirectoryEntry(next.getKey(), next.getValue().offset(), next.getValue().length());
+            });
+            return sources;
+        }
+
+        private void spill() throws IOException {
+            if (channel == null) {
+                runsFile = path != null ? path : Files.createTempFile("gstk-archive-", ".runs");
+                channel = FileChannel.open(
+                    runsFile,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE
+                );
+            }
+
+            ByteBuffer out = ByteBuffer.allocate(ENTRY_SIZE * DIRECTORY_BUFFER_ENTRIES);
+            long position = end;
+            for (Map.Entry<Long, Entry> entry : buffer.entrySet()) {
+                out.putLong(entry.getKey()).putLong(entry.getValue().offset()).putInt(entry.getValue().length());
+                if (!out.hasRemaining()) {
+                    position = write(out, position);
+                }
+            }
+            position = write(out, position);
+
+            runs.add(new Run(end, buffer.size(), buffer.firstKey(), buffer.lastKey()));
+            end = position;
+            buffer.clear();
+        }
+
+        private long write(ByteBuffer out, long position) throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                position += channel.write(out, position);
+            }
+            out.clear();
+            return position;
+        }
+
+        // Drops every entry and deletes the runs file
+        @Override
+        public void close() throws IOException {
+            buffer.clear();
+            runs.clear();
+            end = 0;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+                Files.deleteIfExists(runsFile);
+            }
+        }
+
+        private record Run(long offset, long count, long minId, long maxId) {}
+    }
+}
@@ -0,0 +1,83 @@
+package org.gstk.db;
+
+import org.gstk.db.TileDB.Freshness;
+import org.gstk.utils.TileUtils;
+import org.gstk.utils.TileUtils.TilePosition;
+
+import java.sql.*;
+import java.util.List;
+
+// Fetch time and HTTP validators per tile, keyed by Hilbert tile id, writes run inside the caller's transaction
+final class FreshnessTable {
+    private FreshnessTable() {}
+
+    static void create(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(
+                """
+                CREATE TABLE IF NOT EXISTS gstk_tile_freshness (
+                    tile_id       INTEGER PRIMARY KEY,
+                    fetched       INTEGER,
+                    etag          TEXT,
+                    last_modified TEXT
+                )
+                """
+            );
+        }
+    }
+
+    // The primary key is the Hilbert tile id, so the zoom level is read as one ordered range
+    static void scan(Connection conn, int zoom, TileDB.FreshnessConsumer consumer) throws Exception {
+        // Read-only databases of older versions never got the table
+        try (Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'gstk_tile_freshness'"))
+        {
+            if (!rs.next()) {
+                return;
+            }
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement(
+            """
+            SELECT tile_id, fetched, etag, last_modified FROM gstk_tile_freshness
+                WHERE tile_id >= ? AND tile_id < ?
+                ORDER BY tile_id
+            """))
+        {
+            ps.setLong(1, TileUtils.zoomTileIdStart(zoom));
+            ps.setLong(2, TileUtils.zoomTileIdStart(zoom + 1));
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                consumer.accept(new Freshness(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getString(4)));
+            }
+        }
+    }
+
+    static void update(Connection conn, List<Freshness> freshness) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+            """
+            INSERT OR REPLACE INTO gstk_tile_freshness (tile_id, fetched, etag, last_modified) VALUES (?, ?, ?, ?)
+            """))
+        {
+            for (Freshness entry : freshness) {
+                ps.setLong(1, entry.id());
+                ps.setLong(2, entry.fetchedMillis());
+                ps.setString(3, entry.etag());
+                ps.setString(4, entry.lastModified());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    static void delete(Connection conn, List<TilePosition> tiles) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM gstk_tile_freshness WHERE tile_id = ?")) {
+            for (TilePosition tile : tiles) {
+                ps.setLong(1, TileUtils.hilbertTileId(tile));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+}
@@ -5,13 +5,19 @@ import org.geotools.geopkg.GeoPackage;
 import org.geotools.geopkg.TileEntry;
 import org.geotools.geopkg.TileMatrix;
 import org.geotools.referencing.CRS;
+import org.gstk.Constants;
 import org.gstk.Region;
-import org.gstk.utils.TileUtils;
+import org.gstk.jfr.BatchCommitEvent;
+import org.gstk.utils.TileFormat;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
 import org.gstk.utils.ValidationUtils;
+import org.sqlite.SQLiteConfig;
 
 import java.io.File;
 import java.io.IOException;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.List;
 
 public class GeoPackageDB implements TileDB {
@@ -21,10 +27,27 @@ public class GeoPackageDB implements TileDB {
     private final String layer;
 
     private final Connection conn;
+    private final TileCache cache;
     private GeoPackage gpkg = null;
 
+    private PreparedStatement getTileStatement = null;
+    private boolean webpRegistered = false;
+
+    // Read-only geopackages must exist and are never created or written to
+    private final boolean readOnly;
+
     public GeoPackageDB(String id) throws InitException {
+        this(id, new TileCache(Constants.TILE_CACHE_SIZE_BYTES));
+    }
+
+    public GeoPackageDB(String id, TileCache cache) throws InitException {
+        this(id, cache, false);
+    }
+
+    public GeoPackageDB(String id, TileCache cache, boolean readOnly) throws InitException {
         identifier = id;
+        this.cache = cache;
+        this.readOnly = readOnly;
         String[] parts = id.split("@");
         if (parts.length != 2) {
             throw new InitException("Invalid geopackage (format: layer@file)");
@@ -37,13 +60,19 @@ public class GeoPackageDB implements TileDB {
             throw new InitException("Invalid layer / table name");
         }
 
+        if (readOnly && !file.isFile()) {
+            throw new InitException("Geopackage file " + file.getAbsolutePath() + " doesn't exist");
+        }
+
         String jdbcUrl = "jdbc:sqlite:" + parts[1];
         try {
-            conn = DriverManager.getConnection(jdbcUrl);
+            SQLiteConfig config = new SQLiteConfig();
+            config.setReadOnly(readOnly);
+            conn = DriverManager.getConnection(jdbcUrl, config.toProperties());
             if (conn == null || conn.isClosed()) {
                 throw new InitException("Failed to connect to database");
             }
-            if (conn.isReadOnly()) {
+            if (!readOnly && conn.isReadOnly()) {
                 throw new InitException("Database is read-only");
             }
         } catch (SQLException e) {
@@ -54,6 +83,9 @@ public class GeoPackageDB implements TileDB {
     @Override
     public void close() {
         try {
+            if (getTileStatement != null) {
+                getTileStatement.close();
+            }
             conn.close();
         } catch (Exception ignored) {}
     }
@@ -63,6 +95,11 @@ public class GeoPackageDB implements TileDB {
         return "gpkg:" + identifier;
     }
 
+    @Override
+    public File getFile() {
+        return file;
+    }
+
     @Override
     public boolean isConnected() {
         try {
@@ -73,9 +110,23 @@ public class GeoPackageDB implements TileDB {
     }
 
     @Override
-    public void init() throws IOException {
+    public void init() throws IOException, SQLException {
+        if (readOnly) {
+            try (PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM gpkg_contents WHERE table_name = ? AND data_type = 'tiles'")) {
+                ps.setString(1, layer);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new SQLException("Geopackage " + file.getName() + " has no tile layer " + layer);
+                    }
+                }
+            }
+            return;
+        }
+
         gpkg = new GeoPackage(file);
         gpkg.init();
+        ProgressTable.create(conn);
+        FreshnessTable.create(conn);
     }
 
     @Override
@@ -118,17 +169,148 @@ public class GeoPackageDB implements TileDB {
     }
 
     @Override
-    public synchronized void storeTile(TileUtils.TileData tile) throws SQLException {
+    public synchronized void storeTile(TileData tile) throws SQLException {
+        storeTiles(List.of(tile));
+    }
+
+    @Override
+    public synchronized void storeTiles(List<TileData> tiles) throws SQLException {
+        storeTiles(tiles, null);
+    }
+
+    @Override
+    public synchronized void storeTiles(List<TileData> tiles, Progress progress) throws SQLException {
+        storeTiles(tiles, progress, null);
+    }
+
+    @Override
+    public synchronized void storeTiles(List<TileData> tiles, Progress progress, List<Freshness> freshness) throws SQLException {
         String sql =
             "INSERT OR REPLACE INTO " + layer + " (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)";
 
+        BatchCommitEvent event = new BatchCommitEvent();
+        event.begin();
+
+        boolean batch = tiles.size() > 1 || progress != null || (freshness != null && !freshness.isEmpty());
+        if (batch) {
+            conn.setAutoCommit(false);
+        }
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, tile.pos().zoom());
-            ps.setInt(2, tile.pos().x());
-            ps.setInt(3, tile.pos().y());
-            ps.setBytes(4, tile.data());
-            ps.executeUpdate();
+            for (TileData tile : tiles) {
+                if (!webpRegistered && TileFormat.detect(tile.data()) == TileFormat.WEBP) {
+                    registerWebpExtension();
+                }
+                ps.setInt(1, tile.pos().zoom());
+                ps.setInt(2, tile.pos().x());
+                ps.setInt(3, tile.pos().y());
+                ps.setBytes(4, tile.data());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            if (progress != null) {
+                ProgressTable.update(conn, progress);
+            }
+            if (freshness != null && !freshness.isEmpty()) {
+                FreshnessTable.update(conn, freshness);
+            }
+
+            if (batch) {
+                conn.commit();
+            }
+        } catch (SQLException e) {
+            if (batch) {
+                conn.rollback();
+            }
+            throw e;
+        } finally {
+            if (batch) {
+                conn.setAutoCommit(true);
+            }
+        }
+        event.commitBatch(getIdentifier(), tiles);
+
+        if (cache != null) {
+            for (TileData tile : tiles) {
+                cache.invalidate(tile.pos());
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsProgress() {
+        return true;
+    }
+
+    @Override
+    public synchronized List<ProgressRange> getProgress(String job, int zoom) throws SQLException {
+        return ProgressTable.get(conn, job, zoom);
+    }
+
+    @Override
+    public synchronized void setProgress(Progress progress) throws SQLException {
+        conn.setAutoCommit(false);
+        try {
+            ProgressTable.replace(conn, progress);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    @Override
+    public synchronized void clearProgress(String job) throws SQLException {
+        ProgressTable.clear(conn, job);
+    }
+
+    @Override
+    public boolean supportsFreshness() {
+        return true;
+    }
+
+    @Override
+    public synchronized void scanFreshness(int zoom, FreshnessConsumer consumer) throws Exception {
+        FreshnessTable.scan(conn, zoom, consumer);
+    }
+
+    @Override
+    public boolean supportsDelete() {
+        return true;
+    }
+
+    @Override
+    public synchronized int deleteTiles(List<TilePosition> tiles) throws SQLException {
+        int deleted = 0;
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement(
+            "DELETE FROM " + layer + " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?"))
+        {
+            for (TilePosition tile : tiles) {
+                ps.setInt(1, tile.zoom());
+                ps.setInt(2, tile.x());
+                ps.setInt(3, tile.y());
+                ps.addBatch();
+            }
+            for (int count : ps.executeBatch()) {
+                deleted += Math.max(count, 0);
+            }
+            FreshnessTable.delete(conn, tiles);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
         }
+
+        if (cache != null) {
+            for (TilePosition tile : tiles) {
+                cache.invalidate(tile);
+            }
+        }
+        return deleted;
     }
 
     @Override
@@ -145,6 +327,131 @@ public class GeoPackageDB implements TileDB {
         }
     }
 
+    @Override
+    public synchronized byte[] getTile(int column, int row, int zoom) throws SQLException {
+        TilePosition pos = new TilePosition(column, row, zoom);
+        if (cache != null) {
+            byte[] data = cache.get(pos);
+            if (data != null) {
+                return data;
+            }
+        }
+
+        if (getTileStatement == null) {
+            getTileStatement = conn.prepareStatement(
+                "SELECT tile_data FROM " + layer + " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?"
+            );
+        }
+
+        getTileStatement.setInt(1, zoom);
+        getTileStatement.setInt(2, column);
+        getTileStatement.setInt(3, row);
+
+        byte[] data = null;
+        try (ResultSet rs = getTileStatement.executeQuery()) {
+            if (rs.next()) {
+                data = rs.getBytes(1);
+            }
+        }
+
+        if (data != null && cache != null) {
+            cache.put(pos, data);
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized void scanTiles(
+        int zoom,
+        int minColumn,
+        int minRow,
+        int maxColumn,
+        int maxRow,
+        TileConsumer consumer) throws Exception
+    {
+        String sql =
+            "SELECT tile_column, tile_row, tile_data FROM " + layer +
+            " WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?" +
+            " ORDER BY tile_column, tile_row";
+
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, zoom);
+            ps.setInt(2, minColumn);
+            ps.setInt(3, maxColumn);
+            ps.setInt(4, minRow);
+            ps.setInt(5, maxRow);
+            ps.setFetchSize(256);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    TilePosition pos = new TilePosition(rs.getInt(1), rs.getInt(2), zoom);
+                    consumer.accept(new TileData(pos, rs.getBytes(3)));
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<Integer> getZoomLevels() throws SQLException {
+        List<Integer> zooms = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT DISTINCT zoom_level FROM " + layer + " ORDER BY zoom_level"))
+        {
+            while (rs.next()) {
+                zooms.add(rs.getInt(1));
+            }
+        }
+        return zooms;
+    }
+
+    @Override
+    public synchronized TileRange getTileRange(int zoom) throws SQLException {
+        String sql =
+            "SELECT COUNT(*), MIN(tile_column), MIN(tile_row), MAX(tile_column), MAX(tile_row) FROM " + layer +
+            " WHERE zoom_level = ?";
+
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, zoom);
+
+            ResultSet rs = ps.executeQuery();
+            if (!rs.next() || rs.getLong(1) == 0) {
+                return null;
+            }
+            return new TileRange(rs.getLong(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getInt(5));
+        }
+    }
+
+    @Override
+    public synchronized void importTiles(File tilesFile) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("ATTACH DATABASE ? AS source")) {
+            ps.setString(1, tilesFile.getPath());
+            ps.executeUpdate();
+        }
+
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(
+                "INSERT OR REPLACE INTO " + layer + " (zoom_level, tile_column, tile_row, tile_data)" +
+                " SELECT zoom_level, tile_column, tile_row, tile_data FROM source.tiles" +
+                " ORDER BY zoom_level, tile_column, tile_row"
+            );
+
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("DETACH DATABASE source");
+            }
+        }
+
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
     private void addTileMatrices(List<TileMatrix> matrices) throws SQLException {
         for (TileMatrix matrix : matrices) {
             try (PreparedStatement ps = conn.prepareStatement(
@@ -205,4 +512,32 @@ public class GeoPackageDB implements TileDB {
             ps.executeUpdate();
         }
     }
+
+    // Png and jpeg are core GeoPackage tile formats, webp tiles need the gpkg_webp extension
+    private void registerWebpExtension() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(
+                """
+                CREATE TABLE IF NOT EXISTS gpkg_extensions (
+                    table_name     TEXT,
+                    column_name    TEXT,
+                    extension_name TEXT NOT NULL,
+                    definition     TEXT NOT NULL,
+                    scope          TEXT NOT NULL,
+                    CONSTRAINT ge_tce UNIQUE (table_name, column_name, extension_name)
+                )
+                """
+            );
+        }
+        try (PreparedStatement ps = conn.prepareStatement(
+            """
+            INSERT OR IGNORE INTO gpkg_extensions (table_name, column_name, extension_name, definition, scope)
+                VALUES (?, 'tile_data', 'gpkg_webp', 'http://www.geopackage.org/spec/#extension_tiles_webp', 'read-write')
+            """))
+        {
+            ps.setString(1, layer);
+            ps.executeUpdate();
+        }
+        webpRegistered = true;
+    }
 }
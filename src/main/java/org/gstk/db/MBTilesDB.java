@@ -1,31 +1,76 @@
 package org.gstk.db;
 
+import org.gstk.Constants;
 import org.gstk.Region;
-import org.gstk.utils.ImageUtils;
-import org.gstk.utils.TileUtils;
+import org.gstk.jfr.BatchCommitEvent;
+import org.gstk.utils.TileFormat;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
 
 import java.io.File;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class MBTilesDB implements TileDB {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MBTilesDB.class);
+
     private final File file;
+    private final File stagingFile;
     private final Connection conn;
+    private final TileCache cache;
+
+    private PreparedStatement getTileStatement = null;
+
+    // MBTiles holds tiles of one format, decided by the first stored tile
+    private TileFormat format = null;
+    private boolean formatLoaded = false;
+
+    // Bulk load mode writes into an unindexed staging database and builds the tile index once on close,
+    // reads finish the bulk load early once anything was staged
+    private boolean bulkLoad = false;
+    private boolean stagingIndexed = false;
+    private final Set<Integer> stagedZooms = new HashSet<>();
+
+    // Read-only databases must exist and are never created, migrated or written to
+    private final boolean readOnly;
 
     public MBTilesDB(String filename) throws InitException {
+        this(filename, new TileCache(Constants.TILE_CACHE_SIZE_BYTES));
+    }
+
+    public MBTilesDB(String filename, TileCache cache) throws InitException {
+        this(filename, cache, false);
+    }
+
+    public MBTilesDB(String filename, TileCache cache, boolean readOnly) throws InitException {
         this.file = new File(filename);
-        if (file.exists() && (!file.canRead() || !file.canWrite())) {
+        this.cache = cache;
+        this.stagingFile = new File(filename + "-staging");
+        this.readOnly = readOnly;
+        if (readOnly && !file.isFile()) {
+            throw new InitException("Database file " + file.getAbsolutePath() + " doesn't exist");
+        }
+        if (file.exists() && (!file.canRead() || (!readOnly && !file.canWrite()))) {
             throw new InitException("Insufficient file permissions for " + file.getAbsolutePath());
         }
 
         String jdbcUrl = "jdbc:sqlite:" + filename;
         try {
-            conn = DriverManager.getConnection(jdbcUrl);
+            SQLiteConfig config = new SQLiteConfig();
+            config.setReadOnly(readOnly);
+            conn = DriverManager.getConnection(jdbcUrl, config.toProperties());
             if (conn == null || conn.isClosed()) {
                 throw new InitException("Failed to connect to database");
             }
-            if (conn.isReadOnly()) {
+            if (!readOnly && conn.isReadOnly()) {
                 throw new InitException("Database is read-only");
             }
         } catch (SQLException e) {
@@ -35,7 +80,17 @@ public class MBTilesDB implements TileDB {
 
     @Override
     public void close() {
+        if (bulkLoad) {
+            try {
+                finishBulkLoad();
+            } catch (SQLException e) {
+                LOGGER.error("Failed to build tile index, staged tiles will be merged on next open of {}", file.getName(), e);
+            }
+        }
         try {
+            if (getTileStatement != null) {
+                getTileStatement.close();
+            }
             conn.close();
         } catch (Exception ignored) {}
     }
@@ -45,6 +100,11 @@ public class MBTilesDB implements TileDB {
         return "mbtiles:" + file.getAbsolutePath();
     }
 
+    @Override
+    public File getFile() {
+        return file;
+    }
+
     @Override
     public boolean isConnected() {
         try {
@@ -56,6 +116,13 @@ public class MBTilesDB implements TileDB {
 
     @Override
     public void init() throws SQLException {
+        if (readOnly) {
+            initReadOnly();
+            return;
+        }
+
+        boolean fresh = !tableExists("tiles");
+
         conn.setAutoCommit(false);
         try (Statement stmt = conn.createStatement()) {
             stmt.executeUpdate("CREATE TABLE IF NOT EXISTS metadata (name TEXT UNIQUE, value TEXT)");
@@ -69,7 +136,11 @@ public class MBTilesDB implements TileDB {
                 )
                 """
             );
-            stmt.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)");
+            if (!fresh) {
+                stmt.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)");
+            }
+            ProgressTable.create(conn);
+            FreshnessTable.create(conn);
 
             conn.commit();
         } catch (SQLException e) {
@@ -79,8 +150,61 @@ public class MBTilesDB implements TileDB {
             conn.setAutoCommit(true);
         }
 
+        if (stagingFile.exists()) {
+            if (fresh) {
+                // Leftover from a deleted database, the staged tiles don't belong to this one
+                if (!stagingFile.delete()) {
+                    throw new SQLException("Failed to delete stale staging file " + stagingFile.getName());
+                }
+            } else {
+                LOGGER.info("Merging tiles staged by an unfinished bulk load into {}", file.getName());
+                attachStaging();
+                finishBulkLoad();
+            }
+        }
+
+        if (fresh) {
+            attachStaging();
+            bulkLoad = true;
+        }
+
         updateMetadata("name", "GSTK Tiles");
-        updateMetadata("format", "png");
+        // A new database gets its format with the first stored tile
+        format = fresh ? null : storedFormat();
+        formatLoaded = true;
+    }
+
+    private void initReadOnly() throws SQLException {
+        if (!tableExists("tiles")) {
+            throw new SQLException(file.getName() + " is not an MBTiles database");
+        }
+        if (stagingFile.exists()) {
+            // Merging needs write access and would pull the staging file from under a running download
+            throw new SQLException(file.getName() + " has tiles staged by an unfinished download, finish or resume the download to merge them");
+        }
+        format = storedFormat();
+        formatLoaded = true;
+    }
+
+    // null without tiles, older versions wrote a png placeholder before the first tile was stored
+    private TileFormat storedFormat() throws SQLException {
+        byte[] first;
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("SELECT tile_data FROM tiles LIMIT 1")) {
+            if (!rs.next()) {
+                return null;
+            }
+            first = rs.getBytes(1);
+        }
+
+        TileFormat declared = tableExists("metadata") ? TileFormat.fromName(getMetadata("format")) : null;
+        if (declared != null) {
+            return declared;
+        }
+        TileFormat detected = TileFormat.detect(first);
+        if (detected != null && !readOnly) {
+            updateMetadata("format", detected.name);
+        }
+        return detected;
     }
 
     @Override
@@ -105,44 +229,396 @@ public class MBTilesDB implements TileDB {
     }
 
     @Override
-    public synchronized void storeTile(TileUtils.TileData tile) throws SQLException, IllegalArgumentException {
-        if (!ImageUtils.isPng(tile.data())) {
-            throw new IllegalArgumentException("Tile is not in png format");
+    public synchronized void storeTile(TileData tile) throws SQLException, IllegalArgumentException {
+        storeTiles(List.of(tile));
+    }
+
+    @Override
+    public synchronized void storeTiles(List<TileData> tiles) throws SQLException, IllegalArgumentException {
+        storeTiles(tiles, null);
+    }
+
+    @Override
+    public synchronized void storeTiles(List<TileData> tiles, Progress progress) throws SQLException, IllegalArgumentException {
+        storeTiles(tiles, progress, null);
+    }
+
+    @Override
+    public synchronized void storeTiles(List<TileData> tiles, Progress progress, List<Freshness> freshness) throws SQLException, IllegalArgumentException {
+        if (!formatLoaded) {
+            // Opened without init(), an existing database still keeps the format of its stored tiles
+            format = tableExists("tiles") ? storedFormat() : null;
+            formatLoaded = true;
+        }
+        TileFormat batchFormat = format;
+        for (TileData tile : tiles) {
+            TileFormat tileFormat = TileFormat.detect(tile.data());
+            if (tileFormat == null) {
+                throw new IllegalArgumentException("Tile " + tile.pos() + " is not in png, jpg or webp format");
+            }
+            if (batchFormat == null) {
+                batchFormat = tileFormat;
+            } else if (tileFormat != batchFormat) {
+                throw new IllegalArgumentException(
+                    "Tile " + tile.pos() + " is in " + tileFormat.name + " format, the database holds " + batchFormat.name + " tiles"
+                );
+            }
+        }
+
+        String sql = bulkLoad
+            ? "INSERT INTO staging.tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)"
+            : "INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)";
+
+        BatchCommitEvent event = new BatchCommitEvent();
+        event.begin();
+
+        boolean batch = tiles.size() > 1 || progress != null || (freshness != null && !freshness.isEmpty());
+        if (batch) {
+            conn.setAutoCommit(false);
+        }
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (TileData tile : tiles) {
+                int zoom = tile.pos().zoom();
+                int x = tile.pos().x();
+                int y = tile.pos().y();
+                int tmsY = (1 << zoom) - 1 - y;
+
+                ps.setInt(1, zoom);
+                ps.setInt(2, x);
+                ps.setInt(3, tmsY);
+                ps.setBytes(4, tile.data());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            if (progress != null) {
+                ProgressTable.update(conn, progress);
+            }
+            if (freshness != null && !freshness.isEmpty()) {
+                FreshnessTable.update(conn, freshness);
+            }
+            if (format == null && batchFormat != null) {
+                updateMetadata("format", batchFormat.name);
+            }
+
+            if (batch) {
+                conn.commit();
+            }
+        } catch (SQLException e) {
+            if (batch) {
+                conn.rollback();
+            }
+            throw e;
+        } finally {
+            if (batch) {
+                conn.setAutoCommit(true);
+            }
         }
+        format = batchFormat;
+        event.commitBatch(getIdentifier(), tiles);
 
+        for (TileData tile : tiles) {
+            if (bulkLoad) {
+                stagedZooms.add(tile.pos().zoom());
+            }
+            if (cache != null) {
+                cache.invalidate(tile.pos());
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsProgress() {
+        return true;
+    }
+
+    @Override
+    public synchronized List<ProgressRange> getProgress(String job, int zoom) throws SQLException {
+        return ProgressTable.get(conn, job, zoom);
+    }
+
+    @Override
+    public synchronized void setProgress(Progress progress) throws SQLException {
+        conn.setAutoCommit(false);
+        try {
+            ProgressTable.replace(conn, progress);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    @Override
+    public synchronized void clearProgress(String job) throws SQLException {
+        ProgressTable.clear(conn, job);
+    }
+
+    @Override
+    public boolean supportsFreshness() {
+        return true;
+    }
+
+    @Override
+    public synchronized void scanFreshness(int zoom, FreshnessConsumer consumer) throws Exception {
+        FreshnessTable.scan(conn, zoom, consumer);
+    }
+
+    @Override
+    public boolean supportsDelete() {
+        return true;
+    }
+
+    @Override
+    public synchronized int deleteTiles(List<TilePosition> tiles) throws SQLException {
+        // Staged duplicates would survive a delete, so the staging database is merged first
+        if (!stagedZooms.isEmpty()) {
+            finishBulkLoad();
+        }
+
+        int deleted = 0;
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement(
+            "DELETE FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?"))
+        {
+            for (TilePosition tile : tiles) {
+                ps.setInt(1, tile.zoom());
+                ps.setInt(2, tile.x());
+                ps.setInt(3, (1 << tile.zoom()) - 1 - tile.y());
+                ps.addBatch();
+            }
+            for (int count : ps.executeBatch()) {
+                deleted += Math.max(count, 0);
+            }
+            FreshnessTable.delete(conn, tiles);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+
+        if (cache != null) {
+            for (TilePosition tile : tiles) {
+                cache.invalidate(tile);
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public synchronized boolean doesTileExist(int column, int row, int zoom) throws SQLException {
+        String sql = "SELECT * FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+        if (bulkLoad) {
+            // The database was empty when the bulk load started, only zoom levels staged since then can have tiles
+            if (!stagedZooms.contains(zoom)) {
+                return false;
+            }
+            if (!stagingIndexed) {
+                // Probing writers (e.g. merges that keep existing tiles) would scan the staged tiles for every probe,
+                // downloads only probe zoom levels before they are staged and never get here
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeUpdate(
+                        "CREATE INDEX IF NOT EXISTS staging.staged_tile_index ON tiles (zoom_level, tile_column, tile_row)"
+                    );
+                }
+                stagingIndexed = true;
+            }
+            sql = "SELECT * FROM staging.tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, zoom);
+            ps.setInt(2, column);
+
+            int tmsRow = (1 << zoom) - 1 - row;
+            ps.setInt(3, tmsRow);
+
+            ResultSet rs = ps.executeQuery();
+            return rs.next();
+        }
+    }
+
+    @Override
+    public synchronized byte[] getTile(int column, int row, int zoom) throws SQLException {
+        TilePosition pos = new TilePosition(column, row, zoom);
+        if (cache != null) {
+            byte[] data = cache.get(pos);
+            if (data != null) {
+                return data;
+            }
+        }
+
+        if (!stagedZooms.isEmpty()) {
+            finishBulkLoad();
+        }
+        if (getTileStatement == null) {
+            getTileStatement = conn.prepareStatement(
+                """
+                SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?
+                """
+            );
+        }
+
+        getTileStatement.setInt(1, zoom);
+        getTileStatement.setInt(2, column);
+        getTileStatement.setInt(3, (1 << zoom) - 1 - row);
+
+        byte[] data = null;
+        try (ResultSet rs = getTileStatement.executeQuery()) {
+            if (rs.next()) {
+                data = rs.getBytes(1);
+            }
+        }
+
+        if (data != null && cache != null) {
+            cache.put(pos, data);
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized void scanTiles(
+        int zoom,
+        int minColumn,
+        int minRow,
+        int maxColumn,
+        int maxRow,
+        TileConsumer consumer) throws Exception
+    {
+        if (!stagedZooms.isEmpty()) {
+            finishBulkLoad();
+        }
+
+        int maxTmsRow = (1 << zoom) - 1;
         try (PreparedStatement ps = conn.prepareStatement(
             """
-            INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)
+            SELECT tile_column, tile_row, tile_data FROM tiles
+                WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?
+                ORDER BY tile_column, tile_row DESC
             """))
         {
-            int zoom = tile.pos().zoom();
-            int x = tile.pos().x();
-            int y = tile.pos().y();
-            int tmsY = (1 << zoom) - 1 - y;
-
             ps.setInt(1, zoom);
-            ps.setInt(2, x);
-            ps.setInt(3, tmsY);
-            ps.setBytes(4, tile.data());
-            ps.executeUpdate();
+            ps.setInt(2, minColumn);
+            ps.setInt(3, maxColumn);
+            ps.setInt(4, maxTmsRow - maxRow);
+            ps.setInt(5, maxTmsRow - minRow);
+            ps.setFetchSize(256);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    TilePosition pos = new TilePosition(rs.getInt(1), maxTmsRow - rs.getInt(2), zoom);
+                    consumer.accept(new TileData(pos, rs.getBytes(3)));
+                }
+            }
         }
     }
 
     @Override
-    public boolean doesTileExist(int column, int row, int zoom) throws SQLException {
+    public synchronized TileFormat getTileFormat() {
+        return format;
+    }
+
+    @Override
+    public synchronized List<Integer> getZoomLevels() throws SQLException {
+        if (!stagedZooms.isEmpty()) {
+            finishBulkLoad();
+        }
+
+        List<Integer> zooms = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT DISTINCT zoom_level FROM tiles ORDER BY zoom_level"))
+        {
+            while (rs.next()) {
+                zooms.add(rs.getInt(1));
+            }
+        }
+        return zooms;
+    }
+
+    @Override
+    public synchronized TileRange getTileRange(int zoom) throws SQLException {
+        if (!stagedZooms.isEmpty()) {
+            finishBulkLoad();
+        }
+
         try (PreparedStatement ps = conn.prepareStatement(
             """
-            SELECT * FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?
+            SELECT COUNT(*), MIN(tile_column), MIN(tile_row), MAX(tile_column), MAX(tile_row) FROM tiles
+                WHERE zoom_level = ?
             """))
         {
             ps.setInt(1, zoom);
-            ps.setInt(2, column);
 
-            int tmsRow = (1 << zoom) - 1 - row;
-            ps.setInt(3, tmsRow);
+            ResultSet rs = ps.executeQuery();
+            if (!rs.next() || rs.getLong(1) == 0) {
+                return null;
+            }
+
+            int maxTmsRow = (1 << zoom) - 1;
+            return new TileRange(rs.getLong(1), rs.getInt(2), maxTmsRow - rs.getInt(5), rs.getInt(4), maxTmsRow - rs.getInt(3));
+        }
+    }
+
+    @Override
+    public synchronized void importTiles(File tilesFile) throws SQLException {
+        TileFormat importedFormat = null;
+        try (PreparedStatement ps = conn.prepareStatement("ATTACH DATABASE ? AS source")) {
+            ps.setString(1, tilesFile.getPath());
+            ps.executeUpdate();
+        }
+
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            String insert = bulkLoad
+                ? "INSERT INTO staging.tiles"
+                : "INSERT OR REPLACE INTO tiles";
+            stmt.executeUpdate(insert +
+                " (zoom_level, tile_column, tile_row, tile_data)" +
+                " SELECT zoom_level, tile_column, (1 << zoom_level) - 1 - tile_row, tile_data FROM source.tiles" +
+                " ORDER BY zoom_level, tile_column, tile_row DESC"
+            );
+            if (bulkLoad) {
+                ResultSet rs = stmt.executeQuery("SELECT DISTINCT zoom_level FROM source.tiles");
+                while (rs.next()) {
+                    stagedZooms.add(rs.getInt(1));
+                }
+            }
+            if (format == null) {
+                ResultSet rs = stmt.executeQuery("SELECT tile_data FROM source.tiles LIMIT 1");
+                importedFormat = rs.next() ? TileFormat.detect(rs.getBytes(1)) : null;
+                if (importedFormat != null) {
+                    updateMetadata("format", importedFormat.name);
+                }
+            }
+
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("DETACH DATABASE source");
+            }
+        }
+        if (importedFormat != null) {
+            format = importedFormat;
+        }
+
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    private String getMetadata(String name) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT value FROM metadata WHERE name = ?")) {
+            ps.setString(1, name);
 
             ResultSet rs = ps.executeQuery();
-            return rs.next();
+            return rs.next() ? rs.getString(1) : null;
         }
     }
 
@@ -157,4 +633,80 @@ public class MBTilesDB implements TileDB {
             ps.executeUpdate();
         }
     }
+
+    private boolean tableExists(String table) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+            """
+            SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?
+            """))
+        {
+            ps.setString(1, table);
+
+            ResultSet rs = ps.executeQuery();
+            return rs.next();
+        }
+    }
+
+    private void attachStaging() throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("ATTACH DATABASE ? AS staging")) {
+            ps.setString(1, stagingFile.getPath());
+            ps.executeUpdate();
+        }
+        try (Statement stmt = conn.createStatement()) {
+            // Staged tiles are the only copy until the bulk load finishes, so the staging database keeps SQLite's
+            // default synchronous mode like the main database, and progress commits atomically with staged tiles
+            stmt.executeUpdate(
+                """
+                CREATE TABLE IF NOT EXISTS staging.tiles (
+                    zoom_level  INTEGER,
+                    tile_column INTEGER,
+                    tile_row    INTEGER,
+                    tile_data   BLOB
+                )
+                """
+            );
+        }
+    }
+
+    private void finishBulkLoad() throws SQLException {
+        boolean indexed;
+        try (PreparedStatement ps = conn.prepareStatement(
+            """
+            SELECT name FROM sqlite_master WHERE type = 'index' AND name = 'tile_index'
+            """))
+        {
+            indexed = ps.executeQuery().next();
+        }
+
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            // Keep the last staged copy of every tile (same result as INSERT OR REPLACE) and append in key order
+            String insert = indexed ? "INSERT OR REPLACE" : "INSERT";
+            stmt.executeUpdate(insert +
+                " INTO tiles (zoom_level, tile_column, tile_row, tile_data)" +
+                " SELECT zoom_level, tile_column, tile_row, tile_data FROM staging.tiles" +
+                " WHERE rowid IN (SELECT MAX(rowid) FROM staging.tiles GROUP BY zoom_level, tile_column, tile_row)" +
+                " ORDER BY zoom_level, tile_column, tile_row"
+            );
+            stmt.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)");
+
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DETACH DATABASE staging");
+        }
+        bulkLoad = false;
+        stagingIndexed = false;
+        stagedZooms.clear();
+
+        if (!stagingFile.delete()) {
+            LOGGER.warn("Failed to delete staging file {}", stagingFile.getName());
+        }
+    }
 }
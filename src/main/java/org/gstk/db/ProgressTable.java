@@ -0,0 +1,83 @@
+package org.gstk.db;
+
+import org.gstk.db.TileDB.Progress;
+import org.gstk.db.TileDB.ProgressRange;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Download progress side table shared by the SQLite databases, writes run inside the caller's transaction
+final class ProgressTable {
+    private ProgressTable() {}
+
+    static void create(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(
+                """
+                CREATE TABLE IF NOT EXISTS gstk_progress (
+                    job         TEXT,
+                    zoom_level  INTEGER,
+                    range_start INTEGER,
+                    range_end   INTEGER,
+                    done        INTEGER,
+                    PRIMARY KEY (job, zoom_level, range_start)
+                )
+                """
+            );
+        }
+    }
+
+    static List<ProgressRange> get(Connection conn, String job, int zoom) throws SQLException {
+        List<ProgressRange> ranges = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(
+            """
+            SELECT range_start, range_end, done FROM gstk_progress
+                WHERE job = ? AND zoom_level = ? ORDER BY range_start
+            """))
+        {
+            ps.setString(1, job);
+            ps.setInt(2, zoom);
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                ranges.add(new ProgressRange(rs.getLong(1), rs.getLong(2), rs.getLong(3)));
+            }
+        }
+        return ranges;
+    }
+
+    static void replace(Connection conn, Progress progress) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM gstk_progress WHERE job = ? AND zoom_level = ?")) {
+            ps.setString(1, progress.job());
+            ps.setInt(2, progress.zoom());
+            ps.executeUpdate();
+        }
+        update(conn, progress);
+    }
+
+    static void update(Connection conn, Progress progress) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+            """
+            INSERT OR REPLACE INTO gstk_progress (job, zoom_level, range_start, range_end, done) VALUES (?, ?, ?, ?, ?)
+            """))
+        {
+            for (ProgressRange range : progress.ranges()) {
+                ps.setString(1, progress.job());
+                ps.setInt(2, progress.zoom());
+                ps.setLong(3, range.start());
+                ps.setLong(4, range.end());
+                ps.setLong(5, range.done());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    static void clear(Connection conn, String job) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM gstk_progress WHERE job = ?")) {
+            ps.setString(1, job);
+            ps.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package org.gstk.db;
+
+import org.gstk.Region;
+import org.gstk.jfr.BatchCommitEvent;
+import org.gstk.utils.TileUtils.TileData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Writes every batch split across parallel shard databases next to the target and merges them into it on close.
+// storeTiles returns once every shard committed its part, so callers see write errors like with any other database.
+public class ShardedTileDB implements TileDB {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedTileDB.class);
+
+    private final TileDB target;
+    private final Shard[] shards;
+
+    public ShardedTileDB(TileDB target, int shardCount) throws InitException {
+        if (shardCount < 1) {
+            throw new InitException("Shard count must be at least 1");
+        }
+
+        this.target = target;
+        this.shards = new Shard[shardCount];
+
+        // Next to the target rather than in the temp directory, which is often a small tmpfs
+        File targetFile = target.getFile();
+        File dir = targetFile != null ? targetFile.getAbsoluteFile().getParentFile() : null;
+        String prefix = targetFile != null ? targetFile.getName() : "gstk";
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = new Shard(i, dir, prefix);
+            }
+        } catch (IOException | SQLException e) {
+            for (Shard shard : shards) {
+                if (shard != null) {
+                    shard.discard();
+                }
+            }
+            throw new InitException(e);
+        }
+    }
+
+    @Override
+    public String getIdentifier() {
+        return target.getIdentifier();
+    }
+
+    @Override
+    public File getFile() {
+        return target.getFile();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return target.isConnected();
+    }
+
+    @Override
+    public void init() throws Exception {
+        target.init();
+    }
+
+    @Override
+    public boolean needsAdvancedInit() {
+        return target.needsAdvancedInit();
+    }
+
+    @Override
+    public void advancedInit(int startZoom, int endZoom, Region region) throws Exception {
+        target.advancedInit(startZoom, endZoom, region);
+    }
+
+    @Override
+    public void storeTile(TileData tile) throws Exception {
+        storeTiles(List.of(tile));
+    }
+
+    // Shards that committed their part keep it when another shard fails, rewriting the tiles replaces them
+    @Override
+    public void storeTiles(List<TileData> tiles) throws Exception {
+        List<List<TileData>> parts = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (TileData tile : tiles) {
+            parts.get(shardIndex(tile.pos().x(), tile.pos().y(), tile.pos().zoom())).add(tile);
+        }
+
+        List<Future<?>> writes = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[i];
+            List<TileData> part = parts.get(i);
+            if (!part.isEmpty()) {
+                writes.add(shard.writer.submit(() -> {
+                    shard.writeBatch(part);
+                    return null;
+                }));
+            }
+        }
+
+        Exception error = null;
+        for (Future<?> write : writes) {
+            try {
+                write.get();
+            } catch (ExecutionException e) {
+                Exception cause = e.getCause() instanceof Exception ex ? ex : e;
+                if (error == null) {
+                    error = cause;
+                } else {
+                    error.addSuppressed(cause);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public boolean doesTileExist(int column, int row, int zoom) throws Exception {
+        if (target.doesTileExist(column, row, zoom)) {
+            return true;
+        }
+        return shards[shardIndex(column, row, zoom)].contains(column, row, zoom);
+    }
+
+    // Reads only see tiles that were merged into the target
+    @Override
+    public byte[] getTile(int column, int row, int zoom) throws Exception {
+        return target.getTile(column, row, zoom);
+    }
+
+    @Override
+    public void scanTiles(
+        int zoom,
+        int minColumn,
+        int minRow,
+        int maxColumn,
+        int maxRow,
+        TileConsumer consumer) throws Exception
+    {
+        target.scanTiles(zoom, minColumn, minRow, maxColumn, maxRow, consumer);
+    }
+
+    @Override
+    public List<Integer> getZoomLevels() throws Exception {
+        return target.getZoomLevels();
+    }
+
+    @Override
+    public TileRange getTileRange(int zoom) throws Exception {
+        return target.getTileRange(zoom);
+    }
+
+    @Override
+    public void importTiles(File tilesFile) throws Exception {
+        target.importTiles(tilesFile);
+    }
+
+    // Throws a MergeException after closing the target if a shard couldn't be merged, its file is kept
+    @Override
+    public void close() {
+        List<File> unmerged = new ArrayList<>();
+        for (Shard shard : shards) {
+            shard.writer.shutdown();
+            try {
+                shard.writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            shard.closeConnection();
+
+            try {
+                target.importTiles(shard.file);
+                shard.discard();
+            } catch (Exception e) {
+                LOGGER.error("Failed to merge shard {}, its tiles are kept in {}", shard.index, shard.file.getAbsolutePath(), e);
+                unmerged.add(shard.file);
+            }
+        }
+
+        target.close();
+        if (!unmerged.isEmpty()) {
+            throw new MergeException(unmerged);
+        }
+    }
+
+    private int shardIndex(int column, int row, int zoom) {
+        long key = ((long) zoom << 58) ^ ((long) column << 29) ^ row;
+        return Math.floorMod(Long.hashCode(key * 0x9E3779B97F4A7C15L), shards.length);
+    }
+
+    public static class MergeException extends RuntimeException {
+        public final List<File> unmerged;
+
+        public MergeException(List<File> unmerged) {
+            super(unmerged.size() + " shards could not be merged, their tiles are kept in " + unmerged);
+            this.unmerged = unmerged;
+        }
+    }
+
+    private static class Shard {
+        final int index;
+        final File file;
+        final Connection conn;
+        final Set<Integer> zooms = new HashSet<>();
+        final ExecutorService writer;
+
+        // dir null for the temp directory
+        Shard(int index, File dir, String prefix) throws IOException, SQLException {
+            this.index = index;
+            this.file = (dir != null
+                ? Files.createTempFile(dir.toPath(), prefix + "-shard-" + index + "-", ".sqlite")
+                : Files.createTempFile(prefix + "-shard-" + index + "-", ".sqlite")).toFile();
+            this.conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+
+            try (Statement stmt = conn.createStatement()) {
+                // Shards are scratch files, durability only matters for the merged target.
+                // The journal stays in memory, failed batches still roll back before their tiles are retried one by one.
+                stmt.executeUpdate("PRAGMA synchronous = OFF");
+                stmt.executeUpdate("PRAGMA journal_mode = MEMORY");
+                stmt.executeUpdate(
+                    """
+                    CREATE TABLE tiles (
+                        zoom_level  INTEGER,
+                        tile_column INTEGER,
+                        tile_row    INTEGER,
+                        tile_data   BLOB,
+                        PRIMARY KEY (zoom_level, tile_column, tile_row)
+                    )
+                    """
+                );
+            }
+
+            writer = Executors.newSingleThreadExecutor(r -> new Thread(r, "Tile-Shard-Writer-" + index));
+        }
+
+        synchronized boolean contains(int column, int row, int zoom) throws SQLException {
+            if (!zooms.contains(zoom)) {
+                return false;
+            }
+            try (PreparedStatement ps = conn.prepareStatement(
+                """
+                SELECT 1 FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?
+                """))
+            {
+                ps.setInt(1, zoom);
+                ps.setInt(2, column);
+                ps.setInt(3, row);
+
+                ResultSet rs = ps.executeQuery();
+                return rs.next();
+            }
+        }
+
+        private synchronized void writeBatch(List<TileData> batch) throws SQLException {
+            BatchCommitEvent event = new BatchCommitEvent();
+            event.begin();
+
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(
+                """
+                INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)
+                """))
+            {
+                for (TileData tile : batch) {
+                    ps.setInt(1, tile.pos().zoom());
+                    ps.setInt(2, tile.pos().x());
+                    ps.setInt(3, tile.pos().y());
+                    ps.setBytes(4, tile.data());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            event.commitBatch("shard:" + file.getAbsolutePath(), batch);
+
+            for (TileData tile : batch) {
+                zooms.add(tile.pos().zoom());
+            }
+        }
+
+        void closeConnection() {
+            try {
+                conn.close();
+            } catch (Exception ignored) {}
+        }
+
+        void discard() {
+            writer.shutdown();
+            closeConnection();
+            if (!file.delete()) {
+                LOGGER.warn("Failed to delete shard file {}", file.getAbsolutePath());
+            }
+        }
+    }
+}
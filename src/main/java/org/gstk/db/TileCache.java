@@ -0,0 +1,72 @@
+package org.gstk.db;
+
+import org.gstk.utils.TileUtils.TilePosition;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class TileCache {
+    private final long maxBytes;
+    private final LinkedHashMap<TilePosition, byte[]> tiles = new LinkedHashMap<>(1024, 0.75f, true);
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized byte[] get(TilePosition pos) {
+        byte[] data = tiles.get(pos);
+        if (data != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return data;
+    }
+
+    public synchronized void put(TilePosition pos, byte[] data) {
+        if (data == null || data.length > maxBytes) {
+            return;
+        }
+
+        byte[] previous = tiles.put(pos, data);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += data.length;
+
+        Iterator<Map.Entry<TilePosition, byte[]>> iter = tiles.entrySet().iterator();
+        while (bytes > maxBytes && iter.hasNext()) {
+            bytes -= iter.next().getValue().length;
+            iter.remove();
+        }
+    }
+
+    public synchronized void invalidate(TilePosition pos) {
+        byte[] previous = tiles.remove(pos);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+    }
+
+    public synchronized void clear() {
+        tiles.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getSizeBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -1,11 +1,17 @@
 package org.gstk.db;
 
+import org.gstk.Constants;
 import org.gstk.Region;
+import org.gstk.utils.TileFormat;
 import org.gstk.utils.TileUtils.TileData;
 import org.gstk.utils.TileUtils.TilePosition;
 
+import java.io.File;
+import java.util.List;
+
 public interface TileDB {
     String getIdentifier();
+    File getFile();
     boolean isConnected();
 
     void init() throws Exception;
@@ -17,24 +23,149 @@ public interface TileDB {
     ) throws Exception;
 
     void storeTile(TileData tile) throws Exception;
+
+    default void storeTiles(List<TileData> tiles) throws Exception {
+        for (TileData tile : tiles) {
+            storeTile(tile);
+        }
+    }
+
+    // Download progress is committed in the same transaction as the tiles it covers,
+    // databases without progress support make downloads fall back to checking which tiles exist
+    default boolean supportsProgress() {
+        return false;
+    }
+
+    default void storeTiles(List<TileData> tiles, Progress progress) throws Exception {
+        storeTiles(tiles);
+    }
+
+    default List<ProgressRange> getProgress(String job, int zoom) throws Exception {
+        return List.of();
+    }
+
+    // Replaces all progress ranges of the job's zoom level
+    default void setProgress(Progress progress) throws Exception {}
+
+    default void clearProgress(String job) throws Exception {}
+
+    // Fetch time and HTTP validators of stored tiles for refresh downloads, stored with the tiles like progress
+    default boolean supportsFreshness() {
+        return false;
+    }
+
+    // progress and freshness may be null
+    default void storeTiles(List<TileData> tiles, Progress progress, List<Freshness> freshness) throws Exception {
+        storeTiles(tiles, progress);
+    }
+
+    // Streams the freshness entries of a zoom level ordered by Hilbert tile id
+    default void scanFreshness(int zoom, FreshnessConsumer consumer) throws Exception {}
+
+    // Removing tiles is only needed when a region shrinks, databases without it can't drop tiles outside the region
+    default boolean supportsDelete() {
+        return false;
+    }
+
+    // Deletes the tiles and their freshness in one transaction, returns how many tiles existed
+    default int deleteTiles(List<TilePosition> tiles) throws Exception {
+        throw new UnsupportedOperationException("Database " + getIdentifier() + " can't delete tiles");
+    }
+
+    // Format every stored tile must be in, null if tiles of any format can be stored or no tile decided it yet
+    default TileFormat getTileFormat() {
+        return null;
+    }
+
     boolean doesTileExist(int column, int row, int zoom) throws Exception;
 
     default boolean doesTileExist(TilePosition pos) throws Exception {
         return doesTileExist(pos.x(), pos.y(), pos.zoom());
     }
 
+    byte[] getTile(int column, int row, int zoom) throws Exception;
+
+    default byte[] getTile(TilePosition pos) throws Exception {
+        return getTile(pos.x(), pos.y(), pos.zoom());
+    }
+
+    // Streams tiles inside the inclusive XYZ range ordered by column, then row
+    void scanTiles(
+        int zoom,
+        int minColumn,
+        int minRow,
+        int maxColumn,
+        int maxRow,
+        TileConsumer consumer
+    ) throws Exception;
+
+    default void scanTiles(int zoom, TileConsumer consumer) throws Exception {
+        int max = (1 << zoom) - 1;
+        scanTiles(zoom, 0, 0, max, max, consumer);
+    }
+
+    List<Integer> getZoomLevels() throws Exception;
+
+    // Tile count and XYZ bounds of a zoom level, null if it has no tiles
+    TileRange getTileRange(int zoom) throws Exception;
+
+    // Copies every tile from a SQLite file with an XYZ ordered table
+    // tiles (zoom_level, tile_column, tile_row, tile_data), replacing existing tiles
+    void importTiles(File tilesFile) throws Exception;
+
     void close();
 
     static TileDB open(String id) throws InitException {
+        return open(id, new TileCache(Constants.TILE_CACHE_SIZE_BYTES));
+    }
+
+    static TileDB open(String id, TileCache cache) throws InitException {
+        if (id.startsWith("gpkg:")) {
+            return new GeoPackageDB(id.substring("gpkg:".length()), cache);
+        }
+        if (id.startsWith("mbtiles:")) {
+            return new MBTilesDB(id.substring("mbtiles:".length()), cache);
+        }
+        if (id.startsWith("archive:")) {
+            return new ArchiveDB(id.substring("archive:".length()));
+        }
+        throw new InitException("Invalid database identifier");
+    }
+
+    // For databases that are only read from, fails instead of creating a missing file
+    static TileDB openReadOnly(String id, TileCache cache) throws InitException {
         if (id.startsWith("gpkg:")) {
-            return new GeoPackageDB(id.substring("gpkg:".length()));
+            return new GeoPackageDB(id.substring("gpkg:".length()), cache, true);
         }
         if (id.startsWith("mbtiles:")) {
-            return new MBTilesDB(id.substring("mbtiles:".length()));
+            return new MBTilesDB(id.substring("mbtiles:".length()), cache, true);
+        }
+        if (id.startsWith("archive:")) {
+            return new ArchiveDB(id.substring("archive:".length()), true);
         }
         throw new InitException("Invalid database identifier");
     }
 
+    record TileRange(long count, int minColumn, int minRow, int maxColumn, int maxRow) {}
+
+    // Inclusive Hilbert tile id range of a download job, tiles up to and including done are finished
+    record ProgressRange(long start, long end, long done) {}
+
+    record Progress(String job, int zoom, List<ProgressRange> ranges) {}
+
+    // etag and lastModified are null if the server didn't send them
+    record Freshness(long id, long fetchedMillis, String etag, String lastModified) {}
+
+    @FunctionalInterface
+    interface TileConsumer {
+        void accept(TileData tile) throws Exception;
+    }
+
+    @FunctionalInterface
+    interface FreshnessConsumer {
+        void accept(Freshness freshness) throws Exception;
+    }
+
     class InitException extends RuntimeException {
         public InitException(String message) {
             super(message);
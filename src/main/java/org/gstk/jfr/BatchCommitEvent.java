@@ -0,0 +1,36 @@
+package org.gstk.jfr;
+
+import jdk.jfr.*;
+import org.gstk.utils.TileUtils.TileData;
+
+import java.util.List;
+
+@Name("org.gstk.BatchCommit")
+@Label("Batch Commit")
+@Description("Tiles written to a database in one transaction")
+@Category("GSTK")
+@Enabled(false)
+@StackTrace(false)
+public class BatchCommitEvent extends Event {
+    @Label("Database")
+    public String database;
+
+    @Label("Tiles")
+    public int tiles;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    // Commits the event begun before the write, if a recording has it enabled
+    public void commitBatch(String database, List<TileData> batch) {
+        if (shouldCommit()) {
+            this.database = database;
+            this.tiles = batch.size();
+            for (TileData tile : batch) {
+                this.bytes += tile.data().length;
+            }
+            commit();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.gstk.jfr;
+
+import jdk.jfr.*;
+
+@Name("org.gstk.Enumeration")
+@Label("Tile Enumeration")
+@Description("Enumeration of the tiles of a region at one zoom level")
+@Category("GSTK")
+@Enabled(false)
+@StackTrace(false)
+public class EnumerationEvent extends Event {
+    @Label("Zoom")
+    public int zoom;
+
+    @Label("Tiles")
+    public long tiles;
+}
@@ -0,0 +1,22 @@
+package org.gstk.jfr;
+
+import jdk.jfr.*;
+
+@Name("org.gstk.ImageConversion")
+@Label("Image Conversion")
+@Description("Conversion of a tile image to png")
+@Category("GSTK")
+@Enabled(false)
+@StackTrace(false)
+public class ImageConversionEvent extends Event {
+    @Label("Input Bytes")
+    @DataAmount
+    public long inputBytes;
+
+    @Label("Output Bytes")
+    @DataAmount
+    public long outputBytes;
+
+    @Label("Success")
+    public boolean success;
+}
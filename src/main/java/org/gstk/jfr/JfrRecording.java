@@ -0,0 +1,35 @@
+package org.gstk.jfr;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.List;
+
+// GSTK events are disabled by default, so they cost nothing unless a recording enables them
+public class JfrRecording {
+    private static final List<Class<? extends Event>> EVENTS = List.of(
+        TileDownloadEvent.class,
+        ImageConversionEvent.class,
+        BatchCommitEvent.class,
+        EnumerationEvent.class
+    );
+
+    private JfrRecording() {}
+
+    // Starts a recording with the JDK's default settings plus all GSTK events, written to file on exit
+    public static Recording start(Path file) throws IOException, ParseException {
+        Recording recording = new Recording(Configuration.getConfiguration("default"));
+        recording.setName("gstk");
+        for (Class<? extends Event> event : EVENTS) {
+            recording.enable(event);
+        }
+        recording.setDestination(file);
+        recording.setDumpOnExit(true);
+        recording.start();
+        return recording;
+    }
+}
@@ -0,0 +1,34 @@
+package org.gstk.jfr;
+
+import jdk.jfr.*;
+
+@Name("org.gstk.TileDownload")
+@Label("Tile Download")
+@Description("One attempt to download a tile")
+@Category("GSTK")
+@Enabled(false)
+@StackTrace(false)
+public class TileDownloadEvent extends Event {
+    @Label("Host")
+    public String host;
+
+    @Label("Zoom")
+    public int zoom;
+
+    @Label("Column")
+    public int x;
+
+    @Label("Row")
+    public int y;
+
+    @Label("Attempt")
+    public int attempt;
+
+    @Label("HTTP Status")
+    @Description("0 if the attempt failed before a response")
+    public int status;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
@@ -0,0 +1,270 @@
+package org.gstk.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+// Process wide download pipeline metrics, recording is a few atomic adds so it is always on
+public final class Metrics implements MetricsMXBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+
+    public static final String OBJECT_NAME = "org.gstk:type=Metrics";
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private static final LatencyHistogram[] STAGES = new LatencyHistogram[Stage.values().length];
+    private static final LongAdder DOWNLOADED_TILES = new LongAdder();
+    private static final LongAdder DOWNLOADED_BYTES = new LongAdder();
+    private static final LongAdder WRITTEN_TILES = new LongAdder();
+    private static final LongAdder TRANSFORMED_TILES = new LongAdder();
+    private static final LongAdder NOT_MODIFIED_TILES = new LongAdder();
+    private static final LongAdder CACHE_HITS = new LongAdder();
+    private static final LongAdder CACHE_MISSES = new LongAdder();
+    private static final LongAdder TRANSFORM_INPUT_BYTES = new LongAdder();
+    private static final LongAdder TRANSFORM_OUTPUT_BYTES = new LongAdder();
+    private static final LongAdder TRANSFORM_CPU_NANOS = new LongAdder();
+    private static final Map<String, LongAdder> RETRIES = new ConcurrentHashMap<>();
+    private static final long START_NANOS = System.nanoTime();
+
+    // Writer queues of the running jobs, a server or batch can run several downloads at once
+    private static final Set<IntSupplier> WRITER_QUEUES = ConcurrentHashMap.newKeySet();
+
+    static {
+        for (int i = 0; i < STAGES.length; i++) {
+            STAGES[i] = new LatencyHistogram();
+        }
+    }
+
+    private Metrics() {}
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    // Records the time since startNanos (from System.nanoTime) for the stage
+    public static void record(Stage stage, long startNanos) {
+        STAGES[stage.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public static void tileDownloaded(int bytes) {
+        DOWNLOADED_TILES.increment();
+        DOWNLOADED_BYTES.add(bytes);
+    }
+
+    public static void tilesWritten(int tiles) {
+        WRITTEN_TILES.add(tiles);
+    }
+
+    public static void tileNotModified() {
+        NOT_MODIFIED_TILES.increment();
+    }
+
+    public static void cacheHit() {
+        CACHE_HITS.increment();
+    }
+
+    public static void cacheMiss() {
+        CACHE_MISSES.increment();
+    }
+
+    public static void tileTransformed(int inputBytes, int outputBytes, long cpuNanos) {
+        TRANSFORMED_TILES.increment();
+        TRANSFORM_INPUT_BYTES.add(inputBytes);
+        TRANSFORM_OUTPUT_BYTES.add(outputBytes);
+        TRANSFORM_CPU_NANOS.add(cpuNanos);
+    }
+
+    // status is an HTTP status code, or 0 if the attempt failed before a response
+    public static void retry(int status) {
+        RETRIES.computeIfAbsent(status == 0 ? "io" : String.valueOf(status), s -> new LongAdder()).increment();
+    }
+
+    // The queue counts towards the writer queue depth until it is removed
+    public static void addWriterQueue(IntSupplier queueDepth) {
+        WRITER_QUEUES.add(queueDepth);
+    }
+
+    public static void removeWriterQueue(IntSupplier queueDepth) {
+        WRITER_QUEUES.remove(queueDepth);
+    }
+
+    public static LatencyHistogram getHistogram(Stage stage) {
+        return STAGES[stage.ordinal()];
+    }
+
+    // Clears all recorded values, for harnesses that measure several downloads in one process
+    public static void reset() {
+        for (LatencyHistogram histogram : STAGES) {
+            histogram.reset();
+        }
+        DOWNLOADED_TILES.reset();
+        DOWNLOADED_BYTES.reset();
+        WRITTEN_TILES.reset();
+        TRANSFORMED_TILES.reset();
+        NOT_MODIFIED_TILES.reset();
+        CACHE_HITS.reset();
+        CACHE_MISSES.reset();
+        TRANSFORM_INPUT_BYTES.reset();
+        TRANSFORM_OUTPUT_BYTES.reset();
+        TRANSFORM_CPU_NANOS.reset();
+        RETRIES.clear();
+    }
+
+    public static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Failed to register metrics MBean", e);
+        }
+    }
+
+    @Override
+    public long getDownloadedTiles() {
+        return DOWNLOADED_TILES.sum();
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return DOWNLOADED_BYTES.sum();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        double seconds = (System.nanoTime() - START_NANOS) / 1e9;
+        return seconds > 0 ? DOWNLOADED_BYTES.sum() / seconds : 0;
+    }
+
+    @Override
+    public long getWrittenTiles() {
+        return WRITTEN_TILES.sum();
+    }
+
+    @Override
+    public long getTransformedTiles() {
+        return TRANSFORMED_TILES.sum();
+    }
+
+    // Negative if transformed tiles grew (e.g. jpeg to png)
+    @Override
+    public long getTransformBytesSaved() {
+        return TRANSFORM_INPUT_BYTES.sum() - TRANSFORM_OUTPUT_BYTES.sum();
+    }
+
+    public long getTransformInputBytes() {
+        return TRANSFORM_INPUT_BYTES.sum();
+    }
+
+    public long getTransformOutputBytes() {
+        return TRANSFORM_OUTPUT_BYTES.sum();
+    }
+
+    @Override
+    public double getTransformCpuMillisPerTile() {
+        long tiles = TRANSFORMED_TILES.sum();
+        return tiles > 0 ? TRANSFORM_CPU_NANOS.sum() / 1e6 / tiles : 0;
+    }
+
+    public long getTransformCpuNanos() {
+        return TRANSFORM_CPU_NANOS.sum();
+    }
+
+    @Override
+    public long getNotModifiedTiles() {
+        return NOT_MODIFIED_TILES.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return CACHE_HITS.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return CACHE_MISSES.sum();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = CACHE_HITS.sum();
+        long total = hits + CACHE_MISSES.sum();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    @Override
+    public int getWriterQueueDepth() {
+        int depth = 0;
+        for (IntSupplier queue : WRITER_QUEUES) {
+            depth += queue.getAsInt();
+        }
+        return depth;
+    }
+
+    @Override
+    public Map<String, Long> getRetries() {
+        Map<String, Long> retries = new TreeMap<>();
+        RETRIES.forEach((status, count) -> retries.put(status, count.sum()));
+        return retries;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            counts.put(stage.name, getHistogram(stage).getCount());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Millis() {
+        return percentiles(50);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Millis() {
+        return percentiles(99);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMaxMillis() {
+        Map<String, Double> max = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            max.put(stage.name, getHistogram(stage).getMaxNanos() / 1e6);
+        }
+        return max;
+    }
+
+    private static Map<String, Double> percentiles(double percentile) {
+        Map<String, Double> values = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            values.put(stage.name, getHistogram(stage).getValueAtPercentile(percentile) / 1e6);
+        }
+        return values;
+    }
+
+    public enum Stage {
+        ENUMERATE("enumerate"),
+        EXISTENCE_CHECK("existence_check"),
+        HTTP_CONNECT("http_connect"),
+        HTTP_FIRST_BYTE("http_first_byte"),
+        HTTP_BODY("http_body"),
+        TRANSFORM("transform"),
+        QUEUE_WAIT("queue_wait"),
+        DB_WRITE("db_write"),
+        TILE("tile");
+
+        public final String name;
+        Stage(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.gstk.metrics;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+    long getDownloadedTiles();
+    long getDownloadedBytes();
+    double getBytesPerSecond();
+    long getWrittenTiles();
+    long getTransformedTiles();
+    long getTransformBytesSaved();
+    double getTransformCpuMillisPerTile();
+
+    // Refreshed tiles (--refresh) answered with 304 Not Modified
+    long getNotModifiedTiles();
+
+    // Tile cache (--cache-dir) lookups
+    long getCacheHits();
+    long getCacheMisses();
+    double getCacheHitRatio();
+
+    int getWriterQueueDepth();
+
+    // Failed attempts that were retried, by HTTP status code ("io" for connection errors)
+    Map<String, Long> getRetries();
+
+    // Latencies per pipeline stage
+    Map<String, Long> getLatencyCounts();
+    Map<String, Double> getLatencyP50Millis();
+    Map<String, Double> getLatencyP99Millis();
+    Map<String, Double> getLatencyMaxMillis();
+}
@@ -0,0 +1,106 @@
+package org.gstk.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+// Serves the metrics in Prometheus text format at /metrics
+public class MetricsServer {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final InetSocketAddress address;
+    private HttpServer server = null;
+
+    public MetricsServer(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    static String render() {
+        Metrics metrics = Metrics.get();
+        StringBuilder sb = new StringBuilder();
+
+        counter(sb, "gstk_downloaded_tiles_total", "Tiles downloaded", metrics.getDownloadedTiles());
+        counter(sb, "gstk_downloaded_bytes_total", "Tile bytes downloaded", metrics.getDownloadedBytes());
+        counter(sb, "gstk_written_tiles_total", "Tiles written to the database", metrics.getWrittenTiles());
+        counter(sb, "gstk_transformed_tiles_total", "Tiles converted or optimized by the transform stage", metrics.getTransformedTiles());
+        counter(sb, "gstk_transform_input_bytes_total", "Tile bytes before the transform stage", metrics.getTransformInputBytes());
+        counter(sb, "gstk_transform_output_bytes_total", "Tile bytes after the transform stage", metrics.getTransformOutputBytes());
+        counter(sb, "gstk_not_modified_tiles_total", "Refreshed tiles the server answered with 304 Not Modified", metrics.getNotModifiedTiles());
+        counter(sb, "gstk_cache_hits_total", "Tiles served from the tile cache", metrics.getCacheHits());
+        counter(sb, "gstk_cache_misses_total", "Tile cache lookups that went to the network", metrics.getCacheMisses());
+
+        sb.append("# HELP gstk_transform_cpu_seconds_total CPU time of the transform stage\n");
+        sb.append("# TYPE gstk_transform_cpu_seconds_total counter\n");
+        sb.append("gstk_transform_cpu_seconds_total ").append(seconds(metrics.getTransformCpuNanos())).append('\n');
+
+        sb.append("# HELP gstk_writer_queue_depth Downloaded tiles waiting for the database writer\n");
+        sb.append("# TYPE gstk_writer_queue_depth gauge\n");
+        sb.append("gstk_writer_queue_depth ").append(metrics.getWriterQueueDepth()).append('\n');
+
+        sb.append("# HELP gstk_http_retries_total Failed tile download attempts that were retried\n");
+        sb.append("# TYPE gstk_http_retries_total counter\n");
+        for (Map.Entry<String, Long> entry : metrics.getRetries().entrySet()) {
+            sb.append("gstk_http_retries_total{status=\"").append(entry.getKey()).append("\"} ").append(entry.getValue()).append('\n');
+        }
+
+        sb.append("# HELP gstk_stage_seconds Latency of download pipeline stages\n");
+        sb.append("# TYPE gstk_stage_seconds summary\n");
+        for (Metrics.Stage stage : Metrics.Stage.values()) {
+            LatencyHistogram histogram = Metrics.getHistogram(stage);
+            for (double quantile : QUANTILES) {
+                sb.append("gstk_stage_seconds{stage=\"").append(stage.name)
+                    .append("\",quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+            }
+            sb.append("gstk_stage_seconds_sum{stage=\"").append(stage.name).append("\"} ")
+                .append(seconds(histogram.getSumNanos())).append('\n');
+            sb.append("gstk_stage_seconds_count{stage=\"").append(stage.name).append("\"} ")
+                .append(histogram.getCount()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
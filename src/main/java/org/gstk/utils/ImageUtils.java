@@ -1,12 +1,26 @@
 package org.gstk.utils;
 
+import org.gstk.jfr.ImageConversionEvent;
+
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.*;
 
 public class ImageUtils {
+    // Deflate level ImageIO uses for png by default
+    public static final int DEFAULT_DEFLATE_LEVEL = 4;
+
     public static final byte[] PNG_MAGIC = new byte[]{
         (byte) 0x89,
         (byte) 0x50,
@@ -31,16 +45,175 @@ public class ImageUtils {
     }
 
     public static byte[] convertBytesToPng(byte[] data) {
+        ImageConversionEvent event = new ImageConversionEvent();
+        event.begin();
+        byte[] result = null;
         try {
             ByteArrayInputStream in = new ByteArrayInputStream(data);
             BufferedImage image = ImageIO.read(in);
+            if (image == null) {
+                return null;
+            }
 
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             ImageIO.write(image, "png", out);
 
-            return out.toByteArray();
+            result = out.toByteArray();
+            return result;
         } catch (IOException e) {
             return null;
+        } finally {
+            if (event.shouldCommit()) {
+                event.inputBytes = data.length;
+                event.outputBytes = result != null ? result.length : 0;
+                event.success = result != null;
+                event.commit();
+            }
+        }
+    }
+
+    public static byte[] encodePng(BufferedImage image, int deflateLevel) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            // The png writer maps quality 1.0 to deflate level 0 and 0.0 to level 9
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality((9 - deflateLevel) / 9.0f);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+            return out.toByteArray();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // Draws the 4 quadrants (top left, top right, bottom left, bottom right, null for none) at half size into
+    // one image of the size of a quadrant, the bilinear 2:1 scale averages each 2x2 block of pixels
+    public static BufferedImage downsampleQuadrants(BufferedImage[] quadrants, boolean alpha) {
+        int size = 0;
+        for (BufferedImage quadrant : quadrants) {
+            if (quadrant != null) {
+                size = Math.max(size, quadrant.getWidth());
+            }
+        }
+
+        BufferedImage image = new BufferedImage(size, size, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            int half = size / 2;
+            for (int i = 0; i < 4; i++) {
+                if (quadrants[i] != null) {
+                    g.drawImage(quadrants[i], (i & 1) * half, (i >> 1) * half, half, half, null);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    // Lossless reduction: a palette image if there are at most 256 colours, otherwise drops an unused alpha channel
+    public static BufferedImage reduceLossless(BufferedImage image) {
+        if (image.getColorModel() instanceof IndexColorModel) {
+            return image;
+        }
+
+        int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        Map<Integer, Integer> counts = countColors(pixels, 257);
+        if (counts.size() <= 256) {
+            return toPalette(image, pixels, new ArrayList<>(counts.keySet()));
+        }
+
+        if (!image.getColorModel().hasAlpha()) {
+            return image;
+        }
+        for (int pixel : pixels) {
+            if (pixel >>> 24 != 0xFF) {
+                return image;
+            }
+        }
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        rgb.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
+        return rgb;
+    }
+
+    // Palette image with at most the given number of colours (2-256). Lossless if the image has that few colours,
+    // otherwise the most frequent colours are kept and the others mapped to the nearest one, which suits map tiles
+    // with large flat areas but not imagery
+    public static BufferedImage quantize(BufferedImage image, int colors) {
+        int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        Map<Integer, Integer> counts = countColors(pixels, Integer.MAX_VALUE);
+
+        List<Integer> palette = new ArrayList<>(counts.keySet());
+        if (palette.size() > colors) {
+            palette.sort((a, b) -> Integer.compare(counts.get(b), counts.get(a)));
+            palette = new ArrayList<>(palette.subList(0, colors));
+        }
+        return toPalette(image, pixels, palette);
+    }
+
+    private static Map<Integer, Integer> countColors(int[] pixels, int limit) {
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int pixel : pixels) {
+            counts.merge(pixel, 1, Integer::sum);
+            if (counts.size() >= limit) {
+                break;
+            }
+        }
+        return counts;
+    }
+
+    private static BufferedImage toPalette(BufferedImage image, int[] pixels, List<Integer> palette) {
+        int size = Math.max(palette.size(), 2);
+        byte[] r = new byte[size];
+        byte[] g = new byte[size];
+        byte[] b = new byte[size];
+        byte[] a = new byte[size];
+        Map<Integer, Integer> indices = new HashMap<>();
+        for (int i = 0; i < palette.size(); i++) {
+            int color = palette.get(i);
+            a[i] = (byte) (color >>> 24);
+            r[i] = (byte) (color >> 16);
+            g[i] = (byte) (color >> 8);
+            b[i] = (byte) color;
+            indices.put(color, i);
+        }
+
+        int bits = size <= 2 ? 1 : size <= 4 ? 2 : size <= 16 ? 4 : 8;
+        IndexColorModel model = new IndexColorModel(bits, size, r, g, b, a);
+        BufferedImage indexed = bits == 8
+            ? new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_INDEXED, model)
+            : new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_BINARY, model);
+
+        WritableRaster raster = indexed.getRaster();
+        for (int i = 0; i < pixels.length; i++) {
+            int index = indices.computeIfAbsent(pixels[i], color -> nearest(color, palette));
+            raster.setSample(i % image.getWidth(), i / image.getWidth(), 0, index);
+        }
+        return indexed;
+    }
+
+    private static int nearest(int color, List<Integer> palette) {
+        int best = 0;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < palette.size(); i++) {
+            int other = palette.get(i);
+            long distance = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                int diff = ((color >>> shift) & 0xFF) - ((other >>> shift) & 0xFF);
+                distance += (long) diff * diff;
+            }
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
         }
+        return best;
     }
 }
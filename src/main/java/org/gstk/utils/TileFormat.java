@@ -0,0 +1,51 @@
+package org.gstk.utils;
+
+// Raster tile formats, detected from the first bytes of the tile data
+public enum TileFormat {
+    PNG("png", "image/png"),
+    JPEG("jpg", "image/jpeg"),
+    WEBP("webp", "image/webp");
+
+    // Name used by the MBTiles format metadata
+    public final String name;
+    public final String contentType;
+    TileFormat(String name, String contentType) {
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    // null if the data isn't png, jpeg or webp
+    public static TileFormat detect(byte[] data) {
+        if (ImageUtils.isPng(data)) {
+            return PNG;
+        }
+        if (data == null) {
+            return null;
+        }
+        if (data.length >= 3 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8 && (data[2] & 0xFF) == 0xFF) {
+            return JPEG;
+        }
+        if (data.length >= 12 && startsWith(data, 0, "RIFF") && startsWith(data, 8, "WEBP")) {
+            return WEBP;
+        }
+        return null;
+    }
+
+    public static TileFormat fromName(String name) {
+        for (TileFormat format : values()) {
+            if (format.name.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            if (data[offset + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,22 +1,26 @@
 package org.gstk.utils;
 
 import org.gstk.Region;
+import org.gstk.cache.HttpTileCache;
+import org.gstk.jfr.TileDownloadEvent;
+import org.gstk.metrics.Metrics;
 import org.locationtech.jts.geom.*;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 import java.util.function.Function;
 
 public class TileUtils {
-    private static final Logger LOGGER = LoggerFactory.getLogger(TileUtils.class);
-
     public static Set<TilePosition> findTilesInRegion(Region region, int zoom) {
         Set<TilePosition> tiles = new HashSet<>();
 
@@ -39,17 +43,108 @@ public class TileUtils {
         return tiles;
     }
 
+    // Tiles of removed that findTilesInRegion wouldn't return for current, i.e. the tiles that left the coverage
+    // when a region shrank. Only the tiles of removed are checked, so the cost follows the size of the change.
+    public static Set<TilePosition> findTilesOutsideRegion(Region removed, Region current, int zoom) {
+        Set<TilePosition> tiles = findTilesInRegion(removed, zoom);
+
+        GeometryFactory gf = new GeometryFactory();
+        List<Polygon> covering = new ArrayList<>();
+        List<PreparedGeometry> prepared = new ArrayList<>();
+        MultiPolygon polygons = current.polygons();
+        for (int i = 0; i < polygons.getNumGeometries(); i++) {
+            Polygon transformedPolygon = transformPolygon((Polygon) polygons.getGeometryN(i), gf, point -> {
+                TilePosition tile = latLonToTile(point.getY(), point.getX(), zoom);
+                return new Coordinate(tile.x(), tile.y());
+            });
+            covering.add(transformedPolygon);
+            prepared.add(PreparedGeometryFactory.prepare(transformedPolygon));
+        }
+
+        tiles.removeIf(tile -> {
+            Polygon tilePolygon = createTilePolygon(tile.x(), tile.y());
+            for (int i = 0; i < covering.size(); i++) {
+                if (isInBounds(covering.get(i).getEnvelopeInternal(), tile.x(), tile.y()) &&
+                    prepared.get(i).intersects(tilePolygon))
+                {
+                    return true;
+                }
+            }
+            return false;
+        });
+        return tiles;
+    }
+
     public static TileData downloadTileWithRetries(TilePosition tile, String url, int maxTries, int delayMs)
         throws IOException, InterruptedException
     {
-        int tries = 0;
-        while (tries < maxTries) {
-            try {
-                return downloadTile(tile, url);
-            } catch (IOException e) {
-                if (++tries >= maxTries) {
-                    throw e;
+        return downloadTileWithRetries(tile, url, maxTries, delayMs, null);
+    }
+
+    // A cache hit skips the network, responses are stored in the cache (if not null)
+    public static TileData downloadTileWithRetries(
+        TilePosition tile,
+        String url,
+        int maxTries,
+        int delayMs,
+        HttpTileCache cache) throws IOException, InterruptedException
+    {
+        return fetchTileWithRetries(tile, url, null, null, maxTries, delayMs, cache).tile();
+    }
+
+    // Sends If-None-Match/If-Modified-Since when etag/lastModified are not null, the cache is only read without them
+    public static TileResponse fetchTileWithRetries(
+        TilePosition tile,
+        String url,
+        String etag,
+        String lastModified,
+        int maxTries,
+        int delayMs,
+        HttpTileCache cache) throws IOException, InterruptedException
+    {
+        return fetchTileWithRetries(tile, url, etag, lastModified, maxTries, delayMs, cache, 0, null);
+    }
+
+    // Cache entries stored before cachedAfterMillis are ignored, so a refresh doesn't get tiles older than its max age.
+    // permits (may be null) is held for each attempt, not for cache reads or the delays between attempts.
+    public static TileResponse fetchTileWithRetries(
+        TilePosition tile,
+        String url,
+        String etag,
+        String lastModified,
+        int maxTries,
+        int delayMs,
+        HttpTileCache cache,
+        long cachedAfterMillis,
+        Semaphore permits) throws IOException, InterruptedException
+    {
+        long start = System.nanoTime();
+        try {
+            if (cache != null && etag == null && lastModified == null) {
+                HttpTileCache.Entry entry = cache.get(getTileUrl(tile, url));
+                if (entry != null && entry.storedMillis() >= cachedAfterMillis) {
+                    return new TileResponse(tile, entry.data(), entry.etag(), entry.lastModified(), entry.storedMillis());
+                }
+            }
+
+            int tries = 0;
+            while (tries < maxTries) {
+                if (permits != null) {
+                    permits.acquire();
+                }
+                try {
+                    return downloadTile(tile, url, etag, lastModified, tries + 1, cache);
+                } catch (IOException e) {
+                    if (++tries >= maxTries) {
+                        throw e;
+                    }
+                    Metrics.retry(e instanceof HttpStatusException statusException ? statusException.status : 0);
+                } finally {
+                    if (permits != null) {
+                        permits.release();
+                    }
                 }
+
                 if (delayMs != 0) {
                     try {
                         Thread.sleep(delayMs);
@@ -59,8 +154,81 @@ public class TileUtils {
                     }
                 }
             }
+            throw new IOException();
+        } finally {
+            Metrics.record(Metrics.Stage.TILE, start);
+        }
+    }
+
+    // WGS 84 envelope covering the inclusive XYZ tile range
+    public static Envelope tileRangeToEnvelope(int zoom, int minX, int minY, int maxX, int maxY) {
+        double tiles = 1 << zoom;
+        double minLon = minX / tiles * 360.0 - 180.0;
+        double maxLon = (maxX + 1) / tiles * 360.0 - 180.0;
+        double maxLat = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * minY / tiles))));
+        double minLat = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * (maxY + 1) / tiles))));
+        return new Envelope(minLon, maxLon, minLat, maxLat);
+    }
+
+    // Cumulative Hilbert curve index over all zoom levels (same ordering as PMTiles tile ids)
+    public static long hilbertTileId(int zoom, int x, int y) {
+        long id = zoomTileIdStart(zoom);
+        long n = 1L << zoom;
+        long tx = x;
+        long ty = y;
+        for (long s = n / 2; s > 0; s /= 2) {
+            long rx = (tx & s) > 0 ? 1 : 0;
+            long ry = (ty & s) > 0 ? 1 : 0;
+            id += s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    tx = n - 1 - tx;
+                    ty = n - 1 - ty;
+                }
+                long t = tx;
+                tx = ty;
+                ty = t;
+            }
         }
-        throw new IOException();
+        return id;
+    }
+
+    public static long hilbertTileId(TilePosition pos) {
+        return hilbertTileId(pos.zoom(), pos.x(), pos.y());
+    }
+
+    public static TilePosition hilbertTileIdToPosition(long id) {
+        int zoom = 0;
+        while (zoom < 31 && zoomTileIdStart(zoom + 1) <= id) {
+            zoom++;
+        }
+
+        long d = id - zoomTileIdStart(zoom);
+        long n = 1L << zoom;
+        long tx = 0;
+        long ty = 0;
+        for (long s = 1; s < n; s *= 2) {
+            long rx = 1 & (d / 2);
+            long ry = 1 & (d ^ rx);
+            if (ry == 0) {
+                if (rx == 1) {
+                    tx = s - 1 - tx;
+                    ty = s - 1 - ty;
+                }
+                long t = tx;
+                tx = ty;
+                ty = t;
+            }
+            tx += s * rx;
+            ty += s * ry;
+            d /= 4;
+        }
+        return new TilePosition((int) tx, (int) ty, zoom);
+    }
+
+    // First Hilbert tile id of a zoom level (number of tiles in all lower zoom levels)
+    public static long zoomTileIdStart(int zoom) {
+        return ((1L << (2 * zoom)) - 1) / 3;
     }
 
     private static Polygon transformPolygon(
@@ -127,6 +295,12 @@ public class TileUtils {
         return tiles;
     }
 
+    // Tiles that only touch the low edges of a polygon are outside the range findTilesInPolygon walks
+    private static boolean isInBounds(Envelope bounds, int x, int y) {
+        return x >= Math.floor(bounds.getMinX()) && x <= Math.ceil(bounds.getMaxX()) &&
+            y >= Math.floor(bounds.getMinY()) && y <= Math.ceil(bounds.getMaxY());
+    }
+
     private static Polygon createTilePolygon(int x, int y) {
         Coordinate[] tileCoordinates = new Coordinate[]{
             new Coordinate(x, y),
@@ -138,38 +312,77 @@ public class TileUtils {
         return new GeometryFactory().createPolygon(tileCoordinates);
     }
 
-    private static TileData downloadTile(TilePosition pos, String url) throws IOException {
+    private static TileResponse downloadTile(
+        TilePosition pos,
+        String url,
+        String etag,
+        String lastModified,
+        int attempt,
+        HttpTileCache cache) throws IOException
+    {
         HttpURLConnection connection = (HttpURLConnection) new URL(getTileUrl(pos, url)).openConnection();
         connection.setRequestMethod("GET");
         connection.setConnectTimeout(5000);
         connection.setReadTimeout(5000);
-        connection.connect();
-
-        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-            throw new IOException("Failed to download tile: HTTP error code: " + connection.getResponseCode());
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", lastModified);
         }
 
-        try (InputStream in = connection.getInputStream()) {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
+        TileDownloadEvent event = new TileDownloadEvent();
+        event.begin();
+        byte[] data;
+        try {
+            long start = System.nanoTime();
+            connection.connect();
+            Metrics.record(Metrics.Stage.HTTP_CONNECT, start);
+
+            start = System.nanoTime();
+            int status = connection.getResponseCode();
+            Metrics.record(Metrics.Stage.HTTP_FIRST_BYTE, start);
+            event.status = status;
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && (etag != null || lastModified != null)) {
+                connection.disconnect();
+                Metrics.tileNotModified();
+                return new TileResponse(pos, null, etag, lastModified, System.currentTimeMillis());
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new HttpStatusException(status);
             }
-            byte[] data = out.toByteArray();
-            connection.disconnect();
-
-            if (!ImageUtils.isPng(data)) {
-                byte[] pngData = ImageUtils.convertBytesToPng(data);
-                if (pngData != null) {
-                    data = pngData;
-                } else {
-                    LOGGER.warn("Unable to convert non-png tile at {} to png", pos);
+
+            start = System.nanoTime();
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, bytesRead);
                 }
+                data = out.toByteArray();
+                connection.disconnect();
+            }
+            Metrics.record(Metrics.Stage.HTTP_BODY, start);
+            Metrics.tileDownloaded(data.length);
+            event.bytes = data.length;
+        } finally {
+            if (event.shouldCommit()) {
+                event.host = connection.getURL().getHost();
+                event.zoom = pos.zoom();
+                event.x = pos.x();
+                event.y = pos.y();
+                event.attempt = attempt;
+                event.commit();
             }
+        }
 
-            return new TileData(pos, data);
+        String responseEtag = connection.getHeaderField("ETag");
+        String responseLastModified = connection.getHeaderField("Last-Modified");
+        if (cache != null) {
+            cache.put(getTileUrl(pos, url), data, responseEtag, responseLastModified);
         }
+        return new TileResponse(pos, data, responseEtag, responseLastModified, System.currentTimeMillis());
     }
 
     private static String getTileUrl(TilePosition tile, String url) {
@@ -178,6 +391,15 @@ public class TileUtils {
                   .replace("{z}", String.valueOf(tile.zoom()));
     }
 
+    public static class HttpStatusException extends IOException {
+        public final int status;
+
+        public HttpStatusException(int status) {
+            super("Failed to download tile: HTTP error code: " + status);
+            this.status = status;
+        }
+    }
+
     public record TilePosition(int x, int y, int zoom) {
         @Override
         public boolean equals(Object obj) {
@@ -195,4 +417,15 @@ public class TileUtils {
     }
 
     public record TileData(TilePosition pos, byte[] data) {}
+
+    // data is null if the server answered 304 Not Modified, the validators are then the ones that were sent
+    public record TileResponse(TilePosition pos, byte[] data, String etag, String lastModified, long fetchedMillis) {
+        public boolean notModified() {
+            return data == null;
+        }
+
+        public TileData tile() {
+            return data != null ? new TileData(pos, data) : null;
+        }
+    }
 }
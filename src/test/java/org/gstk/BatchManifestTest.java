@@ -0,0 +1,58 @@
+package org.gstk;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchManifestTest {
+    @Test
+    void testValidate() {
+        BatchManifest manifest = manifest(job(null, "mbtiles:a.mbtiles"), job("roads", "mbtiles:b.mbtiles"));
+        manifest.validate();
+        assertEquals("job1", manifest.jobs.get(0).name, "Default job name");
+        assertEquals("gstk_failed_tiles_job1.log", manifest.jobs.get(0).getFailsFile().getName(), "Default fails file");
+        assertEquals("roads", manifest.jobs.get(1).name, "Job name");
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(BatchManifest.InvalidManifestException.class, () -> manifest().validate(), "No jobs");
+
+        BatchManifest.Job noUrl = job("a", "mbtiles:a.mbtiles");
+        noUrl.url = "https://tiles.example.com/{z}/{x}.png";
+        assertThrows(BatchManifest.InvalidManifestException.class, () -> manifest(noUrl).validate(), "Invalid tile URL");
+
+        BatchManifest.Job zooms = job("a", "mbtiles:a.mbtiles");
+        zooms.startZoom = 12;
+        zooms.endZoom = 10;
+        assertThrows(BatchManifest.InvalidManifestException.class, () -> manifest(zooms).validate(), "Start zoom above end zoom");
+
+        BatchManifest.Job noRegion = job("a", "mbtiles:a.mbtiles");
+        noRegion.region = null;
+        assertThrows(BatchManifest.InvalidManifestException.class, () -> manifest(noRegion).validate(), "Missing region");
+
+        assertThrows(BatchManifest.InvalidManifestException.class,
+            () -> manifest(job("a", "mbtiles:a.mbtiles"), job("a", "mbtiles:b.mbtiles")).validate(), "Duplicate name");
+        assertThrows(BatchManifest.InvalidManifestException.class,
+            () -> manifest(job("a", "mbtiles:a.mbtiles"), job("b", "mbtiles:a.mbtiles")).validate(), "Shared database");
+    }
+
+    private static BatchManifest manifest(BatchManifest.Job... jobs) {
+        BatchManifest manifest = new BatchManifest();
+        manifest.jobs = List.of(jobs);
+        return manifest;
+    }
+
+    private static BatchManifest.Job job(String name, String db) {
+        BatchManifest.Job job = new BatchManifest.Job();
+        job.name = name;
+        job.region = "wkt:POLYGON ((0 0, 1 0, 1 1, 0 1, 0 0))";
+        job.url = "https://tiles.example.com/{z}/{x}/{y}.png";
+        job.db = db;
+        job.startZoom = 10;
+        job.endZoom = 12;
+        return job;
+    }
+}
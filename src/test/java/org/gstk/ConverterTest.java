@@ -0,0 +1,110 @@
+package org.gstk;
+
+import org.gstk.db.ArchiveDB;
+import org.gstk.db.MBTilesDB;
+import org.gstk.db.TileDB;
+import org.gstk.mock.TilePayloads;
+import org.gstk.utils.ImageUtils;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConverterTest {
+    @Test
+    void testRoundTrip() throws Exception {
+        Path dir = Files.createTempDirectory("gstk-convert-");
+        File sourceFile = new File(dir.toFile(), "source.gstkarc");
+        File pngFile = new File(dir.toFile(), "png.mbtiles");
+        File copyFile = new File(dir.toFile(), "copy.gstkarc");
+
+        try {
+            // Mixed formats are only possible in an archive, re-encoding makes them fit into MBTiles
+            Map<TilePosition, byte[]> tiles = new HashMap<>();
+            ArchiveDB source = new ArchiveDB(sourceFile.getPath());
+            for (int zoom = 2; zoom <= 3; zoom++) {
+                for (int x = 0; x < (1 << zoom); x++) {
+                    for (int y = 0; y < 3; y++) {
+                        TilePosition pos = new TilePosition(x, y, zoom);
+                        byte[] data = (x + y) % 2 == 0 ? TilePayloads.png(x * 31 + y) : TilePayloads.jpeg(x * 31 + y);
+                        source.storeTile(new TileData(pos, data));
+                        tiles.put(pos, data);
+                    }
+                }
+            }
+            source.close();
+
+            source = new ArchiveDB(sourceFile.getPath(), true);
+            MBTilesDB png = new MBTilesDB(pngFile.getPath(), null);
+            Converter converter = new Converter(source, png, 2, true, new CancellationToken(), null);
+            converter.start();
+            source.close();
+            png.close();
+            assertEquals(tiles.size(), converter.convertedTileCount.get(), "Every tile converted");
+            assertEquals(0, converter.failedTileCount.get(), "No failed tiles");
+
+            png = new MBTilesDB(pngFile.getPath(), null, true);
+            png.init();
+            assertEquals(List.of(2, 3), png.getZoomLevels(), "Zoom levels");
+            for (Map.Entry<TilePosition, byte[]> tile : tiles.entrySet()) {
+                byte[] data = png.getTile(tile.getKey());
+                assertTrue(ImageUtils.isPng(data), "Re-encoded " + tile.getKey());
+                if (ImageUtils.isPng(tile.getValue())) {
+                    assertArrayEquals(tile.getValue(), data, "Png tile is copied unchanged " + tile.getKey());
+                }
+            }
+
+            ArchiveDB copy = new ArchiveDB(copyFile.getPath());
+            List<String> tasks = new ArrayList<>();
+            AtomicLong processed = new AtomicLong();
+            converter = new Converter(png, copy, 1, false, new CancellationToken(), new ProgressListener() {
+                @Override
+                public void taskStarted(String taskName, long count) {
+                    tasks.add("start " + taskName + " " + count);
+                }
+
+                @Override
+                public void tilesProcessed(long count) {
+                    processed.addAndGet(count);
+                }
+
+                @Override
+                public void taskFinished(String taskName) {
+                    tasks.add("finish " + taskName);
+                }
+            });
+            converter.start();
+            copy.close();
+            assertEquals(tiles.size(), converter.convertedTileCount.get(), "Every tile copied back");
+            assertEquals(List.of("start Zoom 2 12", "finish Zoom 2", "start Zoom 3 24", "finish Zoom 3"), tasks, "Progress tasks");
+            assertEquals(tiles.size(), processed.get(), "Progress of every tile");
+
+            copy = new ArchiveDB(copyFile.getPath(), true);
+            for (TilePosition pos : tiles.keySet()) {
+                assertArrayEquals(png.getTile(pos), copy.getTile(pos), "Copied " + pos);
+            }
+            assertEquals(new TileDB.TileRange(24, 0, 0, 7, 2), copy.getTileRange(3), "Tile range of the copy");
+            copy.close();
+            png.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
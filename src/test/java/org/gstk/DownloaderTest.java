@@ -0,0 +1,348 @@
+package org.gstk;
+
+import org.gstk.cache.HttpTileCache;
+import org.gstk.db.MBTilesDB;
+import org.gstk.db.TileDB;
+import org.gstk.mock.MockTileServer;
+import org.gstk.utils.TileUtils;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloaderTest {
+    @Test
+    void testSharedExecutorAndListener() throws Exception {
+        File failsFile = failsFile();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (MockTileServer server = MockTileServer.builder().errorRate(0.2).build().start()) {
+            List<TilePosition> tiles = addFails(failsFile, server.getTileUrl());
+            MemoryTileDB db = new MemoryTileDB();
+            AtomicInteger stored = new AtomicInteger();
+            List<String> tasks = new ArrayList<>();
+
+            Downloader downloader = Downloader.builder(db)
+                .threads(4)
+                .failsFile(failsFile)
+                .executor(executor)
+                .listener(new DownloadListener() {
+                    @Override
+                    public void taskStarted(String taskName, int count) {
+                        tasks.add("start " + count);
+                    }
+
+                    @Override
+                    public void tileStored(TileData tile) {
+                        stored.incrementAndGet();
+                    }
+
+                    @Override
+                    public void taskFinished(String taskName) {
+                        tasks.add("finish");
+                    }
+                })
+                .build();
+            downloader.repair();
+            downloader.closeFails();
+
+            assertEquals(List.of("start " + tiles.size(), "finish"), tasks, "Task callbacks");
+            assertEquals(tiles.size(), stored.get(), "Every tile reported");
+            assertEquals(tiles.size(), db.tiles.size(), "Every tile stored");
+            for (TilePosition pos : tiles) {
+                assertArrayEquals(server.getPayload(pos.zoom(), pos.x(), pos.y()), db.tiles.get(pos), "Payload of " + pos);
+            }
+            assertFalse(executor.isShutdown(), "Shared executor is left running");
+        } finally {
+            executor.shutdownNow();
+            Files.deleteIfExists(failsFile.toPath());
+        }
+    }
+
+    @Test
+    void testRepairJournal() throws Exception {
+        File failsFile = failsFile();
+        try (MockTileServer server = MockTileServer.builder().build().start()) {
+            // Two templates of the same server, the query string is ignored by it
+            String url = server.getTileUrl();
+            String otherUrl = url + "?layer=2";
+
+            FailedTiles fails = new FailedTiles(failsFile);
+            for (int x = 0; x < 4; x++) {
+                fails.addFailedTile(4, x, 1, FailedTiles.FailType.DOWNLOAD, url);
+                fails.addFailedTile(4, x, 1, FailedTiles.FailType.WRITE, url);
+                fails.addFailedTile(4, x, 2, FailedTiles.FailType.DOWNLOAD, otherUrl);
+            }
+            fails.close();
+
+            MemoryTileDB db = new MemoryTileDB();
+            List<String> tasks = new ArrayList<>();
+            Downloader downloader = Downloader.builder(db)
+                .threads(4)
+                .failsFile(failsFile)
+                .listener(new DownloadListener() {
+                    @Override
+                    public void taskStarted(String taskName, int count) {
+                        tasks.add(count + " tiles");
+                    }
+                })
+                .build();
+            downloader.repair();
+            downloader.closeFails();
+
+            assertEquals(List.of("4 tiles", "4 tiles"), tasks, "One task per URL template, duplicate entries merged");
+            assertEquals(8, server.servedCount.get(), "Every fixed tile is requested once");
+            assertEquals(8, db.tiles.size(), "Fixed tiles are stored");
+            assertArrayEquals(server.getPayload(4, 3, 2), db.tiles.get(new TilePosition(3, 2, 4)), "Payload of a fixed tile");
+
+            FailedTiles remaining = new FailedTiles(failsFile);
+            assertTrue(remaining.isEmpty(), "Fixed entries are removed from the journal");
+            remaining.close();
+        } finally {
+            Files.deleteIfExists(failsFile.toPath());
+        }
+    }
+
+    @Test
+    void testRepairDatabaseWithoutSideTables() throws Exception {
+        File failsFile = failsFile();
+        File file = Files.createTempFile("gstk-repair-", ".mbtiles").toFile();
+        try (MockTileServer server = MockTileServer.builder().build().start()) {
+            List<TilePosition> tiles = addFails(failsFile, server.getTileUrl());
+
+            // MBTiles file of an earlier version, without the progress and freshness tables
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+                 Statement stmt = conn.createStatement())
+            {
+                stmt.executeUpdate("CREATE TABLE metadata (name TEXT UNIQUE, value TEXT)");
+                stmt.executeUpdate("CREATE TABLE tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+                stmt.executeUpdate("CREATE UNIQUE INDEX tile_index ON tiles (zoom_level, tile_column, tile_row)");
+                stmt.executeUpdate("INSERT INTO metadata (name, value) VALUES ('format', 'png')");
+                try (PreparedStatement ps = conn.prepareStatement("INSERT INTO tiles VALUES (0, 0, 0, ?)")) {
+                    ps.setBytes(1, server.getPayload(0, 0, 0));
+                    ps.executeUpdate();
+                }
+            }
+
+            TileDB db = Main.openRepairTarget("mbtiles:" + file.getPath());
+            Downloader downloader = Downloader.builder(db)
+                .threads(4)
+                .failsFile(failsFile)
+                .build();
+            downloader.repair();
+            downloader.closeFails();
+
+            for (TilePosition pos : tiles) {
+                assertArrayEquals(server.getPayload(pos.zoom(), pos.x(), pos.y()), db.getTile(pos), "Payload of " + pos);
+            }
+            assertEquals(0, downloader.failedTileCount.get(), "No failed repairs");
+            db.close();
+
+            FailedTiles remaining = new FailedTiles(failsFile);
+            assertTrue(remaining.isEmpty(), "Fixed entries are removed from the journal");
+            remaining.close();
+        } finally {
+            Files.deleteIfExists(failsFile.toPath());
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    void testCancellation() throws Exception {
+        File failsFile = failsFile();
+        try (MockTileServer server = MockTileServer.builder().build().start()) {
+            List<TilePosition> tiles = addFails(failsFile, server.getTileUrl());
+            MemoryTileDB db = new MemoryTileDB();
+            CancellationToken cancellation = new CancellationToken();
+            cancellation.cancel();
+
+            Downloader downloader = Downloader.builder(db)
+                .failsFile(failsFile)
+                .cancellation(cancellation)
+                .build();
+            downloader.repair();
+            downloader.closeFails();
+
+            assertTrue(db.tiles.isEmpty(), "Nothing downloaded after cancellation");
+            assertEquals(0, server.requestCount.get(), "No requests after cancellation");
+            assertEquals(tiles.size(), new FailedTiles(failsFile).size(), "Failed tiles are kept");
+        } finally {
+            Files.deleteIfExists(failsFile.toPath());
+        }
+    }
+
+    @Test
+    void testRefresh() throws Exception {
+        Path dir = Files.createTempDirectory("gstk-refresh-");
+        try (MockTileServer server = MockTileServer.builder().build().start()) {
+            Region region = Region.fromWkt("POLYGON ((-118.3 34.0, -118.2 34.0, -118.2 34.1, -118.3 34.1, -118.3 34.0))");
+            HttpTileCache cache = new HttpTileCache(new File(dir.toFile(), "cache"), 1 << 24);
+            MBTilesDB db = new MBTilesDB(new File(dir.toFile(), "tiles.mbtiles").getPath(), null);
+            db.init();
+
+            refresh(db, region, server, cache, -1);
+            long tiles = server.requestCount.get();
+            assertTrue(tiles > 1, "Tiles downloaded: " + tiles);
+
+            refresh(db, region, server, cache, 86_400_000L);
+            assertEquals(tiles, server.requestCount.get(), "Fresh tiles are skipped");
+
+            Thread.sleep(5);
+            refresh(db, region, server, cache, 0);
+            assertEquals(2 * tiles, server.requestCount.get(), "Stale tiles are requested again");
+            assertEquals(tiles, server.notModifiedCount.get(), "Stale tiles are requested with their validators");
+            db.close();
+
+            // Tiles stored without freshness are requested unconditionally, their cached copies are older than the max age
+            MBTilesDB copy = new MBTilesDB(new File(dir.toFile(), "copy.mbtiles").getPath(), null);
+            copy.init();
+            for (TilePosition pos : TileUtils.findTilesInRegion(region, 13)) {
+                copy.storeTile(new TileData(pos, server.getPayload(pos.zoom(), pos.x(), pos.y())));
+            }
+            Thread.sleep(5);
+            refresh(copy, region, server, cache, 0);
+            assertEquals(3 * tiles, server.requestCount.get(), "Refreshed tiles are not read from the cache");
+            copy.close();
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testPartition() {
+        List<Integer> tiles = new ArrayList<>();
+        for (int i = 0; i < 1003; i++) {
+            tiles.add(i);
+        }
+
+        assertSame(tiles, Downloader.partition(tiles, 0, 1), "Single slice is the whole list");
+        for (int count : new int[]{2, 3, 7, 1003, 1500}) {
+            List<Integer> joined = new ArrayList<>();
+            for (int index = 0; index < count; index++) {
+                List<Integer> slice = Downloader.partition(tiles, index, count);
+                assertTrue(Math.abs(slice.size() - tiles.size() / (double) count) < 1, "Balanced slice " + index + "/" + count);
+                joined.addAll(slice);
+            }
+            assertEquals(tiles, joined, "Slices are disjoint, ordered and cover all tiles for " + count);
+        }
+    }
+
+    // Downloads zoom level 13, maxAgeMillis -1 downloads tiles that don't exist yet
+    private static void refresh(TileDB db, Region region, MockTileServer server, HttpTileCache cache, long maxAgeMillis) {
+        Downloader downloader = Downloader.builder(db)
+            .region(region)
+            .tileUrl(server.getTileUrl())
+            .threads(2)
+            .cache(cache)
+            .refresh(maxAgeMillis)
+            .build();
+        downloader.start(13, 13, false);
+        downloader.closeFails();
+    }
+
+    private static File failsFile() throws Exception {
+        File file = Files.createTempFile("gstk-fails-", ".log").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+        return file;
+    }
+
+    private static List<TilePosition> addFails(File failsFile, String url) throws Exception {
+        List<TilePosition> tiles = new ArrayList<>();
+        FailedTiles fails = new FailedTiles(failsFile);
+        for (int x = 0; x < 8; x++) {
+            for (int y = 0; y < 4; y++) {
+                tiles.add(new TilePosition(x, y, 5));
+                fails.addFailedTile(5, x, y, FailedTiles.FailType.DOWNLOAD, url);
+            }
+        }
+        fails.close();
+        return tiles;
+    }
+
+    private static class MemoryTileDB implements TileDB {
+        final Map<TilePosition, byte[]> tiles = new ConcurrentHashMap<>();
+
+        @Override
+        public String getIdentifier() {
+            return "memory";
+        }
+
+        @Override
+        public File getFile() {
+            return null;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void init() {}
+
+        @Override
+        public boolean needsAdvancedInit() {
+            return false;
+        }
+
+        @Override
+        public void advancedInit(int startZoom, int endZoom, Region region) {}
+
+        @Override
+        public void storeTile(TileData tile) {
+            tiles.put(tile.pos(), tile.data());
+        }
+
+        @Override
+        public boolean doesTileExist(int column, int row, int zoom) {
+            return tiles.containsKey(new TilePosition(column, row, zoom));
+        }
+
+        @Override
+        public byte[] getTile(int column, int row, int zoom) {
+            return tiles.get(new TilePosition(column, row, zoom));
+        }
+
+        @Override
+        public void scanTiles(int zoom, int minColumn, int minRow, int maxColumn, int maxRow, TileConsumer consumer) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Integer> getZoomLevels() {
+            return tiles.keySet().stream().map(TilePosition::zoom).distinct().sorted().toList();
+        }
+
+        @Override
+        public TileRange getTileRange(int zoom) {
+            return null;
+        }
+
+        @Override
+        public void importTiles(File tilesFile) {}
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,75 @@
+package org.gstk;
+
+import org.gstk.utils.TileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EnumerationCacheTest {
+    @Test
+    void testReadAndWrite() throws Exception {
+        Path dir = Files.createTempDirectory("gstk-enumeration-");
+        try {
+            // Zoom 16 is the last zoom level with 32 bit keys
+            for (int zoom : new int[]{0, 4, 16, 17, 30}) {
+                long start = TileUtils.zoomTileIdStart(zoom);
+                long last = TileUtils.zoomTileIdStart(zoom + 1) - 1;
+                long[] ids = zoom == 0 ? new long[]{start} : new long[]{start, start + 1, (start + last) / 2, last};
+
+                Path file = dir.resolve("region-" + zoom + ".tiles");
+                assertNull(EnumerationCache.read(file, zoom), "Missing file at zoom " + zoom);
+
+                EnumerationCache.write(file, zoom, ids);
+                assertArrayEquals(ids, ids(EnumerationCache.read(file, zoom)), "Round trip at zoom " + zoom);
+                assertNull(EnumerationCache.read(file, zoom + 1), "Other zoom level");
+            }
+
+            Path empty = dir.resolve("empty.tiles");
+            EnumerationCache.write(empty, 12, new long[0]);
+            assertArrayEquals(new long[0], ids(EnumerationCache.read(empty, 12)), "Empty region");
+
+            Path truncated = dir.resolve("truncated.tiles");
+            EnumerationCache.write(truncated, 4, new long[]{21, 22, 23});
+            byte[] data = Files.readAllBytes(truncated);
+            Files.write(truncated, Arrays.copyOf(data, data.length - 2));
+            assertNull(EnumerationCache.read(truncated, 4), "Truncated file");
+
+            // Enumeration version after the magic
+            Path outdated = dir.resolve("outdated.tiles");
+            EnumerationCache.write(outdated, 4, new long[]{21, 22, 23});
+            data = Files.readAllBytes(outdated);
+            data[7]++;
+            Files.write(outdated, data);
+            assertNull(EnumerationCache.read(outdated, 4), "Other enumeration version");
+
+            try (Stream<Path> files = Files.list(dir)) {
+                assertTrue(files.noneMatch(file -> file.toString().endsWith(".tmp")), "No temporary files left");
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static long[] ids(EnumerationCache.TileIds tileIds) {
+        long[] ids = new long[tileIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = tileIds.get(i);
+        }
+        return ids;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
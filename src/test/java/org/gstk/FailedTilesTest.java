@@ -0,0 +1,95 @@
+package org.gstk;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FailedTilesTest {
+    @Test
+    void testJournalReplay() throws Exception {
+        File file = Files.createTempFile("gstk-fails-", ".log").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+
+        try {
+            FailedTiles fails = new FailedTiles(file);
+            fails.addFailedTile(3, 1, 2, FailedTiles.FailType.DOWNLOAD, "https://a/{z}/{x}/{y}");
+            fails.addFailedTile(3, 1, 2, FailedTiles.FailType.WRITE, "https://a/{z}/{x}/{y}");
+            fails.addFailedTile(3, 2, 2, FailedTiles.FailType.DOWNLOAD, "https://a/{z}/{x}/{y}");
+            fails.addFailedTile(3, 2, 2, FailedTiles.FailType.DOWNLOAD, "https://b/{z}/{x}/{y}");
+            fails.removeFailedTile(fails.getFails().get(1));
+            fails.flush();
+
+            assertEquals(2, fails.size(), "Duplicates are merged and removed entries dropped");
+
+            FailedTiles reopened = new FailedTiles(file);
+            assertEquals(2, reopened.size(), "Entries after replaying the journal");
+            assertEquals("write", reopened.getFails().get(0).type, "Latest entry wins");
+            assertEquals("https://b/{z}/{x}/{y}", reopened.getFails().get(1).url, "Remaining entry");
+            reopened.close();
+            fails.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    void testTruncatedRecord() throws Exception {
+        File file = Files.createTempFile("gstk-fails-", ".log").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+
+        try {
+            FailedTiles fails = new FailedTiles(file);
+            fails.addFailedTile(5, 7, 9, FailedTiles.FailType.DOWNLOAD, "https://a/{z}/{x}/{y}");
+            fails.flush();
+            Files.writeString(file.toPath(), "+\t2026-01-01T00:00\t5\t8", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+            FailedTiles reopened = new FailedTiles(file);
+            assertEquals(1, reopened.size(), "Partially written record is dropped");
+            reopened.addFailedTile(5, 8, 9, FailedTiles.FailType.DOWNLOAD, "https://a/{z}/{x}/{y}");
+            reopened.close();
+
+            assertEquals(2, new FailedTiles(file).size(), "Appends after recovery");
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    void testXmlConversion() throws Exception {
+        File dir = Files.createTempDirectory("gstk-fails-").toFile();
+        File xmlFile = new File(dir, "fails.xml");
+        File journalFile = new File(dir, "fails.log");
+        String xml = """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <fails>
+                <fail><timestamp>2024-01-01T00:00</timestamp><zoom>4</zoom><x>1</x><y>2</y><type>download</type><url>https://a/{z}/{x}/{y}</url></fail>
+                <fail><timestamp>2024-01-01T00:01</timestamp><zoom>4</zoom><x>3</x><y>2</y><type>write</type><url>https://a/{z}/{x}/{y}</url></fail>
+            </fails>
+            """;
+
+        try {
+            Files.writeString(xmlFile.toPath(), xml, StandardCharsets.UTF_8);
+
+            FailedTiles fails = new FailedTiles(xmlFile);
+            assertEquals(journalFile, fails.file, "Journal next to the XML file");
+            assertEquals(2, fails.size(), "Converted entries");
+            fails.removeFailedTile(4, 1, 2, "https://a/{z}/{x}/{y}");
+            fails.close();
+            assertEquals(xml, Files.readString(xmlFile.toPath(), StandardCharsets.UTF_8), "XML file is left unchanged");
+
+            FailedTiles reopened = new FailedTiles(xmlFile);
+            assertEquals(1, reopened.size(), "Existing journal is used instead of converting again");
+            assertEquals(3, reopened.getFails().get(0).x, "Remaining entry");
+            reopened.close();
+        } finally {
+            Files.deleteIfExists(xmlFile.toPath());
+            Files.deleteIfExists(journalFile.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.gstk;
+
+import org.gstk.db.MBTilesDB;
+import org.gstk.db.TileDB;
+import org.gstk.mock.TilePayloads;
+import org.gstk.utils.TileUtils;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MergerTest {
+    // Tiles of every database overlap at (1, 1), each database also has one tile of its own
+    private static final TilePosition SHARED = new TilePosition(1, 1, 2);
+
+    @Test
+    void testConflictPolicies() throws Exception {
+        Path dir = Files.createTempDirectory("gstk-merge-");
+        try {
+            File first = createSource(dir, "first", 1);
+            File second = createSource(dir, "second", 2);
+            // NEWEST ranks by modification time, the first listed source is the older one
+            assertTrue(first.setLastModified(System.currentTimeMillis() - 60_000), "Set modification time");
+
+            Merger.ConflictPolicy[] policies = {
+                Merger.ConflictPolicy.NEWEST,
+                Merger.ConflictPolicy.PREFER_SOURCE,
+                Merger.ConflictPolicy.KEEP_EXISTING,
+            };
+            byte[][] expected = {TilePayloads.png(2), TilePayloads.png(1), TilePayloads.png(9)};
+            for (int i = 0; i < policies.length; i++) {
+                File targetFile = new File(dir.toFile(), "target-" + i + ".mbtiles");
+                MBTilesDB target = new MBTilesDB(targetFile.getPath(), null);
+                target.init();
+                target.storeTile(new TileData(SHARED, TilePayloads.png(9)));
+                target.close();
+
+                List<TileDB> sources = List.of(open(first), open(second));
+                target = new MBTilesDB(targetFile.getPath(), null);
+                Merger merger = new Merger(sources, target, policies[i], 0, new CancellationToken(), null);
+                merger.start();
+                sources.forEach(TileDB::close);
+                target.close();
+
+                target = new MBTilesDB(targetFile.getPath(), null, true);
+                target.init();
+                assertArrayEquals(expected[i], target.getTile(SHARED), "Shared tile with " + policies[i]);
+                assertArrayEquals(TilePayloads.png(10), target.getTile(1, 0, 2), "Tile only in the first source with " + policies[i]);
+                assertArrayEquals(TilePayloads.png(20), target.getTile(2, 0, 2), "Tile only in the second source with " + policies[i]);
+                assertEquals(3, target.getTileRange(2).count(), "Tile count with " + policies[i]);
+                target.close();
+
+                long skipped = policies[i] == Merger.ConflictPolicy.KEEP_EXISTING ? 2 : 1;
+                assertEquals(skipped, merger.skippedTileCount.get(), "Skipped tiles with " + policies[i]);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    void testNewestByFetchTime() throws Exception {
+        Path dir = Files.createTempDirectory("gstk-merge-");
+        try {
+            TilePosition unrecorded = new TilePosition(3, 3, 2);
+            long now = System.currentTimeMillis();
+            // The first source's copy of SHARED was fetched last, but the second source file is newer
+            File first = createSource(dir, "first", 1, List.of(
+                new TileData(SHARED, TilePayloads.png(1)),
+                new TileData(unrecorded, TilePayloads.png(3))
+            ), List.of(new TileDB.Freshness(TileUtils.hilbertTileId(SHARED), now, null, null)));
+            File second = createSource(dir, "second", 2, List.of(
+                new TileData(SHARED, TilePayloads.png(2)),
+                new TileData(unrecorded, TilePayloads.png(4))
+            ), List.of(
+                new TileDB.Freshness(TileUtils.hilbertTileId(SHARED), now - 60_000, null, null),
+                new TileDB.Freshness(TileUtils.hilbertTileId(unrecorded), now - 60_000, null, null)
+            ));
+            assertTrue(first.setLastModified(now - 60_000), "Set modification time");
+
+            File targetFile = new File(dir.toFile(), "target.mbtiles");
+            List<TileDB> sources = List.of(open(first), open(second));
+            MBTilesDB target = new MBTilesDB(targetFile.getPath(), null);
+            new Merger(sources, target, Merger.ConflictPolicy.NEWEST, 0, new CancellationToken(), null).start();
+            sources.forEach(TileDB::close);
+            target.close();
+
+            target = new MBTilesDB(targetFile.getPath(), null, true);
+            target.init();
+            assertArrayEquals(TilePayloads.png(1), target.getTile(SHARED), "Copy fetched last");
+            assertArrayEquals(TilePayloads.png(4), target.getTile(unrecorded), "Newest file without fetch times of both copies");
+            target.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    void testSourceReadError() throws Exception {
+        Path dir = Files.createTempDirectory("gstk-merge-");
+        try {
+            File first = createSource(dir, "first", 1);
+            File second = createSource(dir, "second", 2);
+            File targetFile = new File(dir.toFile(), "target.mbtiles");
+
+            TileDB failing = new MBTilesDB(second.getPath(), null, true) {
+                @Override
+                public synchronized void scanTiles(
+                    int zoom,
+                    int minColumn,
+                    int minRow,
+                    int maxColumn,
+                    int maxRow,
+                    TileConsumer consumer) throws Exception
+                {
+                    throw new IOException("Unreadable source");
+                }
+            };
+            failing.init();
+            List<TileDB> sources = List.of(open(first), failing);
+            MBTilesDB target = new MBTilesDB(targetFile.getPath(), null);
+            Merger merger = new Merger(sources, target, Merger.ConflictPolicy.PREFER_SOURCE, 1, new CancellationToken(), null);
+
+            Exception e = assertThrows(IOException.class, merger::start, "Source read error fails the merge");
+            assertEquals("Unreadable source", e.getCause().getMessage(), "Cause of the failure");
+            assertFalse(target.doesTileExist(SHARED), "Tiles of lower ranked sources don't replace the failed source's");
+            sources.forEach(TileDB::close);
+            target.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static File createSource(Path dir, String name, int value) throws Exception {
+        return createSource(dir, name, value, List.of(new TileData(SHARED, TilePayloads.png(value))), null);
+    }
+
+    // Stores the shared tiles, a tile of the source's own and the freshness entries (may be null)
+    private static File createSource(Path dir, String name, int value, List<TileData> shared, List<TileDB.Freshness> freshness) throws Exception {
+        File file = new File(dir.toFile(), name + ".mbtiles");
+        MBTilesDB db = new MBTilesDB(file.getPath(), null);
+        db.init();
+        List<TileData> tiles = new ArrayList<>(shared);
+        tiles.add(new TileData(new TilePosition(value, 0, 2), TilePayloads.png(value * 10L)));
+        db.storeTiles(tiles, null, freshness);
+        db.close();
+        return file;
+    }
+
+    private static TileDB open(File file) throws Exception {
+        TileDB db = TileDB.openReadOnly("mbtiles:" + file.getPath(), null);
+        db.init();
+        return db;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.gstk;
+
+import org.gstk.db.MBTilesDB;
+import org.gstk.mock.TilePayloads;
+import org.gstk.utils.TileFormat;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+class OverviewBuilderTest {
+    private static final String WORLD = "POLYGON ((-179 -80, 179 -80, 179 80, -179 80, -179 -80))";
+    private static final TilePosition REJECTED = new TilePosition(1, 0, 1);
+
+    @Test
+    void testJpegOverviews() throws Exception {
+        File file = Files.createTempFile("gstk-overviews-", ".mbtiles").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+        try {
+            MBTilesDB db = new MBTilesDB(file.getPath(), null);
+            db.init();
+            storeChildren(db);
+
+            OverviewBuilder builder = new OverviewBuilder(db, Region.fromWkt(WORLD), 2, false, null, new CancellationToken(), null);
+            builder.build(1, 2);
+            assertEquals(4, builder.builtTileCount.get(), "Built tiles");
+            assertEquals(0, builder.failedTileCount.get(), "Failed tiles");
+            for (int x = 0; x < 2; x++) {
+                for (int y = 0; y < 2; y++) {
+                    assertEquals(TileFormat.JPEG, TileFormat.detect(db.getTile(x, y, 1)), "Format of parent " + x + "," + y);
+                }
+            }
+            db.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    void testRejectedTile() throws Exception {
+        File file = Files.createTempFile("gstk-overviews-", ".mbtiles").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+        try {
+            MBTilesDB db = new MBTilesDB(file.getPath(), null) {
+                @Override
+                public void storeTiles(List<TileData> tiles) throws SQLException {
+                    if (tiles.stream().anyMatch(tile -> tile.pos().equals(REJECTED))) {
+                        throw new SQLException("Rejected " + REJECTED);
+                    }
+                    super.storeTiles(tiles);
+                    if (tiles.size() == 1 && tiles.get(0).pos().zoom() == 1) {
+                        // Slow first write outside the database lock, so the next parents are written as one batch
+                        sleep(200);
+                    }
+                }
+            };
+            db.init();
+            storeChildren(db);
+
+            // The rejected tile fails the batch it is written in, the other tiles of the batch are kept
+            OverviewBuilder builder = new OverviewBuilder(db, Region.fromWkt(WORLD), 1, false, null, new CancellationToken(), null);
+            builder.build(1, 2);
+            assertEquals(3, builder.builtTileCount.get(), "Built tiles");
+            assertEquals(1, builder.failedTileCount.get(), "Failed tiles");
+            assertFalse(db.doesTileExist(REJECTED), "Rejected tile");
+            for (int x = 0; x < 2; x++) {
+                assertTrue(db.doesTileExist(x, 1, 1), "Built tile " + x + ",1");
+            }
+            db.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    void testWebpTiles() throws Exception {
+        assumeFalse(ImageIO.getImageReadersByMIMEType("image/webp").hasNext(), "No webp decoder");
+        File file = Files.createTempFile("gstk-overviews-", ".mbtiles").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+        try {
+            MBTilesDB db = new MBTilesDB(file.getPath(), null);
+            db.init();
+            byte[] webp = "RIFF\0\0\0\0WEBPVP8 ".getBytes(StandardCharsets.US_ASCII);
+            db.storeTiles(List.of(new TileData(new TilePosition(0, 0, 2), webp), new TileData(new TilePosition(3, 3, 2), webp)));
+
+            // Refused once for the whole build instead of failing every parent tile
+            OverviewBuilder builder = new OverviewBuilder(db, Region.fromWkt(WORLD), 2, false, null, new CancellationToken(), null);
+            builder.build(0, 2);
+            assertEquals(0, builder.builtTileCount.get(), "Built tiles");
+            assertEquals(0, builder.failedTileCount.get(), "Failed tiles");
+            assertEquals(List.of(2), db.getZoomLevels(), "No overview zoom levels");
+            db.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Every child of zoom level 2 except (3, 3), so one parent has a gap
+    private static void storeChildren(MBTilesDB db) throws SQLException {
+        List<TileData> children = new ArrayList<>();
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 4; y++) {
+                if (x != 3 || y != 3) {
+                    children.add(new TileData(new TilePosition(x, y, 2), TilePayloads.jpeg(x * 4 + y)));
+                }
+            }
+        }
+        db.storeTiles(children);
+    }
+}
@@ -0,0 +1,23 @@
+package org.gstk;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileServerTest {
+    private static final String ETAG = "\"1a2b3c-400\"";
+
+    @Test
+    void testMatchesEtag() {
+        assertFalse(TileServer.matchesEtag(ETAG, null), "No If-None-Match header");
+        assertTrue(TileServer.matchesEtag(ETAG, List.of(ETAG)), "Single ETag");
+        assertTrue(TileServer.matchesEtag(ETAG, List.of("\"other\", " + ETAG)), "ETag list");
+        assertTrue(TileServer.matchesEtag(ETAG, List.of("\"other\"", ETAG)), "Repeated header");
+        assertTrue(TileServer.matchesEtag(ETAG, List.of("W/" + ETAG)), "Weak ETag");
+        assertTrue(TileServer.matchesEtag(ETAG, List.of("*")), "Any ETag");
+        assertFalse(TileServer.matchesEtag(ETAG, List.of("\"other\", W/\"1a2b3c\"")), "Other ETags");
+        assertFalse(TileServer.matchesEtag(ETAG, List.of("1a2b3c-400")), "Unquoted ETag");
+    }
+}
@@ -0,0 +1,100 @@
+package org.gstk;
+
+import org.gstk.mock.TilePayloads;
+import org.gstk.utils.ImageUtils;
+import org.gstk.utils.TileFormat;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileTransformerTest {
+    private static final TilePosition POS = new TilePosition(1, 2, 3);
+
+    @Test
+    void testPassthrough() {
+        byte[] jpeg = TilePayloads.jpeg(1);
+        TileData tile = new TileData(POS, jpeg);
+        TileTransformer transformer = new TileTransformer(false, true, 0, 9);
+        assertSame(tile, transformer.transform(tile), "Jpeg kept without --format png");
+    }
+
+    @Test
+    void testToPng() throws Exception {
+        TileTransformer transformer = new TileTransformer(true, false, 0, ImageUtils.DEFAULT_DEFLATE_LEVEL);
+        TileData tile = transformer.transform(new TileData(POS, TilePayloads.jpeg(1)));
+        assertEquals(TileFormat.PNG, TileFormat.detect(tile.data()), "Converted to png");
+        assertEquals(POS, tile.pos(), "Position kept");
+    }
+
+    @Test
+    void testOptimizeIsLossless() throws Exception {
+        byte[] png = unoptimizedPng();
+        TileData tile = new TileTransformer(false, true, 0, 9).transform(new TileData(POS, png));
+
+        assertTrue(tile.data().length < png.length, "Smaller: " + tile.data().length + " < " + png.length);
+        assertPixelsEqual(decode(png), decode(tile.data()));
+
+        TileData again = new TileTransformer(false, true, 0, 0).transform(tile);
+        assertSame(tile.data(), again.data(), "Never grows an already optimized tile");
+    }
+
+    @Test
+    void testQuantize() throws Exception {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                image.setRGB(x, y, x * 0x010101);
+            }
+        }
+
+        TileData tile = new TileTransformer(false, false, 16, 9).transform(new TileData(POS, encode(image)));
+        BufferedImage result = decode(tile.data());
+        Set<Integer> colors = new HashSet<>();
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                colors.add(result.getRGB(x, y));
+            }
+        }
+        assertTrue(colors.size() <= 16, "At most 16 colors: " + colors.size());
+    }
+
+    // Few colors, but written as 32-bit RGBA by ImageIO
+    private static byte[] unoptimizedPng() throws Exception {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                image.setRGB(x, y, ((x / 16 + y / 16) % 2 == 0) ? 0xFFF2EFE9 : 0xFFAAD3DF);
+            }
+        }
+        return encode(image);
+    }
+
+    private static byte[] encode(BufferedImage image) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static BufferedImage decode(byte[] data) throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(data));
+    }
+
+    private static void assertPixelsEqual(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth(), "Width");
+        assertEquals(expected.getHeight(), actual.getHeight(), "Height");
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y), "Pixel " + x + "," + y);
+            }
+        }
+    }
+}
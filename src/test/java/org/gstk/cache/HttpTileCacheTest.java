@@ -0,0 +1,103 @@
+package org.gstk.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpTileCacheTest {
+    @Test
+    void testGetAndPut() throws Exception {
+        Path dir = Files.createTempDirectory("gstk-cache-");
+        try {
+            HttpTileCache cache = new HttpTileCache(dir.toFile(), 1024 * 1024);
+            assertNull(cache.get("https://a/1/0/0.png"), "Miss before put");
+
+            cache.put("https://a/1/0/0.png", new byte[]{1, 2, 3}, "\"abc\"", null);
+            HttpTileCache.Entry entry = cache.get("https://a/1/0/0.png");
+            assertNotNull(entry, "Hit after put");
+            assertArrayEquals(new byte[]{1, 2, 3}, entry.data(), "Data");
+            assertEquals("\"abc\"", entry.etag(), "ETag");
+            assertNull(entry.lastModified(), "No Last-Modified");
+            assertNull(cache.get("https://b/1/0/0.png"), "Other URL");
+
+            HttpTileCache reopened = new HttpTileCache(dir.toFile(), 1024 * 1024);
+            assertNotNull(reopened.get("https://a/1/0/0.png"), "Shared between instances");
+            assertEquals(cache.getSizeBytes(), reopened.getSizeBytes(), "Size on open");
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    void testEviction() throws Exception {
+        Path dir = Files.createTempDirectory("gstk-cache-");
+        try {
+            HttpTileCache cache = new HttpTileCache(dir.toFile(), 64 * 1024);
+            byte[] data = new byte[4096];
+            for (int i = 0; i < 64; i++) {
+                cache.put("https://a/10/" + i + "/0.png", data, null, null);
+                // Entry times are used for the eviction order, keep them apart
+                Thread.sleep(2);
+            }
+
+            assertTrue(cache.getSizeBytes() <= 64 * 1024, "Size within limit: " + cache.getSizeBytes());
+            assertNull(cache.get("https://a/10/0/0.png"), "Oldest entry evicted");
+            assertNotNull(cache.get("https://a/10/63/0.png"), "Newest entry kept");
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    void testConcurrentAccess() throws Exception {
+        Path dir = Files.createTempDirectory("gstk-cache-");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            HttpTileCache cache = new HttpTileCache(dir.toFile(), 1024 * 1024);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        String url = "https://a/5/" + (i % 10) + "/0.png";
+                        byte[] data = new byte[1000 + i % 10];
+                        Arrays.fill(data, (byte) (i % 10));
+                        if ((i + thread) % 2 == 0) {
+                            cache.put(url, data, null, null);
+                        } else {
+                            HttpTileCache.Entry entry = cache.get(url);
+                            if (entry != null) {
+                                assertArrayEquals(data, entry.data(), "Complete entry for " + url);
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+            delete(dir);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.gstk.db;
+
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ArchiveDBTest {
+    @Test
+    void testStoreAndReopen() throws Exception {
+        File file = Files.createTempFile("gstk-archive-", ".gstkarc").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+
+        try {
+            ArchiveDB db = new ArchiveDB(file.getPath());
+            db.storeTile(new TileData(new TilePosition(0, 0, 0), new byte[]{1, 2, 3}));
+            db.storeTile(new TileData(new TilePosition(1, 0, 1), new byte[]{4, 5}));
+            db.storeTile(new TileData(new TilePosition(0, 1, 1), new byte[]{4, 5}));
+
+            assertArrayEquals(new byte[]{4, 5}, db.getTile(1, 0, 1), "Read pending tile");
+            assertTrue(db.doesTileExist(0, 1, 1), "Pending tile exists");
+            db.close();
+
+            long size = file.length();
+            db = new ArchiveDB(file.getPath());
+            assertArrayEquals(new byte[]{1, 2, 3}, db.getTile(0, 0, 0), "Read tile after reopening");
+            assertArrayEquals(new byte[]{4, 5}, db.getTile(0, 1, 1), "Read deduplicated tile after reopening");
+            assertNull(db.getTile(1, 1, 1), "Missing tile");
+            assertEquals(List.of(0, 1), db.getZoomLevels(), "Zoom levels");
+
+            db.storeTile(new TileData(new TilePosition(1, 0, 1), new byte[]{6}));
+            db.storeTile(new TileData(new TilePosition(3, 3, 2), new byte[]{7}));
+            db.close();
+            assertTrue(file.length() > size, "Archive grows after appending");
+
+            db = new ArchiveDB(file.getPath());
+            assertArrayEquals(new byte[]{6}, db.getTile(1, 0, 1), "Replaced tile");
+            assertArrayEquals(new byte[]{4, 5}, db.getTile(0, 1, 1), "Tile from previous session");
+
+            List<TilePosition> scanned = new ArrayList<>();
+            db.scanTiles(1, tile -> scanned.add(tile.pos()));
+            assertEquals(List.of(new TilePosition(0, 1, 1), new TilePosition(1, 0, 1)), scanned, "Scan is ordered by column, then row");
+            db.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Test
+    void testSpilledRuns() throws Exception {
+        File file = Files.createTempFile("gstk-archive-", ".gstkarc").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+        File runsFile = new File(file.getPath() + "-runs");
+
+        try {
+            // Runs of 4 entries, so new entries are mostly read back from spilled runs
+            ArchiveDB db = new ArchiveDB(file.getPath(), false, 4);
+            for (int x = 0; x < 8; x++) {
+                for (int y = 0; y < 8; y++) {
+                    db.storeTile(new TileData(new TilePosition(x, y, 3), new byte[]{(byte) x, (byte) y}));
+                }
+            }
+            db.storeTile(new TileData(new TilePosition(2, 5, 3), new byte[]{9}));
+            db.storeTile(new TileData(new TilePosition(0, 0, 0), new byte[]{1}));
+            assertTrue(runsFile.exists(), "Entries are spilled");
+
+            assertArrayEquals(new byte[]{9}, db.getTile(2, 5, 3), "Replaced tile from a later run");
+            assertArrayEquals(new byte[]{7, 1}, db.getTile(7, 1, 3), "Tile from a spilled run");
+            assertFalse(db.doesTileExist(0, 0, 1), "Missing tile");
+            assertEquals(List.of(0, 3), db.getZoomLevels(), "Zoom levels of spilled entries");
+            assertEquals(new TileDB.TileRange(64, 0, 0, 7, 7), db.getTileRange(3), "Tile range counts replaced tiles once");
+            db.close();
+            assertFalse(runsFile.exists(), "Runs are deleted on close");
+
+            db = new ArchiveDB(file.getPath(), false, 4);
+            List<TilePosition> scanned = new ArrayList<>();
+            db.scanTiles(3, 1, 2, 2, 6, tile -> scanned.add(tile.pos()));
+            List<TilePosition> expected = new ArrayList<>();
+            for (int x = 1; x <= 2; x++) {
+                for (int y = 2; y <= 6; y++) {
+                    expected.add(new TilePosition(x, y, 3));
+                }
+            }
+            assertEquals(expected, scanned, "Scan is ordered by column, then row");
+            assertArrayEquals(new byte[]{9}, db.getTile(2, 5, 3), "Replaced tile after reopening");
+            db.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(runsFile.toPath());
+        }
+    }
+
+    @Test
+    void testReadOnly() throws Exception {
+        File file = Files.createTempFile("gstk-archive-", ".gstkarc").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+
+        try {
+            assertThrows(TileDB.InitException.class, () -> new ArchiveDB(file.getPath(), true), "Missing archive");
+            assertFalse(file.exists(), "Missing archive is not created");
+
+            ArchiveDB db = new ArchiveDB(file.getPath());
+            db.storeTile(new TileData(new TilePosition(0, 0, 0), new byte[]{1}));
+            db.close();
+
+            ArchiveDB reader = new ArchiveDB(file.getPath(), true);
+            assertArrayEquals(new byte[]{1}, reader.getTile(0, 0, 0), "Read tile");
+            assertThrows(IOException.class, () -> reader.storeTile(new TileData(new TilePosition(0, 0, 1), new byte[]{2})), "Read-only archive");
+            reader.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+}
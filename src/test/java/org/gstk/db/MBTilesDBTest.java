@@ -0,0 +1,146 @@
+package org.gstk.db;
+
+import org.gstk.mock.TilePayloads;
+import org.gstk.utils.TileFormat;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MBTilesDBTest {
+    @Test
+    void testBulkLoad() throws Exception {
+        File file = Files.createTempFile("gstk-mbtiles-", ".mbtiles").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+        File stagingFile = new File(file.getPath() + "-staging");
+
+        byte[] first = TilePayloads.png(1);
+        byte[] second = TilePayloads.png(2);
+        byte[] other = TilePayloads.png(3);
+        try {
+            MBTilesDB db = new MBTilesDB(file.getPath(), null);
+            db.init();
+            db.storeTiles(List.of(new TileData(new TilePosition(0, 0, 1), first), new TileData(new TilePosition(1, 1, 1), other)));
+            db.storeTile(new TileData(new TilePosition(0, 0, 1), second));
+            assertTrue(stagingFile.exists(), "Tiles of a new database are staged");
+
+            assertTrue(db.doesTileExist(0, 0, 1), "Staged tile exists");
+            assertFalse(db.doesTileExist(1, 0, 1), "Missing staged tile");
+            assertFalse(db.doesTileExist(0, 0, 2), "Zoom level without staged tiles");
+            db.storeTile(new TileData(new TilePosition(1, 0, 1), other));
+            assertTrue(db.doesTileExist(1, 0, 1), "Tile staged after the staging index was built");
+            db.close();
+            assertFalse(stagingFile.exists(), "Staging file is removed on close");
+
+            db = new MBTilesDB(file.getPath(), null);
+            db.init();
+            assertArrayEquals(second, db.getTile(0, 0, 1), "Last staged copy of a tile is kept");
+            assertArrayEquals(other, db.getTile(1, 1, 1), "Other staged tile");
+            assertEquals(3, db.getTileRange(1).count(), "Staged duplicates are merged");
+
+            db.storeTile(new TileData(new TilePosition(1, 1, 1), first));
+            assertArrayEquals(first, db.getTile(1, 1, 1), "Indexed database replaces tiles");
+            assertEquals(3, db.getTileRange(1).count(), "Replacing keeps the tile count");
+            db.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(stagingFile.toPath());
+        }
+    }
+
+    @Test
+    void testFormatOfReopenedDatabase() throws Exception {
+        File file = Files.createTempFile("gstk-mbtiles-", ".mbtiles").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+        File stagingFile = new File(file.getPath() + "-staging");
+
+        byte[] jpeg = TilePayloads.jpeg(1);
+        try {
+            MBTilesDB db = new MBTilesDB(file.getPath(), null);
+            db.init();
+            db.close();
+
+            // Reopened before the first tile was stored
+            db = new MBTilesDB(file.getPath(), null);
+            db.init();
+            db.storeTile(new TileData(new TilePosition(0, 0, 1), jpeg));
+            db.close();
+
+            db = new MBTilesDB(file.getPath(), null);
+            db.init();
+            assertArrayEquals(jpeg, db.getTile(0, 0, 1), "Jpeg tile");
+            MBTilesDB reopened = db;
+            assertThrows(IllegalArgumentException.class, () -> reopened.storeTile(new TileData(new TilePosition(1, 0, 1), TilePayloads.png(1))), "Format of the stored tiles");
+            db.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(stagingFile.toPath());
+        }
+    }
+
+    @Test
+    void testFormatWithoutInit() throws Exception {
+        File file = Files.createTempFile("gstk-mbtiles-", ".mbtiles").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+        File stagingFile = new File(file.getPath() + "-staging");
+
+        byte[] jpeg = TilePayloads.jpeg(1);
+        try {
+            MBTilesDB db = new MBTilesDB(file.getPath(), null);
+            db.init();
+            db.storeTile(new TileData(new TilePosition(0, 0, 1), jpeg));
+            db.close();
+
+            MBTilesDB uninitialized = new MBTilesDB(file.getPath(), null);
+            assertThrows(IllegalArgumentException.class, () -> uninitialized.storeTile(new TileData(new TilePosition(1, 0, 1), TilePayloads.png(1))), "Format of the stored tiles");
+            uninitialized.storeTile(new TileData(new TilePosition(1, 0, 1), TilePayloads.jpeg(2)));
+            uninitialized.close();
+
+            db = new MBTilesDB(file.getPath(), null);
+            db.init();
+            assertEquals(TileFormat.JPEG, db.getTileFormat(), "Format metadata");
+            assertEquals(2, db.getTileRange(1).count(), "Tiles of the stored format");
+            db.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(stagingFile.toPath());
+        }
+    }
+
+    @Test
+    void testReadOnly() throws Exception {
+        File file = Files.createTempFile("gstk-mbtiles-", ".mbtiles").toFile();
+        assertTrue(file.delete(), "Delete empty temp file");
+        File stagingFile = new File(file.getPath() + "-staging");
+
+        byte[] tile = TilePayloads.png(1);
+        try {
+            assertThrows(TileDB.InitException.class, () -> TileDB.openReadOnly("mbtiles:" + file.getPath(), null), "Missing database");
+            assertFalse(file.exists(), "Missing database is not created");
+
+            MBTilesDB db = new MBTilesDB(file.getPath(), null);
+            db.init();
+            db.storeTile(new TileData(new TilePosition(0, 0, 1), tile));
+
+            // Unfinished first download, the tiles are only staged
+            TileDB staged = TileDB.openReadOnly("mbtiles:" + file.getPath(), null);
+            assertThrows(Exception.class, staged::init, "Staged tiles");
+            staged.close();
+            db.close();
+
+            TileDB reader = TileDB.openReadOnly("mbtiles:" + file.getPath(), null);
+            reader.init();
+            assertArrayEquals(tile, reader.getTile(0, 0, 1), "Read tile");
+            assertThrows(Exception.class, () -> reader.storeTile(new TileData(new TilePosition(1, 0, 1), tile)), "Read-only database");
+            reader.close();
+        } finally {
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(stagingFile.toPath());
+        }
+    }
+}
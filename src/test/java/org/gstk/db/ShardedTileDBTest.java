@@ -0,0 +1,62 @@
+package org.gstk.db;
+
+import org.gstk.mock.TilePayloads;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedTileDBTest {
+    @Test
+    void testWriteAndMerge() throws Exception {
+        Path dir = Files.createTempDirectory("gstk-shards-");
+        File file = new File(dir.toFile(), "tiles.mbtiles");
+        byte[] first = TilePayloads.png(1);
+        byte[] second = TilePayloads.png(2);
+        try {
+            MBTilesDB target = new MBTilesDB(file.getPath(), null);
+            target.init();
+            ShardedTileDB db = new ShardedTileDB(target, 3);
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(3, files.filter(f -> f.getFileName().toString().startsWith("tiles.mbtiles-shard-")).count(), "Shards next to the target");
+            }
+
+            List<TileData> tiles = new ArrayList<>();
+            for (int x = 0; x < 8; x++) {
+                for (int y = 0; y < 8; y++) {
+                    tiles.add(new TileData(new TilePosition(x, y, 3), first));
+                }
+            }
+            db.storeTiles(tiles);
+            db.storeTile(new TileData(new TilePosition(2, 5, 3), second));
+            assertTrue(db.doesTileExist(7, 7, 3), "Stored tiles exist before the merge");
+            assertFalse(db.doesTileExist(0, 0, 4), "Missing tile");
+            db.close();
+
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(List.of("tiles.mbtiles"), files.map(f -> f.getFileName().toString()).toList(), "Shards are removed after the merge");
+            }
+            MBTilesDB merged = new MBTilesDB(file.getPath(), null);
+            merged.init();
+            assertEquals(64, merged.getTileRange(3).count(), "Every tile is merged once");
+            assertArrayEquals(second, merged.getTile(2, 5, 3), "Rewritten tile");
+            assertArrayEquals(first, merged.getTile(7, 0, 3), "Merged tile");
+            merged.close();
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+}
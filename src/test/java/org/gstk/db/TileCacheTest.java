@@ -0,0 +1,49 @@
+package org.gstk.db;
+
+import org.gstk.utils.TileUtils.TilePosition;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileCacheTest {
+    @Test
+    void testGetAndPut() {
+        TileCache cache = new TileCache(1024);
+        TilePosition pos = new TilePosition(1, 2, 3);
+
+        assertNull(cache.get(pos), "Empty cache");
+        cache.put(pos, new byte[10]);
+        assertNotNull(cache.get(new TilePosition(1, 2, 3)), "Cached tile");
+        assertEquals(10, cache.getSizeBytes(), "Cache size");
+        assertEquals(1, cache.getHits(), "Cache hits");
+        assertEquals(1, cache.getMisses(), "Cache misses");
+
+        cache.put(pos, new byte[20]);
+        assertEquals(20, cache.getSizeBytes(), "Cache size after replacing tile");
+
+        cache.invalidate(pos);
+        assertNull(cache.get(pos), "Invalidated tile");
+        assertEquals(0, cache.getSizeBytes(), "Cache size after invalidating tile");
+    }
+
+    @Test
+    void testEviction() {
+        TileCache cache = new TileCache(100);
+        TilePosition first = new TilePosition(0, 0, 1);
+        TilePosition second = new TilePosition(1, 0, 1);
+        TilePosition third = new TilePosition(0, 1, 1);
+
+        cache.put(first, new byte[40]);
+        cache.put(second, new byte[40]);
+        cache.get(first);
+        cache.put(third, new byte[40]);
+
+        assertNotNull(cache.get(first), "Recently used tile is kept");
+        assertNull(cache.get(second), "Least recently used tile is evicted");
+        assertNotNull(cache.get(third), "Newest tile is kept");
+        assertEquals(80, cache.getSizeBytes(), "Cache size after eviction");
+
+        cache.put(new TilePosition(1, 1, 1), new byte[200]);
+        assertEquals(80, cache.getSizeBytes(), "Tiles larger than the cache are not cached");
+    }
+}
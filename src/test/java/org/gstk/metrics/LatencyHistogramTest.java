@@ -0,0 +1,42 @@
+package org.gstk.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    @Test
+    void testBuckets() {
+        for (long value : new long[]{0, 1, 31, 32, 33, 63, 64, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(LatencyHistogram.upperBound(index) >= value, "Bucket upper bound covers " + value);
+            if (index > 0) {
+                assertTrue(LatencyHistogram.upperBound(index - 1) < value, "Previous bucket is below " + value);
+            }
+        }
+    }
+
+    @Test
+    void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99), "Empty histogram");
+
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1_000_000);
+        }
+
+        assertEquals(1000, histogram.getCount(), "Count");
+        assertEquals(1_000_000_000, histogram.getMaxNanos(), "Max");
+        assertEquals(500_500_000_000L, histogram.getSumNanos(), "Sum");
+
+        long p50 = histogram.getValueAtPercentile(50);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(Math.abs(p50 - 500_000_000) < 500_000_000 * 0.04, "p50 within bucket precision: " + p50);
+        assertTrue(Math.abs(p99 - 990_000_000) < 990_000_000 * 0.04, "p99 within bucket precision: " + p99);
+        assertEquals(1_000_000_000, histogram.getValueAtPercentile(100), "p100 is the max");
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount(), "Count after reset");
+        assertEquals(0, histogram.getValueAtPercentile(99), "Percentile after reset");
+    }
+}
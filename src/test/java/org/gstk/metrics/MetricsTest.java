@@ -0,0 +1,26 @@
+package org.gstk.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.function.IntSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+    @Test
+    void testWriterQueueDepth() {
+        IntSupplier first = () -> 3;
+        IntSupplier second = () -> 4;
+        int before = Metrics.get().getWriterQueueDepth();
+
+        Metrics.addWriterQueue(first);
+        Metrics.addWriterQueue(second);
+        assertEquals(before + 7, Metrics.get().getWriterQueueDepth(), "Queues of concurrent jobs are summed");
+
+        // A job that finishes first doesn't reset the depth of the one still running
+        Metrics.removeWriterQueue(first);
+        assertEquals(before + 4, Metrics.get().getWriterQueueDepth(), "Queue of the running job");
+        Metrics.removeWriterQueue(second);
+        assertEquals(before, Metrics.get().getWriterQueueDepth(), "All queues removed");
+    }
+}
@@ -0,0 +1,424 @@
+package org.gstk.mock;
+
+import org.gstk.BatchManifest;
+import org.gstk.BatchRunner;
+import org.gstk.CancellationToken;
+import org.gstk.DownloadListener;
+import org.gstk.Downloader;
+import org.gstk.FailedTiles;
+import org.gstk.Merger;
+import org.gstk.Region;
+import org.gstk.TileTransformer;
+import org.gstk.db.MBTilesDB;
+import org.gstk.db.TileDB;
+import org.gstk.metrics.Metrics;
+import org.gstk.utils.TileUtils;
+import org.gstk.utils.TileUtils.TileData;
+import org.gstk.utils.TileUtils.TilePosition;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs a full download from a MockTileServer into a fresh MBTiles file and reports what came out of it
+public final class DownloadHarness {
+    private DownloadHarness() {}
+
+    public static Report run(MockTileServer server, String wkt, int startZoom, int endZoom, int threads) throws Exception {
+        return runPartitioned(server, wkt, startZoom, endZoom, threads, 1);
+    }
+
+    // Downloads the region as partitions separate downloaders (like --shard i/N on separate machines) at the same time,
+    // then merges their databases. Tiles found in more than one partition database are counted as duplicated.
+    public static Report runPartitioned(
+        MockTileServer server,
+        String wkt,
+        int startZoom,
+        int endZoom,
+        int threads,
+        int partitions) throws Exception
+    {
+        Region region = Region.fromWkt(wkt);
+        File dir = Files.createTempDirectory("gstk-harness-").toFile();
+        List<File> dbFiles = new ArrayList<>();
+        List<File> failsFiles = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            dbFiles.add(new File(dir, "tiles-" + i + ".mbtiles"));
+            failsFiles.add(new File(dir, "fails-" + i + ".log"));
+        }
+        File mergedFile = new File(dir, "tiles.mbtiles");
+
+        try {
+            Metrics.reset();
+            long start = System.nanoTime();
+            List<Thread> downloads = new ArrayList<>();
+            List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+            for (int i = 0; i < partitions; i++) {
+                int index = i;
+                Thread thread = new Thread(() -> {
+                    try {
+                        TileDB db = TileDB.open("mbtiles:" + dbFiles.get(index).getPath(), null);
+                        db.init();
+                        db.advancedInit(startZoom, endZoom, region);
+                        Downloader downloader = Downloader.builder(db)
+                            .region(region)
+                            .tileUrl(server.getTileUrl())
+                            .threads(threads)
+                            .failsFile(failsFiles.get(index))
+                            .partition(index, partitions)
+                            .build();
+                        downloader.start(startZoom, endZoom, true);
+                        downloader.closeFails();
+                        db.close();
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }, "Harness-Partition-" + i);
+                thread.start();
+                downloads.add(thread);
+            }
+            for (Thread thread : downloads) {
+                thread.join();
+            }
+            if (!errors.isEmpty()) {
+                throw errors.get(0);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long p99Nanos = Metrics.getHistogram(Metrics.Stage.TILE).getValueAtPercentile(99);
+
+            Set<TilePosition> failed = new HashSet<>();
+            for (File failsFile : failsFiles) {
+                FailedTiles fails = new FailedTiles(failsFile);
+                for (FailedTiles.Fail fail : fails.getFails()) {
+                    failed.add(new TilePosition(fail.x, fail.y, fail.zoom));
+                }
+                fails.close();
+            }
+
+            List<TileDB> sources = new ArrayList<>();
+            for (File dbFile : dbFiles) {
+                TileDB source = TileDB.open("mbtiles:" + dbFile.getPath(), null);
+                source.init();
+                sources.add(source);
+            }
+            TileDB merged = partitions > 1 ? TileDB.open("mbtiles:" + mergedFile.getPath(), null) : sources.get(0);
+
+            // A tile is lost if it is neither in the database nor recorded for --fix
+            long expected = 0;
+            long written = 0;
+            long lost = 0;
+            long duplicated = 0;
+            try {
+                if (partitions > 1) {
+                    new Merger(sources, merged, Merger.ConflictPolicy.NEWEST, 0, new CancellationToken(), null).start();
+                }
+                for (int zoom = startZoom; zoom <= endZoom; zoom++) {
+                    for (TilePosition pos : TileUtils.findTilesInRegion(region, zoom)) {
+                        expected++;
+                        int copies = 0;
+                        for (TileDB source : sources) {
+                            copies += source.doesTileExist(pos) ? 1 : 0;
+                        }
+                        if (copies > 1) {
+                            duplicated++;
+                        }
+                        if (merged.doesTileExist(pos)) {
+                            written++;
+                        } else if (!failed.contains(pos)) {
+                            lost++;
+                        }
+                    }
+                }
+            } finally {
+                for (TileDB source : sources) {
+                    source.close();
+                }
+                if (partitions > 1) {
+                    merged.close();
+                }
+            }
+
+            return new Report(expected, written, failed.size(), lost, duplicated, seconds, p99Nanos / 1e6);
+        } finally {
+            for (int i = 0; i < partitions; i++) {
+                Files.deleteIfExists(dbFiles.get(i).toPath());
+                Files.deleteIfExists(failsFiles.get(i).toPath());
+            }
+            Files.deleteIfExists(mergedFile.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    // Downloads the region as several layers in one batch run, like repeated -u and -D pairs, with layer i requesting
+    // the server's tiles with a ?layer=i query. Reports each layer's database and fails file, a tile is counted as
+    // written only with the payload the server serves for it and as duplicated if it was requested more than once per layer.
+    public static List<Report> runLayers(
+        MockTileServer server,
+        String wkt,
+        int startZoom,
+        int endZoom,
+        int threads,
+        int layers) throws Exception
+    {
+        Region region = Region.fromWkt(wkt);
+        File dir = Files.createTempDirectory("gstk-harness-").toFile();
+        List<BatchManifest.Job> jobs = new ArrayList<>();
+        for (int i = 0; i < layers; i++) {
+            BatchManifest.Job job = new BatchManifest.Job();
+            job.name = "layer" + (i + 1);
+            job.region = "wkt:" + wkt;
+            job.url = server.getTileUrl() + "?layer=" + (i + 1);
+            job.db = "mbtiles:" + new File(dir, "tiles-" + i + ".mbtiles").getPath();
+            job.startZoom = startZoom;
+            job.endZoom = endZoom;
+            job.override = true;
+            job.failsFile = new File(dir, "fails-" + i + ".log").getPath();
+            jobs.add(job);
+        }
+
+        try {
+            Metrics.reset();
+            long start = System.nanoTime();
+            List<BatchRunner.JobReport> jobReports = new BatchRunner(jobs, threads, threads, null, 0, null, null, new CancellationToken()).run();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long p99Nanos = Metrics.getHistogram(Metrics.Stage.TILE).getValueAtPercentile(99);
+
+            List<Report> reports = new ArrayList<>();
+            for (int i = 0; i < layers; i++) {
+                if (!jobReports.get(i).status().equals("finished")) {
+                    throw new IllegalStateException("Layer " + (i + 1) + " " + jobReports.get(i).status());
+                }
+
+                Set<TilePosition> failed = new HashSet<>();
+                FailedTiles fails = new FailedTiles(jobs.get(i).getFailsFile());
+                for (FailedTiles.Fail fail : fails.getFails()) {
+                    failed.add(new TilePosition(fail.x, fail.y, fail.zoom));
+                }
+                fails.close();
+
+                long expected = 0;
+                long written = 0;
+                long lost = 0;
+                long duplicated = 0;
+                TileDB db = TileDB.openReadOnly(jobs.get(i).db, null);
+                try {
+                    db.init();
+                    for (int zoom = startZoom; zoom <= endZoom; zoom++) {
+                        for (TilePosition pos : TileUtils.findTilesInRegion(region, zoom)) {
+                            expected++;
+                            if (server.getRequestCount(zoom, pos.x(), pos.y()) > layers) {
+                                duplicated++;
+                            }
+                            if (Arrays.equals(server.getPayload(zoom, pos.x(), pos.y()), db.getTile(pos))) {
+                                written++;
+                            } else if (!failed.contains(pos)) {
+                                lost++;
+                            }
+                        }
+                    }
+                } finally {
+                    db.close();
+                }
+                reports.add(new Report(expected, written, failed.size(), lost, duplicated, seconds, p99Nanos / 1e6));
+            }
+            return reports;
+        } finally {
+            for (int i = 0; i < layers; i++) {
+                Files.deleteIfExists(new File(dir, "tiles-" + i + ".mbtiles").toPath());
+                Files.deleteIfExists(jobs.get(i).getFailsFile().toPath());
+            }
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    // Cancels the download once stopAfter tiles are stored, then runs it again on the reopened database,
+    // which resumes from the stored progress. Tiles requested more than once are counted as duplicated.
+    public static Report runInterrupted(
+        MockTileServer server,
+        String wkt,
+        int startZoom,
+        int endZoom,
+        int threads,
+        long stopAfter) throws Exception
+    {
+        return runInterrupted(server, wkt, startZoom, endZoom, threads, stopAfter, 0, false);
+    }
+
+    // Like runInterrupted, but the first run passes its tiles through transformThreads threads that finish them out of order,
+    // and its database stops writing once stopAfter tiles are stored, like a process killed mid-download.
+    // Tiles that were downloaded but never written are downloaded again, so only lost tiles are a failure.
+    public static Report runCrashed(
+        MockTileServer server,
+        String wkt,
+        int startZoom,
+        int endZoom,
+        int threads,
+        int transformThreads,
+        long stopAfter) throws Exception
+    {
+        return runInterrupted(server, wkt, startZoom, endZoom, threads, stopAfter, transformThreads, true);
+    }
+
+    private static Report runInterrupted(
+        MockTileServer server,
+        String wkt,
+        int startZoom,
+        int endZoom,
+        int threads,
+        long stopAfter,
+        int transformThreads,
+        boolean crash) throws Exception
+    {
+        Region region = Region.fromWkt(wkt);
+        File dir = Files.createTempDirectory("gstk-harness-").toFile();
+        File dbFile = new File(dir, "tiles.mbtiles");
+        File failsFile = new File(dir, "fails.log");
+
+        try {
+            Metrics.reset();
+            long start = System.nanoTime();
+            CancellationToken cancellation = new CancellationToken();
+            AtomicLong stored = new AtomicLong();
+            for (int run = 0; run < 2; run++) {
+                TileDB db = run == 0 && crash ? new CrashingDB(dbFile, cancellation) : TileDB.open("mbtiles:" + dbFile.getPath(), null);
+                db.init();
+                db.advancedInit(startZoom, endZoom, region);
+                Downloader.Builder builder = Downloader.builder(db)
+                    .region(region)
+                    .tileUrl(server.getTileUrl())
+                    .threads(threads)
+                    .failsFile(failsFile)
+                    .cancellation(run == 0 ? cancellation : new CancellationToken())
+                    .listener(new DownloadListener() {
+                        @Override
+                        public void tileStored(TileData tile) {
+                            if (stored.incrementAndGet() >= stopAfter) {
+                                cancellation.cancel();
+                            }
+                        }
+                    });
+                if (run == 0 && transformThreads > 0) {
+                    builder.transformer(new ShuffledTransformer(), transformThreads);
+                }
+                Downloader downloader = builder.build();
+                downloader.start(startZoom, endZoom, true);
+                downloader.closeFails();
+                db.close();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long p99Nanos = Metrics.getHistogram(Metrics.Stage.TILE).getValueAtPercentile(99);
+
+            Set<TilePosition> failed = new HashSet<>();
+            FailedTiles fails = new FailedTiles(failsFile);
+            for (FailedTiles.Fail fail : fails.getFails()) {
+                failed.add(new TilePosition(fail.x, fail.y, fail.zoom));
+            }
+            fails.close();
+
+            long expected = 0;
+            long written = 0;
+            long lost = 0;
+            long duplicated = 0;
+            TileDB db = TileDB.openReadOnly("mbtiles:" + dbFile.getPath(), null);
+            try {
+                db.init();
+                for (int zoom = startZoom; zoom <= endZoom; zoom++) {
+                    for (TilePosition pos : TileUtils.findTilesInRegion(region, zoom)) {
+                        expected++;
+                        if (server.getRequestCount(zoom, pos.x(), pos.y()) > 1) {
+                            duplicated++;
+                        }
+                        if (db.doesTileExist(pos)) {
+                            written++;
+                        } else if (!failed.contains(pos)) {
+                            lost++;
+                        }
+                    }
+                }
+            } finally {
+                db.close();
+            }
+
+            return new Report(expected, written, failed.size(), lost, duplicated, seconds, p99Nanos / 1e6);
+        } finally {
+            Files.deleteIfExists(dbFile.toPath());
+            Files.deleteIfExists(failsFile.toPath());
+            Files.deleteIfExists(dir.toPath());
+        }
+    }
+
+    // Drops every write once the download is cancelled
+    private static class CrashingDB extends MBTilesDB {
+        private final CancellationToken cancellation;
+
+        CrashingDB(File file, CancellationToken cancellation) {
+            super(file.getPath(), null);
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public synchronized void storeTiles(List<TileData> tiles, Progress progress, List<Freshness> freshness) throws SQLException {
+            if (!cancellation.isCancelled()) {
+                super.storeTiles(tiles, progress, freshness);
+            }
+        }
+    }
+
+    // Stores tiles unchanged, every third tile is slow so transforms of a chunk finish out of order
+    private static class ShuffledTransformer extends TileTransformer {
+        ShuffledTransformer() {
+            super(false, false, 0, 4);
+        }
+
+        @Override
+        public TileData transform(TileData tile) {
+            try {
+                Thread.sleep((tile.pos().x() + tile.pos().y()) % 3 == 0 ? 40 : 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return tile;
+        }
+    }
+
+    public record Report(long expected, long written, long failed, long lost, long duplicated, double seconds, double p99Millis) {
+        public double tilesPerSecond() {
+            return seconds > 0 ? written / seconds : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                Locale.ROOT,
+                "%d/%d tiles written, %d failed, %d lost, %d duplicated, %.1f tiles/s, p99 tile latency %.1f ms",
+                written, expected, failed, lost, duplicated, tilesPerSecond(), p99Millis
+            );
+        }
+    }
+
+    // Example: java ... org.gstk.mock.DownloadHarness 14 8 200 0.01 4
+    // (zoom, threads, median latency in ms, error rate, partitions) over a part of Los Angeles
+    public static void main(String[] args) throws Exception {
+        int zoom = args.length > 0 ? Integer.parseInt(args[0]) : 14;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        double medianMs = args.length > 2 ? Double.parseDouble(args[2]) : 50;
+        double errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+        int partitions = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+        try (MockTileServer server = MockTileServer.builder()
+            .latency(MockTileServer.Latency.logNormal(medianMs, 0.5))
+            .errorRate(errorRate)
+            .threads(threads * partitions * 2)
+            .build()
+            .start()) {
+            Report report = runPartitioned(
+                server,
+                "POLYGON ((-118.3 34.0, -118.2 34.0, -118.2 34.1, -118.3 34.1, -118.3 34.0))",
+                zoom, zoom, threads, partitions
+            );
+            System.out.println(report);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package org.gstk.mock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Offline XYZ tile server for tests and benchmarks. Every response is decided by the seed, the tile and
+// how often that tile was requested before, so runs with the same configuration see the same behavior.
+// Only HTTP/1.1 is served (the JDK server has no HTTP/2, and the downloader only speaks HTTP/1.1).
+public class MockTileServer implements Closeable {
+    private static final Pattern TILE_PATH = Pattern.compile("^/(\\d+)/(\\d+)/(\\d+)(\\.\\w+)?$");
+    private static final int PAYLOAD_VARIANTS = 16;
+    private static final int SLOW_BODY_CHUNKS = 8;
+
+    private final Builder config;
+    private final byte[][] payloads = new byte[PAYLOAD_VARIANTS][];
+    private final Map<Long, Integer> attempts = new ConcurrentHashMap<>();
+
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+
+    public final AtomicLong requestCount = new AtomicLong();
+    public final AtomicLong servedCount = new AtomicLong();
+    public final AtomicLong errorCount = new AtomicLong();
+    public final AtomicLong rateLimitedCount = new AtomicLong();
+    public final AtomicLong notModifiedCount = new AtomicLong();
+
+    private MockTileServer(Builder config) {
+        this.config = config;
+        for (int i = 0; i < PAYLOAD_VARIANTS; i++) {
+            payloads[i] = config.format == Format.JPEG ? TilePayloads.jpeg(config.seed + i) : TilePayloads.png(config.seed + i);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public MockTileServer start() throws IOException {
+        executor = Executors.newFixedThreadPool(config.threads);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+    public String getTileUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/{z}/{x}/{y}." + config.format.extension;
+    }
+
+    // Payload served for a tile, for checking what ended up in a database
+    public byte[] getPayload(int zoom, int x, int y) {
+        return payloads[variant(zoom, x, y)];
+    }
+
+    // Requests received for a tile, including failed attempts
+    public int getRequestCount(int zoom, int x, int y) {
+        return attempts.getOrDefault(key(zoom, x, y), 0);
+    }
+
+    // Sent with every tile, a request with a matching If-None-Match is answered with 304
+    public String getEtag(int zoom, int x, int y) {
+        return "\"" + config.seed + "-" + variant(zoom, x, y) + "\"";
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requestCount.incrementAndGet();
+
+            Matcher matcher = TILE_PATH.matcher(exchange.getRequestURI().getPath());
+            if (!matcher.matches()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            int zoom = Integer.parseInt(matcher.group(1));
+            int x = Integer.parseInt(matcher.group(2));
+            int y = Integer.parseInt(matcher.group(3));
+            long key = key(zoom, x, y);
+            int attempt = attempts.merge(key, 1, Integer::sum);
+            SplittableRandom random = new SplittableRandom(config.seed ^ (key * 0x9E3779B97F4A7C15L) ^ attempt);
+
+            sleep(config.latency.nextMs(random));
+
+            double roll = random.nextDouble();
+            if (roll < config.rateLimitRate) {
+                rateLimitedCount.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(config.retryAfterSeconds));
+                exchange.sendResponseHeaders(429, -1);
+                return;
+            }
+            if (roll < config.rateLimitRate + config.errorRate) {
+                errorCount.incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+
+            String etag = getEtag(zoom, x, y);
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModifiedCount.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            byte[] body = getPayload(zoom, x, y);
+            exchange.getResponseHeaders().set("Content-Type", config.format.contentType);
+            boolean slow = random.nextDouble() < config.slowBodyRate;
+            try (OutputStream out = exchange.getResponseBody()) {
+                if (slow) {
+                    // Slow-loris style body: the length is announced, the bytes trickle in
+                    exchange.sendResponseHeaders(200, body.length);
+                    int chunk = (body.length + SLOW_BODY_CHUNKS - 1) / SLOW_BODY_CHUNKS;
+                    for (int offset = 0; offset < body.length; offset += chunk) {
+                        out.write(body, offset, Math.min(chunk, body.length - offset));
+                        out.flush();
+                        sleep(config.slowBodyChunkDelayMs);
+                    }
+                } else {
+                    exchange.sendResponseHeaders(200, body.length);
+                    out.write(body);
+                }
+            }
+            servedCount.incrementAndGet();
+        }
+    }
+
+    // The key is mixed first, its low bits only depend on y
+    private int variant(int zoom, int x, int y) {
+        return new SplittableRandom(key(zoom, x, y)).nextInt(PAYLOAD_VARIANTS);
+    }
+
+    private static long key(int zoom, int x, int y) {
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public enum Format {
+        PNG("png", "image/png"),
+        JPEG("jpg", "image/jpeg");
+
+        final String extension;
+        final String contentType;
+        Format(String extension, String contentType) {
+            this.extension = extension;
+            this.contentType = contentType;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Latency {
+        long nextMs(SplittableRandom random);
+
+        static Latency none() {
+            return random -> 0;
+        }
+
+        static Latency fixed(long ms) {
+            return random -> ms;
+        }
+
+        static Latency uniform(long minMs, long maxMs) {
+            return random -> minMs + random.nextLong(maxMs - minMs + 1);
+        }
+
+        // Long-tailed latency like real tile servers, median in ms and sigma of the underlying normal distribution
+        static Latency logNormal(double medianMs, double sigma) {
+            return random -> {
+                // Box-Muller transform
+                double u1 = 1.0 - random.nextDouble();
+                double u2 = random.nextDouble();
+                double normal = Math.sqrt(-2.0 * Math.log(u1)) * Math.cos(2.0 * Math.PI * u2);
+                return Math.round(medianMs * Math.exp(sigma * normal));
+            };
+        }
+    }
+
+    public static class Builder {
+        private Latency latency = Latency.none();
+        private double errorRate = 0;
+        private double rateLimitRate = 0;
+        private int retryAfterSeconds = 1;
+        private double slowBodyRate = 0;
+        private long slowBodyChunkDelayMs = 100;
+        private Format format = Format.PNG;
+        private long seed = 42;
+        private int threads = 16;
+
+        public Builder latency(Latency latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        // Fraction of requests answered with 500
+        public Builder errorRate(double errorRate) {
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        // Fraction of requests answered with 429 and a Retry-After header
+        public Builder rateLimitRate(double rateLimitRate, int retryAfterSeconds) {
+            this.rateLimitRate = rateLimitRate;
+            this.retryAfterSeconds = retryAfterSeconds;
+            return this;
+        }
+
+        // Fraction of responses whose body is sent in chunks with a delay between them
+        public Builder slowBodies(double slowBodyRate, long chunkDelayMs) {
+            this.slowBodyRate = slowBodyRate;
+            this.slowBodyChunkDelayMs = chunkDelayMs;
+            return this;
+        }
+
+        public Builder format(Format format) {
+            this.format = format;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public MockTileServer build() {
+            return new MockTileServer(this);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.gstk.mock;
+
+import org.gstk.utils.ImageUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MockTileServerTest {
+    @Test
+    void testDeterministicResponses() throws Exception {
+        List<Integer> first = statuses(42);
+        List<Integer> second = statuses(42);
+        assertEquals(first, second, "Same seed gives the same responses");
+        assertTrue(first.contains(200) && first.contains(429) && first.contains(500), "All response types occur: " + first);
+    }
+
+    @Test
+    void testResponses() throws Exception {
+        try (MockTileServer server = MockTileServer.builder()
+            .rateLimitRate(0.5, 7)
+            .build()
+            .start()) {
+            boolean rateLimited = false;
+            boolean served = false;
+            for (int x = 0; x < 32 && !(rateLimited && served); x++) {
+                HttpURLConnection connection = open(server, 10, x, 3);
+                if (connection.getResponseCode() == 429) {
+                    assertEquals("7", connection.getHeaderField("Retry-After"), "Retry-After header");
+                    rateLimited = true;
+                } else {
+                    assertEquals(200, connection.getResponseCode(), "Status");
+                    try (InputStream in = connection.getInputStream()) {
+                        byte[] body = in.readAllBytes();
+                        assertArrayEquals(server.getPayload(10, x, 3), body, "Payload");
+                        assertTrue(ImageUtils.isPng(body), "Payload is png");
+                    }
+                    served = true;
+                }
+                connection.disconnect();
+            }
+            assertTrue(rateLimited && served, "Both 429 and 200 responses");
+        }
+    }
+
+    @Test
+    void testPayloadVariants() {
+        MockTileServer server = MockTileServer.builder().build();
+        Set<Integer> row = new HashSet<>();
+        Set<Integer> column = new HashSet<>();
+        for (int i = 0; i < 32; i++) {
+            row.add(Arrays.hashCode(server.getPayload(12, i, 7)));
+            column.add(Arrays.hashCode(server.getPayload(12, 7, i)));
+        }
+        assertTrue(row.size() > 4, "Tiles of a row get different payloads: " + row.size());
+        assertTrue(column.size() > 4, "Tiles of a column get different payloads: " + column.size());
+    }
+
+    @Test
+    void testDownload() throws Exception {
+        try (MockTileServer server = MockTileServer.builder()
+            .latency(MockTileServer.Latency.uniform(0, 5))
+            .slowBodies(0.1, 2)
+            .build()
+            .start()) {
+            DownloadHarness.Report report = DownloadHarness.run(
+                server,
+                "POLYGON ((-118.3 34.0, -118.2 34.0, -118.2 34.1, -118.3 34.1, -118.3 34.0))",
+                10, 12, 4
+            );
+            assertTrue(report.expected() > 0, "Tiles in region");
+            assertEquals(report.expected(), report.written(), "All tiles written: " + report);
+            assertEquals(0, report.lost(), "No tiles lost: " + report);
+            assertTrue(report.p99Millis() > 0, "Latency recorded: " + report);
+        }
+    }
+
+    @Test
+    void testInterruptedDownload() throws Exception {
+        try (MockTileServer server = MockTileServer.builder()
+            .latency(MockTileServer.Latency.uniform(0, 5))
+            .build()
+            .start()) {
+            DownloadHarness.Report report = DownloadHarness.runInterrupted(
+                server,
+                "POLYGON ((-118.3 34.0, -118.2 34.0, -118.2 34.1, -118.3 34.1, -118.3 34.0))",
+                12, 15, 4, 60
+            );
+            assertTrue(report.expected() > 60, "Interrupted before the end: " + report);
+            assertEquals(report.expected(), report.written(), "Resumed download holds all tiles: " + report);
+            assertEquals(0, report.lost(), "No tiles lost: " + report);
+            assertEquals(0, report.duplicated(), "Tiles written before the interruption are not downloaded again: " + report);
+        }
+    }
+
+    @Test
+    void testCrashedDownloadWithTransforms() throws Exception {
+        try (MockTileServer server = MockTileServer.builder()
+            .latency(MockTileServer.Latency.uniform(0, 5))
+            .build()
+            .start()) {
+            DownloadHarness.Report report = DownloadHarness.runCrashed(
+                server,
+                "POLYGON ((-118.3 34.0, -118.2 34.0, -118.2 34.1, -118.3 34.1, -118.3 34.0))",
+                12, 15, 4, 4, 60
+            );
+            assertTrue(report.expected() > 60, "Crashed before the end: " + report);
+            assertEquals(report.expected(), report.written(), "Resumed download holds all tiles: " + report);
+            assertEquals(0, report.lost(), "No tiles lost: " + report);
+        }
+    }
+
+    @Test
+    void testLayerDownload() throws Exception {
+        try (MockTileServer server = MockTileServer.builder()
+            .latency(MockTileServer.Latency.uniform(0, 5))
+            .build()
+            .start()) {
+            List<DownloadHarness.Report> reports = DownloadHarness.runLayers(
+                server,
+                "POLYGON ((-118.3 34.0, -118.2 34.0, -118.2 34.1, -118.3 34.1, -118.3 34.0))",
+                10, 12, 4, 2
+            );
+            assertEquals(2, reports.size(), "One report per layer");
+            for (int i = 0; i < reports.size(); i++) {
+                DownloadHarness.Report report = reports.get(i);
+                assertTrue(report.expected() > 0, "Tiles in region");
+                assertEquals(report.expected(), report.written(), "Layer " + (i + 1) + " holds all tiles: " + report);
+                assertEquals(0, report.failed(), "No failed tiles in layer " + (i + 1) + ": " + report);
+                assertEquals(0, report.duplicated(), "Every layer requests each tile once: " + report);
+            }
+            assertEquals(2 * reports.get(0).expected(), server.requestCount.get(), "Each layer requests its own tiles");
+        }
+    }
+
+    @Test
+    void testPartitionedDownload() throws Exception {
+        try (MockTileServer server = MockTileServer.builder().build().start()) {
+            DownloadHarness.Report report = DownloadHarness.runPartitioned(
+                server,
+                "POLYGON ((-118.3 34.0, -118.2 34.0, -118.2 34.1, -118.3 34.1, -118.3 34.0))",
+                10, 12, 2, 3
+            );
+            assertEquals(report.expected(), report.written(), "Merged partitions hold all tiles: " + report);
+            assertEquals(0, report.duplicated(), "Partitions are disjoint: " + report);
+        }
+    }
+
+    private static List<Integer> statuses(long seed) throws IOException {
+        List<Integer> statuses = new ArrayList<>();
+        try (MockTileServer server = MockTileServer.builder()
+            .errorRate(0.3)
+            .rateLimitRate(0.2, 1)
+            .seed(seed)
+            .build()
+            .start()) {
+            for (int i = 0; i < 40; i++) {
+                // Every tile is requested twice, retries see a different outcome than the first attempt
+                HttpURLConnection connection = open(server, 12, i / 2, 5);
+                statuses.add(connection.getResponseCode());
+                connection.disconnect();
+            }
+        }
+        return statuses;
+    }
+
+    private static HttpURLConnection open(MockTileServer server, int zoom, int x, int y) throws IOException {
+        String url = server.getTileUrl()
+            .replace("{z}", String.valueOf(zoom))
+            .replace("{x}", String.valueOf(x))
+            .replace("{y}", String.valueOf(y));
+        return (HttpURLConnection) new URL(url).openConnection();
+    }
+}
@@ -0,0 +1,46 @@
+package org.gstk.mock;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+// Deterministic 256x256 tile images: flat areas with some noise, so they compress roughly like map tiles
+public final class TilePayloads {
+    private static final int[] PALETTE = {0xF2EFE9, 0xAAD3DF, 0xC8FACC, 0xFFFFFF, 0xE0DFDF};
+
+    private TilePayloads() {}
+
+    public static byte[] png(long seed) {
+        return encode("png", seed);
+    }
+
+    public static byte[] jpeg(long seed) {
+        return encode("jpg", seed);
+    }
+
+    private static byte[] encode(String format, long seed) {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(seed);
+        int offset = random.nextInt(PALETTE.length);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                int color = PALETTE[((x / 32) * 7 + (y / 32) * 3 + offset) % PALETTE.length];
+                if (random.nextInt(16) == 0) {
+                    color ^= random.nextInt(0x40);
+                }
+                image.setRGB(x, y, color);
+            }
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, format, out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.gstk.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageUtilsTest {
+    @Test
+    void testDownsampleQuadrants() {
+        BufferedImage[] quadrants = {
+            solid(0xFFFF0000),
+            solid(0xFF00FF00),
+            checkerboard(0xFF000000, 0xFFFFFFFF),
+            null
+        };
+
+        BufferedImage image = ImageUtils.downsampleQuadrants(quadrants, true);
+        assertEquals(256, image.getWidth(), "Width");
+        assertEquals(256, image.getHeight(), "Height");
+
+        assertEquals(0xFFFF0000, image.getRGB(10, 10), "Top left");
+        assertEquals(0xFF00FF00, image.getRGB(200, 10), "Top right");
+        assertEquals(0, image.getRGB(200, 200) >>> 24, "Missing bottom right is transparent");
+
+        int gray = image.getRGB(60, 200) & 0xFF;
+        assertTrue(Math.abs(gray - 0x80) <= 2, "Checkerboard averages to gray: " + Integer.toHexString(gray));
+    }
+
+    private static BufferedImage solid(int argb) {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage checkerboard(int a, int b) {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                image.setRGB(x, y, (x + y) % 2 == 0 ? a : b);
+            }
+        }
+        return image;
+    }
+}
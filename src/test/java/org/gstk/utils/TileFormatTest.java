@@ -0,0 +1,41 @@
+package org.gstk.utils;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileFormatTest {
+    @Test
+    void testDetect() throws Exception {
+        assertEquals(TileFormat.PNG, TileFormat.detect(encode("png")), "Png");
+        assertEquals(TileFormat.JPEG, TileFormat.detect(encode("jpg")), "Jpeg");
+
+        byte[] webp = "RIFF\0\0\0\0WEBPVP8 ".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(TileFormat.WEBP, TileFormat.detect(webp), "Webp");
+
+        assertNull(TileFormat.detect("RIFF\0\0\0\0WAVEfmt ".getBytes(StandardCharsets.US_ASCII)), "Other RIFF file");
+        assertNull(TileFormat.detect("<html></html>".getBytes(StandardCharsets.US_ASCII)), "Html error page");
+        assertNull(TileFormat.detect(new byte[]{(byte) 0xFF, (byte) 0xD8}), "Truncated jpeg");
+        assertNull(TileFormat.detect(new byte[0]), "Empty");
+        assertNull(TileFormat.detect(null), "Null");
+    }
+
+    @Test
+    void testFromName() {
+        assertEquals(TileFormat.PNG, TileFormat.fromName("png"), "Png");
+        assertEquals(TileFormat.JPEG, TileFormat.fromName("JPG"), "Jpeg, any case");
+        assertNull(TileFormat.fromName("gif"), "Unsupported");
+    }
+
+    private static byte[] encode(String format) throws Exception {
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,131 @@
+package org.gstk.utils;
+
+import org.gstk.Region;
+import org.gstk.mock.MockTileServer;
+import org.gstk.utils.TileUtils.TilePosition;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.gstk.utils.TileUtils.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TileUtilsTest {
+    @Test
+    void testHilbertTileId() {
+        assertEquals(0, hilbertTileId(0, 0, 0), "Zoom 0 tile");
+        assertEquals(1, hilbertTileId(1, 0, 0), "First zoom 1 tile");
+        assertEquals(2, hilbertTileId(1, 0, 1), "Second zoom 1 tile");
+        assertEquals(3, hilbertTileId(1, 1, 1), "Third zoom 1 tile");
+        assertEquals(4, hilbertTileId(1, 1, 0), "Fourth zoom 1 tile");
+        assertEquals(5, hilbertTileId(2, 0, 0), "First zoom 2 tile");
+        assertEquals(zoomTileIdStart(30) + (1L << 60) - 1, hilbertTileId(30, (1 << 30) - 1, 0), "Last zoom 30 tile");
+    }
+
+    @Test
+    void testHilbertTileIdRoundTrip() {
+        for (int zoom = 0; zoom <= 4; zoom++) {
+            int n = 1 << zoom;
+            for (int x = 0; x < n; x++) {
+                for (int y = 0; y < n; y++) {
+                    TilePosition pos = new TilePosition(x, y, zoom);
+                    assertEquals(pos, hilbertTileIdToPosition(hilbertTileId(pos)), "Round trip of " + pos);
+                }
+            }
+        }
+
+        TilePosition deep = new TilePosition(123456789, 987654321, 30);
+        assertEquals(deep, hilbertTileIdToPosition(hilbertTileId(deep)), "Round trip of zoom 30 tile");
+    }
+
+    @Test
+    void testHilbertTileIdLocality() {
+        for (int zoom = 1; zoom <= 5; zoom++) {
+            long start = zoomTileIdStart(zoom);
+            for (long id = start; id < zoomTileIdStart(zoom + 1) - 1; id++) {
+                TilePosition a = hilbertTileIdToPosition(id);
+                TilePosition b = hilbertTileIdToPosition(id + 1);
+                assertEquals(1, Math.abs(a.x() - b.x()) + Math.abs(a.y() - b.y()), "Consecutive ids are neighbours at zoom " + zoom);
+            }
+        }
+    }
+
+    @Test
+    void testConditionalFetch() throws Exception {
+        try (MockTileServer server = MockTileServer.builder().build().start()) {
+            TilePosition pos = new TilePosition(3, 5, 4);
+
+            TileResponse first = fetchTileWithRetries(pos, server.getTileUrl(), null, null, 1, 0, null);
+            assertFalse(first.notModified(), "Unconditional fetch");
+            assertArrayEquals(server.getPayload(4, 3, 5), first.data(), "Payload");
+            assertEquals(server.getEtag(4, 3, 5), first.etag(), "ETag");
+            assertTrue(first.fetchedMillis() > 0, "Fetch time");
+
+            TileResponse unchanged = fetchTileWithRetries(pos, server.getTileUrl(), first.etag(), null, 1, 0, null);
+            assertTrue(unchanged.notModified(), "Matching ETag");
+            assertNull(unchanged.tile(), "No tile for 304");
+            assertEquals(first.etag(), unchanged.etag(), "Validator kept");
+            assertEquals(1, server.notModifiedCount.get(), "Server answered 304");
+
+            TileResponse changed = fetchTileWithRetries(pos, server.getTileUrl(), "\"stale\"", null, 1, 0, null);
+            assertFalse(changed.notModified(), "Stale ETag");
+            assertArrayEquals(first.data(), changed.data(), "Payload for stale ETag");
+        }
+    }
+
+    @Test
+    void testPermitsBetweenRetries() throws Exception {
+        try (MockTileServer server = MockTileServer.builder().errorRate(1).build().start()) {
+            Semaphore permits = new Semaphore(1);
+            FutureTask<TileResponse> fetch = new FutureTask<>(
+                () -> fetchTileWithRetries(new TilePosition(0, 0, 1), server.getTileUrl(), null, null, 2, 1000, null, 0, permits)
+            );
+            new Thread(fetch).start();
+
+            while (server.requestCount.get() == 0) {
+                Thread.sleep(5);
+            }
+            // The first attempt failed, the permit is free while the fetch waits for its retry
+            assertTrue(permits.tryAcquire(500, TimeUnit.MILLISECONDS), "Permit is released between attempts");
+            permits.release();
+
+            ExecutionException e = assertThrows(ExecutionException.class, fetch::get, "Every attempt fails");
+            assertInstanceOf(IOException.class, e.getCause(), "Last error");
+            assertEquals(2, server.requestCount.get(), "Attempts");
+            assertEquals(1, permits.availablePermits(), "Permit is released after the last attempt");
+        }
+    }
+
+    @Test
+    void testRegionDifference() {
+        Region previous = Region.fromEnvelope(new Envelope(10, 12, 50, 52));
+        Region current = Region.fromEnvelope(new Envelope(11, 13, 50, 52));
+        assertNull(previous.difference(Region.fromEnvelope(new Envelope(9, 13, 49, 53))), "Covered region");
+
+        Region grown = current.difference(previous);
+        Region removed = previous.difference(current);
+        assertNotNull(grown, "Grown area");
+        assertNotNull(removed, "Removed area");
+
+        for (int zoom = 6; zoom <= 10; zoom++) {
+            Set<TilePosition> previousTiles = findTilesInRegion(previous, zoom);
+            Set<TilePosition> currentTiles = findTilesInRegion(current, zoom);
+
+            Set<TilePosition> covered = new HashSet<>(previousTiles);
+            covered.addAll(findTilesInRegion(grown, zoom));
+            assertTrue(covered.containsAll(currentTiles), "Previous and grown tiles cover the region at zoom " + zoom);
+
+            Set<TilePosition> outside = findTilesOutsideRegion(removed, current, zoom);
+            Set<TilePosition> expected = new HashSet<>(previousTiles);
+            expected.removeAll(currentTiles);
+            assertEquals(expected, outside, "Tiles that left the region at zoom " + zoom);
+        }
+    }
+}